@@ -11,6 +11,9 @@ mqtt.createServer(function (client) {
     var self = this;
     if(!self.clients) {
 	    self.clients = {};
+    }
+    if(!self.retained) {
+	    self.retained = {};
     }
 	/*
 	**	Adds the client when it is connecting to the client list 
@@ -30,7 +33,13 @@ mqtt.createServer(function (client) {
 	**/
     client.on('publish', function(packet) {
         debug.log("publish with topic: "+ packet.topic +" payload: "+packet.payload);
-        var payload = JSON.parse(packet.payload);
+        retain(packet);
+        var payload = {};
+        try {
+            payload = JSON.parse(packet.payload);
+        } catch (e) {
+            debug.log("payload is not json: " + e.message);
+        }
         if(payload.action == 'install-url') {
             debug.log('installing from url!')
             var buffer;
@@ -78,6 +87,21 @@ mqtt.createServer(function (client) {
             }
         };
     });
+	/*
+	**	Keeps the last message that was published with the retain flag on a topic
+	**  so that it can be delivered to clients that subscribe later. An empty
+	**  retained message clears the topic.
+	**/
+    function retain(packet) {
+        if(!packet.retain) {
+            return;
+        }
+        if(!packet.payload || packet.payload.length == 0) {
+            delete self.retained[packet.topic];
+        } else {
+            self.retained[packet.topic] = packet.payload;
+        }
+    }
 	/*
 	**	Adds the topics specified in the packet to the clients subscriptions
 	**/
@@ -92,7 +116,24 @@ mqtt.createServer(function (client) {
 	        debug.log("client: "+client.id+" subscribes to topic: "+ topic); 
         }
         client.suback({messageId: packet.messageId, granted: granted});
+        publishRetained(client, packet.subscriptions.length);
     });
+	/*
+	**	Sends the retained messages that matches the newest subscriptions of
+	**  the client, i.e. the last 'count' subscriptions.
+	**/
+    function publishRetained(c, count) {
+        var subscriptions = c.subscriptions.slice(c.subscriptions.length - count);
+        for (var topic in self.retained) {
+            for (var i = 0; i < subscriptions.length; i++) {
+                if (subscriptions[i].test(topic)) {
+                    c.publish({topic: topic, payload: self.retained[topic], retain: true});
+	                debug.log("publish retained to client: " + c.id + " with topic: " + topic);
+                    break;
+                }
+            }
+        }
+    }
 	/*
 	**  When there is a ping request, respond with a pingresponse
 	**/
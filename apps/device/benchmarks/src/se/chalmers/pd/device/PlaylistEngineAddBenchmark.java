@@ -0,0 +1,61 @@
+package se.chalmers.pd.device;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures adding a track to a PlaylistEngine of a known size. Every add makes
+ * the playlist one track longer, so the engine is filled again before each
+ * invocation instead of once like in PlaylistEngineBenchmark. Filling takes
+ * much longer than the add, so a run takes a while for the large sizes.
+ *
+ * It is compiled and run like PlaylistEngineBenchmark:
+ *
+ * <pre>
+ * java -cp out:jmh-core.jar:jopt-simple.jar:commons-math3.jar:android.jar \
+ *     org.openjdk.jmh.Main PlaylistEngineAddBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PlaylistEngineAddBenchmark {
+
+	@Param({ "100", "10000", "100000" })
+	public int size;
+
+	private PlaylistEngine engine;
+	private Track[] tracks;
+	private Track added;
+
+	@Setup
+	public void setUp() {
+		tracks = new Track[size];
+		for (int i = 0; i < size; i++) {
+			tracks[i] = new Track("Track " + i, "Artist " + i, "spotify:track:" + i, 180);
+		}
+		added = new Track("Added", "Artist", "spotify:track:added", 180);
+	}
+
+	@Setup(Level.Invocation)
+	public void fill() {
+		engine = new PlaylistEngine();
+		for (int i = 0; i < size; i++) {
+			engine.add(tracks[i]);
+		}
+	}
+
+	@Benchmark
+	public int add() {
+		return engine.add(added);
+	}
+}
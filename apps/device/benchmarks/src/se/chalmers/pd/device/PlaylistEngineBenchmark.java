@@ -0,0 +1,117 @@
+package se.chalmers.pd.device;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the playlist operations of the PlaylistEngine against the rotating
+ * list that SpotifyController used before, for playlists of different sizes.
+ * Next and previous should take the same time whatever the size, while the
+ * rotating list grows with the size of the playlist. Adding is measured in
+ * PlaylistEngineAddBenchmark, since it changes the size of the playlist.
+ *
+ * The benchmark runs on a desktop JVM. Compile it together with the sources of
+ * the device and run it with the jmh jars and android.jar on the classpath,
+ * the android classes are only needed to load Track:
+ *
+ * <pre>
+ * javac -cp jmh-core.jar:jmh-generator-annprocess.jar:android.jar -d out \
+ *     ../src/se/chalmers/pd/device/*.java src/se/chalmers/pd/device/*.java
+ * java -cp out:jmh-core.jar:jopt-simple.jar:commons-math3.jar:android.jar \
+ *     org.openjdk.jmh.Main PlaylistEngineBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PlaylistEngineBenchmark {
+
+	@Param({ "100", "10000", "100000" })
+	public int size;
+
+	private PlaylistEngine engine;
+	private ArrayList<Track> rotating;
+	private Track[] tracks;
+
+	@Setup
+	public void setUp() {
+		engine = new PlaylistEngine();
+		rotating = new ArrayList<Track>(size);
+		tracks = new Track[size];
+		for (int i = 0; i < size; i++) {
+			tracks[i] = new Track("Track " + i, "Artist " + i, "spotify:track:" + i, 180);
+			engine.add(tracks[i]);
+			rotating.add(tracks[i]);
+		}
+	}
+
+	@Benchmark
+	public Track next() {
+		engine.next();
+		return engine.getCurrentTrack();
+	}
+
+	@Benchmark
+	public Track previous() {
+		engine.previous();
+		return engine.getCurrentTrack();
+	}
+
+	@Benchmark
+	public Track nextWithSnapshot() {
+		engine.next();
+		return engine.snapshot(0).getCurrentTrack();
+	}
+
+	@Benchmark
+	public boolean jumpTo() {
+		return engine.jumpTo(engine.getId(size / 2));
+	}
+
+	@Benchmark
+	public boolean contains() {
+		return engine.contains(tracks[size / 2].getUri());
+	}
+
+	@Benchmark
+	public Track shuffle() {
+		engine.setShuffle(true);
+		return engine.getCurrentTrack();
+	}
+
+	/**
+	 * The next of SpotifyController before the engine, the current track was
+	 * moved from the front of the list to the back
+	 */
+	@Benchmark
+	public Track rotatingNext() {
+		rotating.add(rotating.remove(0));
+		return rotating.get(0);
+	}
+
+	/**
+	 * The previous of SpotifyController before the engine
+	 */
+	@Benchmark
+	public Track rotatingPrevious() {
+		rotating.add(0, rotating.remove(rotating.size() - 1));
+		return rotating.get(0);
+	}
+
+	/**
+	 * The contains of SpotifyController before the engine, a scan with equals
+	 */
+	@Benchmark
+	public boolean rotatingContains() {
+		return rotating.contains(tracks[size / 2]);
+	}
+}
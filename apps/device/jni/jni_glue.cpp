@@ -31,6 +31,7 @@
 
 #include <stdlib.h>
 #include <pthread.h>
+#include <stdint.h>
 #include <string>
 
 #include <api.h>
@@ -46,6 +47,28 @@ using namespace std;
 static JavaVM *s_java_vm;
 static jobject s_java_class_loader = NULL;
 
+// Player events are written to a ring that java reads through a direct ByteBuffer instead of calling java for
+// every event. The buffer starts with a header of EVENT_HEADER_INTS ints: the number of slots, if there is a new
+// position and the position as float bits. The slots follow, one int with the event type each, and after them one
+// int per event with the version of the playlist that java passed with the track of the event. Java is only called
+// when the ring goes from drained to pending, after that it polls until it has caught up.
+static const int EVENT_SLOTS = 64; // must be a power of two
+static const int EVENT_HEADER_INTS = 3;
+static const int EVENT_HEADER_SLOTS = 0;
+static const int EVENT_HEADER_POSITION_PENDING = 1;
+static const int EVENT_HEADER_POSITION = 2;
+static jint s_event_buffer[EVENT_HEADER_INTS + EVENT_SLOTS * 2];
+static volatile uint32_t s_event_write = 0;
+static volatile uint32_t s_event_read = 0;
+static volatile int s_event_scheduled = 0;
+// Only the latest position is kept, positions that java has not read yet are replaced
+static volatile int s_position_pending = 0;
+static volatile jint s_position_bits = 0;
+
+static volatile uint32_t s_events_posted = 0;
+static volatile uint32_t s_event_upcalls = 0;
+static volatile uint32_t s_events_dropped = 0;
+
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *jvm, void *reserved) {
 	// Save a reference to the java virtual machine to be able to call java from native thread
 	s_java_vm = jvm;
@@ -83,27 +106,47 @@ JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_login(JNIEnv
 	je->ReleaseStringUTFChars(j_password, password);
 }
 
-JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_toggleplay(JNIEnv *je, jclass jc, jstring j_uri) {
+JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_toggleplay(JNIEnv *je, jclass jc, jstring j_uri, jint version) {
 	const char *uri = je->GetStringUTFChars(j_uri, 0);
 
+	list<int> int_params;
+	int_params.push_back(version);
 	list<string> string_params;
 	string_params.push_back(uri);
 	log("playing uri %s", string_params.front().c_str());
-	addTask(toggle_play, "play_song", string_params);
+	audio_mark_play_requested();
+	addTask(toggle_play, "play_song", int_params, string_params);
 
 	je->ReleaseStringUTFChars(j_uri, uri);
 }
 
-JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_playnext(JNIEnv *je, jclass jc, jstring j_uri) {
+JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_playnext(JNIEnv *je, jclass jc, jstring j_uri, jint version) {
 	const char *uri = je->GetStringUTFChars(j_uri, 0);
 
+	list<int> int_params;
+	int_params.push_back(version);
 	list<string> string_params;
 	string_params.push_back(uri);
-	addTask(play_next, "play_next", string_params);
+	audio_mark_play_requested();
+	addTask(play_next, "play_next", int_params, string_params);
 
 	je->ReleaseStringUTFChars(j_uri, uri);
 }
 
+JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_preload(JNIEnv *je, jclass jc, jstring j_uri, jint version) {
+	list<int> int_params;
+	int_params.push_back(version);
+	list<string> string_params;
+	if (j_uri == NULL) {
+		string_params.push_back("");
+	} else {
+		const char *uri = je->GetStringUTFChars(j_uri, 0);
+		string_params.push_back(uri);
+		je->ReleaseStringUTFChars(j_uri, uri);
+	}
+	addTask(preload, "preload", int_params, string_params);
+}
+
 JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_seek(JNIEnv *je, jclass jc, jfloat position) {
 	list<int> int_params;
 	int_params.push_back((int) (position * 100.0));
@@ -111,11 +154,118 @@ JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_seek(JNIEnv
 	addTask(seek, "seek", int_params);
 }
 
+// Must be called before init, the audio player is set up with these values
+JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_configureAudio(JNIEnv *je, jclass jc, jint slots, jint latency_ms) {
+	configure_audio(slots, latency_ms);
+}
+
+// Reads the counters of the audio path directly, without going through the libspotify thread
+JNIEXPORT jintArray JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_getAudioStats(JNIEnv *je, jclass jc) {
+	jint stats[AUDIO_STATS_COUNT];
+	get_audio_stats((int *) stats);
+	jintArray result = je->NewIntArray(AUDIO_STATS_COUNT);
+	if (result != NULL)
+		je->SetIntArrayRegion(result, 0, AUDIO_STATS_COUNT, stats);
+	return result;
+}
+
+JNIEXPORT jintArray JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_getAudioTelemetry(JNIEnv *je, jclass jc) {
+	jint telemetry[AUDIO_TELEMETRY_COUNT];
+	get_audio_telemetry((int *) telemetry);
+	jintArray result = je->NewIntArray(AUDIO_TELEMETRY_COUNT);
+	if (result != NULL)
+		je->SetIntArrayRegion(result, 0, AUDIO_TELEMETRY_COUNT, telemetry);
+	return result;
+}
+
+JNIEXPORT jintArray JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_getTaskStats(JNIEnv *je, jclass jc) {
+	jint stats[TASK_STATS_COUNT];
+	get_task_stats((int *) stats);
+	jintArray result = je->NewIntArray(TASK_STATS_COUNT);
+	if (result != NULL)
+		je->SetIntArrayRegion(result, 0, TASK_STATS_COUNT, stats);
+	return result;
+}
+
+JNIEXPORT jobject JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_getEventBuffer(JNIEnv *je, jclass jc) {
+	s_event_buffer[EVENT_HEADER_SLOTS] = EVENT_SLOTS;
+	return je->NewDirectByteBuffer(s_event_buffer, sizeof(s_event_buffer));
+}
+
+// Frees the slots java has handled and publishes the latest position in the header. Returns the position after
+// the last written event, java reads the slots up to there. Events written after this call schedule a new poll.
+JNIEXPORT jint JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_pollEvents(JNIEnv *je, jclass jc, jint handled) {
+	s_event_read = (uint32_t) handled;
+	s_event_scheduled = 0;
+	__sync_synchronize();
+	if (__sync_bool_compare_and_swap(&s_position_pending, 1, 0)) {
+		s_event_buffer[EVENT_HEADER_POSITION] = s_position_bits;
+		s_event_buffer[EVENT_HEADER_POSITION_PENDING] = 1;
+	} else {
+		s_event_buffer[EVENT_HEADER_POSITION_PENDING] = 0;
+	}
+	jint end = (jint) s_event_write;
+	__sync_synchronize();
+	return end;
+}
+
+JNIEXPORT jintArray JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_getEventStats(JNIEnv *je, jclass jc) {
+	jint stats[EVENT_STATS_COUNT];
+	get_event_stats((int *) stats);
+	jintArray result = je->NewIntArray(EVENT_STATS_COUNT);
+	if (result != NULL)
+		je->SetIntArrayRegion(result, 0, EVENT_STATS_COUNT, stats);
+	return result;
+}
+
 JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_destroy(JNIEnv *je, jclass jc) {
 	log("Cleanup native code");
 	addTask(destroy, "destroy");
 }
 
+// Calls java to poll the ring unless a poll already is scheduled
+static void schedule_event_poll() {
+	__sync_synchronize();
+	if (__sync_bool_compare_and_swap(&s_event_scheduled, 0, 1)) {
+		s_event_upcalls++;
+		call_static_void_method("onEventsPending");
+	}
+}
+
+void post_event(int type, int version) {
+	s_events_posted++;
+	if (s_event_write - s_event_read >= (uint32_t) EVENT_SLOTS) {
+		s_events_dropped++;
+		log("The event ring is full, dropping event %d", type);
+	} else {
+		uint32_t slot = s_event_write & (EVENT_SLOTS - 1);
+		s_event_buffer[EVENT_HEADER_INTS + EVENT_SLOTS + slot] = version;
+		s_event_buffer[EVENT_HEADER_INTS + slot] = type;
+		__sync_synchronize();
+		s_event_write++;
+	}
+	schedule_event_poll();
+}
+
+void post_position(float position) {
+	union {
+		float f;
+		jint i;
+	} bits;
+	bits.f = position;
+	s_events_posted++;
+	s_position_bits = bits.i;
+	__sync_synchronize();
+	s_position_pending = 1;
+	schedule_event_poll();
+}
+
+void get_event_stats(int *stats) {
+	stats[EVENT_STATS_POSTED] = s_events_posted;
+	stats[EVENT_STATS_UPCALLS] = s_event_upcalls;
+	stats[EVENT_STATS_DROPPED] = s_events_dropped;
+}
+
 // Helper for calling the specified static void/void java-method
 void call_static_void_method(const char *method_name) {
 	JNIEnv *env;
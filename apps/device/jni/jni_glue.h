@@ -30,12 +30,40 @@
 jclass find_class_from_native_thread(JNIEnv **envSetter);
 void call_static_void_method(const char *method_name);
 
+// The player events that are passed to java through the event ring, the values must match LibSpotifyWrapper
+enum {
+	EVENT_PLAY = 1,
+	EVENT_PAUSE = 2,
+	EVENT_END_OF_TRACK = 3
+};
+
+// Indexes of the values written by get_event_stats
+enum {
+	EVENT_STATS_POSTED,
+	EVENT_STATS_UPCALLS,
+	EVENT_STATS_DROPPED,
+	EVENT_STATS_COUNT
+};
+
+// Both must be called on the libspotify thread. The version is passed to java with the event, -1 if there is none
+void post_event(int type, int version = -1);
+void post_position(float position);
+void get_event_stats(int *stats);
+
 extern "C" {
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *jvm, void *reserved);
 JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_init(JNIEnv *je, jclass jc, jobject loader, jstring storage_path);
 JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_destroy(JNIEnv *je, jclass jc);
 JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_login(JNIEnv *je, jclass jc, jstring username, jstring password);
-JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_toggleplay(JNIEnv *je, jclass jc, jstring uri);
-JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_playnext(JNIEnv *je, jclass jc, jstring j_uri);
+JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_toggleplay(JNIEnv *je, jclass jc, jstring uri, jint version);
+JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_playnext(JNIEnv *je, jclass jc, jstring j_uri, jint version);
+JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_preload(JNIEnv *je, jclass jc, jstring j_uri, jint version);
 JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_seek(JNIEnv *je, jclass jc, jfloat position);
+JNIEXPORT void JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_configureAudio(JNIEnv *je, jclass jc, jint slots, jint latency_ms);
+JNIEXPORT jintArray JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_getAudioStats(JNIEnv *je, jclass jc);
+JNIEXPORT jintArray JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_getAudioTelemetry(JNIEnv *je, jclass jc);
+JNIEXPORT jintArray JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_getTaskStats(JNIEnv *je, jclass jc);
+JNIEXPORT jobject JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_getEventBuffer(JNIEnv *je, jclass jc);
+JNIEXPORT jint JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_pollEvents(JNIEnv *je, jclass jc, jint handled);
+JNIEXPORT jintArray JNICALL Java_se_chalmers_pd_device_LibSpotifyWrapper_getEventStats(JNIEnv *je, jclass jc);
 }
@@ -41,6 +41,16 @@ void log(const char *fmt, ...) {
 	va_end(args);
 }
 
+// Logs with error priority, for things that should not happen and will be noticed
+void log_error(const char *fmt, ...) {
+	va_list args;
+	va_start(args, fmt);
+	char buf[1000];
+	vsprintf(buf, fmt, args);
+	__android_log_print(ANDROID_LOG_ERROR, "Spotify", "%s, thread %d", buf, pthread_self());
+	va_end(args);
+}
+
 void logPlayback(const char *fmt, ...) {
 	va_list args;
 	va_start(args, fmt);
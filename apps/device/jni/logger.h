@@ -36,6 +36,7 @@
 #define COMMON_H_
 
 void log(const char *fmt, ...);
+void log_error(const char *fmt, ...);
 void exitl(const char *fmt, ...);
 void logPlayback(const char *fmt, ...);
 void logPlayTrack(const char *fmt, ...);
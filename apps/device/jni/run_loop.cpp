@@ -29,11 +29,22 @@
  * The main runloop handling libspotify events and posting tasks to libspotify.
  * There is a queue of tasks that will be processed in order. The loop will sleep
  * when there is no work to do.
+ *
+ * The queue is a bounded ring of preallocated task records with the parameters
+ * stored inline, so adding a task never allocates. Any thread can add tasks
+ * without a lock, a producer claims a record by moving the enqueue position with
+ * compare and swap and publishes it through the sequence number of the record.
+ * Only the libspotify thread takes tasks out. The mutex is only used to sleep and
+ * wake up the libspotify thread. A process_events task is only queued if there is
+ * none waiting already, since one run handles all pending events.
  */
 #include <pthread.h>
 #include <errno.h>
 #include <list>
 #include <string>
+#include <string.h>
+#include <stdint.h>
+#include <time.h>
 
 #include "run_loop.h"
 #include "logger.h"
@@ -48,54 +59,164 @@ int music_delivery(sp_session *sess, const sp_audioformat *format, const void *f
 // There is always only one track that can be played/paused
 static sp_track *s_track = NULL;
 
-// A task contains the function, parameters and a task name
+static const int QUEUE_SIZE = 128; // must be a power of two
+static const int MAX_INT_PARAMS = 4;
+static const int MAX_STRING_PARAMS = 2;
+static const int MAX_STRING_LENGTH = 256;
+
+// A task contains the function, parameters and a task name. The sequence tells if the record is free or filled
 struct Task {
+	volatile uint32_t sequence;
 	task_fptr fptr;
-	list<int> int_params;
-	list<string> string_params;
-	string name;
-
-	Task(task_fptr _fptr, string _name, list<int> _int_params, list<string> _string_params) :
-			fptr(_fptr), name(_name), int_params(_int_params), string_params(_string_params) {
-	}
+	const char *name;
+	int int_count;
+	int int_params[MAX_INT_PARAMS];
+	int string_count;
+	char string_params[MAX_STRING_PARAMS][MAX_STRING_LENGTH];
+	int64_t enqueued_us;
 };
 
 // The queue of tasks, thread safeness is important!
-static list<Task> s_tasks;
-// Mutex and condition for tasks and processing of tasks
+static Task s_tasks[QUEUE_SIZE];
+static volatile uint32_t s_enqueue_position = 0;
+static uint32_t s_dequeue_position = 0;
+static volatile int s_process_events_pending = 0;
+
+// Mutex and condition only used to sleep until there are tasks
 static pthread_mutex_t s_notify_mutex;
 static pthread_cond_t s_notify_cond;
+static volatile int s_sleeping = 0;
 
 // Keep track of next time sp_session_process_events should run
 static int s_next_timeout = 0;
 
+// Counters for get_task_stats
+static volatile uint32_t s_tasks_run = 0;
+static volatile uint32_t s_tasks_dropped = 0;
+static volatile uint32_t s_process_events_merged = 0;
+static volatile uint32_t s_max_depth = 0;
+static int64_t s_total_latency_us = 0;
+static volatile uint32_t s_max_latency_us = 0;
+
+static int64_t now_us() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (int64_t) ts.tv_sec * 1000000 + ts.tv_nsec / 1000;
+}
+
 void set_track(sp_track *track) {
 	s_track = track;
 }
 
-void addTask(task_fptr fptr, string name, list<int> int_params, list<string> string_params) {
-	log("Add task <%s> to the queue", name.c_str());
-	pthread_mutex_lock(&s_notify_mutex);
-	Task task(fptr, name, int_params, string_params);
-	s_tasks.push_back(task);
-	pthread_cond_signal(&s_notify_cond);
-	pthread_mutex_unlock(&s_notify_mutex);
+// Wakes up the libspotify thread if it sleeps. The barrier pairs with the one in wait_for_tasks so that either the
+// producer sees that the loop sleeps or the loop sees the new task
+static void wake_up_loop() {
+	__sync_synchronize();
+	if (s_sleeping) {
+		pthread_mutex_lock(&s_notify_mutex);
+		pthread_cond_signal(&s_notify_cond);
+		pthread_mutex_unlock(&s_notify_mutex);
+	}
 }
 
-void addTask(task_fptr fptr, string name, list<string> string_params) {
-	list<int> int_params;
-	addTask(fptr, name, int_params, string_params);
+static bool has_tasks() {
+	__sync_synchronize();
+	Task *task = &s_tasks[s_dequeue_position & (QUEUE_SIZE - 1)];
+	return task->sequence == s_dequeue_position + 1;
 }
 
-void addTask(task_fptr fptr, string name, list<int> int_params) {
-	list<string> string_params;
-	addTask(fptr, name, int_params, string_params);
+// Claims a free record and fills it, the caller provides the parameters
+static Task *claim_task() {
+	uint32_t position = s_enqueue_position;
+	while (true) {
+		Task *task = &s_tasks[position & (QUEUE_SIZE - 1)];
+		__sync_synchronize();
+		int32_t difference = (int32_t) task->sequence - (int32_t) position;
+		if (difference == 0) {
+			if (__sync_bool_compare_and_swap(&s_enqueue_position, position, position + 1))
+				return task;
+			position = s_enqueue_position;
+		} else if (difference < 0) {
+			return NULL; // the queue is full
+		} else {
+			position = s_enqueue_position;
+		}
+	}
+}
+
+static void publish_task(Task *task, uint32_t position) {
+	uint32_t depth = s_enqueue_position - s_dequeue_position;
+	if (depth > s_max_depth)
+		s_max_depth = depth;
+	__sync_synchronize();
+	task->sequence = position + 1;
+	wake_up_loop();
 }
 
-void addTask(task_fptr fptr, string name) {
+bool addTask(task_fptr fptr, const char *name, list<int> int_params, list<string> string_params) {
+	log("Add task <%s> to the queue", name);
+	Task *task = claim_task();
+	if (task == NULL) {
+		__sync_fetch_and_add(&s_tasks_dropped, 1);
+		log_error("Task queue is full, dropping <%s>", name);
+		return false;
+	}
+	uint32_t position = task->sequence;
+	task->fptr = fptr;
+	task->name = name;
+	task->int_count = 0;
+	for (list<int>::iterator it = int_params.begin(); it != int_params.end() && task->int_count < MAX_INT_PARAMS; it++)
+		task->int_params[task->int_count++] = *it;
+	task->string_count = 0;
+	for (list<string>::iterator it = string_params.begin(); it != string_params.end() && task->string_count < MAX_STRING_PARAMS; it++) {
+		if (it->size() >= (size_t) MAX_STRING_LENGTH)
+			log("Parameter of <%s> is too long and is cut to %d characters", name, MAX_STRING_LENGTH - 1);
+		strncpy(task->string_params[task->string_count], it->c_str(), MAX_STRING_LENGTH - 1);
+		task->string_params[task->string_count][MAX_STRING_LENGTH - 1] = '\0';
+		task->string_count++;
+	}
+	task->enqueued_us = now_us();
+	publish_task(task, position);
+	return true;
+}
+
+bool addTask(task_fptr fptr, const char *name, list<string> string_params) {
 	list<int> int_params;
+	return addTask(fptr, name, int_params, string_params);
+}
+
+bool addTask(task_fptr fptr, const char *name, list<int> int_params) {
 	list<string> string_params;
-	addTask(fptr, name, int_params, string_params);
+	return addTask(fptr, name, int_params, string_params);
+}
+
+// Adds a task without parameters, this does not allocate and is safe to call from the audio thread.
+// Nothing is logged when the queue is full, the caller decides if that is worth logging.
+bool addTask(task_fptr fptr, const char *name) {
+	Task *task = claim_task();
+	if (task == NULL) {
+		__sync_fetch_and_add(&s_tasks_dropped, 1);
+		return false;
+	}
+	uint32_t position = task->sequence;
+	task->fptr = fptr;
+	task->name = name;
+	task->int_count = 0;
+	task->string_count = 0;
+	task->enqueued_us = now_us();
+	publish_task(task, position);
+	return true;
+}
+
+void get_task_stats(int *stats) {
+	uint32_t run = s_tasks_run;
+	stats[TASK_STATS_DEPTH] = s_enqueue_position - s_dequeue_position;
+	stats[TASK_STATS_MAX_DEPTH] = s_max_depth;
+	stats[TASK_STATS_RUN] = run;
+	stats[TASK_STATS_DROPPED] = s_tasks_dropped;
+	stats[TASK_STATS_MERGED] = s_process_events_merged;
+	stats[TASK_STATS_AVERAGE_LATENCY_US] = run == 0 ? 0 : (int) (s_total_latency_us / run);
+	stats[TASK_STATS_MAX_LATENCY_US] = s_max_latency_us;
 }
 
 static void connection_error(sp_session *session, sp_error error) {
@@ -111,25 +232,43 @@ static void play_token_lost(sp_session *session) {
 
 // Tell java about the end of track
 static void end_of_track(sp_session *sess) {
-	addTask(on_player_end_of_track, "on_end_of_track");
+	if (!addTask(on_player_end_of_track, "on_end_of_track"))
+		log_error("Task queue is full, the end of the track is lost and playback will stop");
 }
 
 static void logged_in(sp_session *session, sp_error error) {
 	list<int> int_params;
 	int_params.push_back(error);
 
-	addTask(on_logged_in, "login_callback", int_params);
+	if (!addTask(on_logged_in, "login_callback", int_params))
+		log_error("Task queue is full, the result of the login is lost");
 }
 
 static void process_events(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track) {
+	// Events that come while processing need a new run
+	s_process_events_pending = 0;
+	__sync_synchronize();
 	do {
 		sp_session_process_events(session, &s_next_timeout);
 	} while (s_next_timeout == 0);
 }
 
+// Queue process_events unless it is already waiting in the queue
+static void add_process_events(const char *name) {
+	if (__sync_bool_compare_and_swap(&s_process_events_pending, 0, 1)) {
+		// Without the task nothing would ever clear the flag, so clear it here and let the next event try again
+		if (!addTask(process_events, name)) {
+			s_process_events_pending = 0;
+			__sync_synchronize();
+		}
+	} else {
+		__sync_fetch_and_add(&s_process_events_merged, 1);
+	}
+}
+
 // run process_events on the libspotify thread
 static void notify_main_thread(sp_session *session) {
-	addTask(process_events, "Notify main thread: process_events");
+	add_process_events("Notify main thread: process_events");
 }
 
 // Try to start the track again if it was loaded
@@ -150,45 +289,72 @@ static sp_session_callbacks callbacks = {
 	&end_of_track
 };
 
+// Sleeps until there is a task or the timeout of process_events has passed
+static void wait_for_tasks() {
+	pthread_mutex_lock(&s_notify_mutex);
+	s_sleeping = 1;
+	if (!has_tasks()) {
+		struct timespec ts;
+		clock_gettime(CLOCK_REALTIME, &ts);
+		struct timespec timer_start = ts;
+		ts.tv_sec += s_next_timeout / 1000;
+		ts.tv_nsec += (s_next_timeout % 1000) * 1000000;
+		if (ts.tv_nsec >= 1000000000) {
+			ts.tv_sec++;
+			ts.tv_nsec -= 1000000000;
+		}
+
+		log("Wait for new task or until %d ms", s_next_timeout);
+		int reason = pthread_cond_timedwait(&s_notify_cond, &s_notify_mutex, &ts);
+		s_sleeping = 0;
+		pthread_mutex_unlock(&s_notify_mutex);
+		// If timeout then process_events should be added to the queue
+		if (reason == ETIMEDOUT) {
+			add_process_events("Timeout: process events");
+		} else { // calculate a new timeout (assuming the tasks below takes 0 time)
+			struct timespec timer_end;
+			clock_gettime(CLOCK_REALTIME, &timer_end);
+			int delta = 0;
+			delta += (timer_end.tv_sec - timer_start.tv_sec) * 1000;
+			delta += (timer_end.tv_nsec - timer_start.tv_nsec) / 1000000;
+			s_next_timeout -= delta;
+		}
+		return;
+	}
+	s_sleeping = 0;
+	pthread_mutex_unlock(&s_notify_mutex);
+}
+
 // The main loop takes care of executing tasks on the libspotify thread.
 static void libspotify_loop(sp_session *session) {
+	list<int> int_params;
+	list<string> string_params;
 
 	while (true) {
-		pthread_mutex_lock(&s_notify_mutex);
-
-		// If no tasks then sleep until there is, or a timeout happens
-		if (s_tasks.size() == 0) {
-			struct timespec ts;
-			clock_gettime(CLOCK_REALTIME, &ts);
-			struct timespec timer_start = ts;
-			ts.tv_sec += s_next_timeout / 1000;
-			ts.tv_nsec += (s_next_timeout % 1000) * 1000000;
-
-			log("Wait for new task or until %d ms", s_next_timeout);
-			int reason = pthread_cond_timedwait(&s_notify_cond, &s_notify_mutex, &ts);
-			// If timeout then process_events should be added to the queue
-			if (reason == ETIMEDOUT) {
-				pthread_mutex_unlock(&s_notify_mutex);
-				addTask(process_events, "Timeout: process events");
-				pthread_mutex_lock(&s_notify_mutex);
-			} else { // calculate a new timeout (assuming the tasks below takes 0 time)
-				struct timespec timer_end;
-				clock_gettime(CLOCK_REALTIME, &timer_end);
-				int delta = 0;
-				delta += (timer_end.tv_sec - timer_start.tv_sec) * 1000;
-				delta += (timer_end.tv_nsec - timer_start.tv_nsec) / 1000000;
-				s_next_timeout -= delta;
-			}
-		}
-		// create a copy of the list of operations since other thread can manipulate it and clear the real one
-		list<Task> tasks_copy = s_tasks;
-		s_tasks.clear();
-		pthread_mutex_unlock(&s_notify_mutex);
-
-		for (list<Task>::iterator it = tasks_copy.begin(); it != tasks_copy.end(); it++) {
-			Task task = (*it);
-			log("Running task: %s", task.name.c_str());
-			task.fptr(task.int_params, task.string_params, session, s_track);
+		wait_for_tasks();
+
+		// run the tasks that are in the queue, records are handed back to the producers one by one
+		while (has_tasks()) {
+			Task *task = &s_tasks[s_dequeue_position & (QUEUE_SIZE - 1)];
+			int_params.clear();
+			string_params.clear();
+			for (int i = 0; i < task->int_count; i++)
+				int_params.push_back(task->int_params[i]);
+			for (int i = 0; i < task->string_count; i++)
+				string_params.push_back(task->string_params[i]);
+			task_fptr fptr = task->fptr;
+			const char *name = task->name;
+			uint32_t latency = (uint32_t) (now_us() - task->enqueued_us);
+			__sync_synchronize();
+			task->sequence = s_dequeue_position + QUEUE_SIZE;
+			s_dequeue_position++;
+
+			s_tasks_run++;
+			s_total_latency_us += latency;
+			if (latency > s_max_latency_us)
+				s_max_latency_us = latency;
+			log("Running task: %s", name);
+			fptr(int_params, string_params, session, s_track);
 		}
 	}
 }
@@ -198,6 +364,8 @@ void* start_spotify(void *storage_path) {
 
 	pthread_mutex_init(&s_notify_mutex, NULL);
 	pthread_cond_init(&s_notify_cond, NULL);
+	for (int i = 0; i < QUEUE_SIZE; i++)
+		s_tasks[i].sequence = i;
 
 	sp_session *session;
 	sp_session_config config;
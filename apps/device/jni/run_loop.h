@@ -38,10 +38,26 @@ typedef void (*task_fptr)(list<int> int_params, list<string> string_params, sp_s
 
 void set_track(sp_track *track);
 
-void addTask(task_fptr fptr, string name, list<float> int_params, list<string> string_params);
-void addTask(task_fptr fptr, string name, list<string> string_params);
-void addTask(task_fptr fptr, string name, list<int> int_params);
-void addTask(task_fptr fptr, string name);
+// The name must be a string literal, it is kept until the task has run.
+// Returns false if the queue is full and the task was dropped.
+bool addTask(task_fptr fptr, const char *name, list<int> int_params, list<string> string_params);
+bool addTask(task_fptr fptr, const char *name, list<string> string_params);
+bool addTask(task_fptr fptr, const char *name, list<int> int_params);
+bool addTask(task_fptr fptr, const char *name);
+
+// Indexes of the values written by get_task_stats
+enum {
+	TASK_STATS_DEPTH,
+	TASK_STATS_MAX_DEPTH,
+	TASK_STATS_RUN,
+	TASK_STATS_DROPPED,
+	TASK_STATS_MERGED,
+	TASK_STATS_AVERAGE_LATENCY_US,
+	TASK_STATS_MAX_LATENCY_US,
+	TASK_STATS_COUNT
+};
+
+void get_task_stats(int *stats);
 
 void* start_spotify(void *storage_location);
 
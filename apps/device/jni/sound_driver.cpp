@@ -28,14 +28,23 @@
 /**
  * Simple layer between libspotify and OpenSL.
  *
- * Libspotify delivers raw PCM data in the music_delivery callback. This data will be put in one of two buffers and
- * enqueued to openSL through the enqueu method. There is only two buffers and changing the size of them will affect the
- * application a lot. OpenSL will tell when it has consumed one buffer through the bqPlayerCallback callback. Since the buffers
- * are shared among two different threads (libspotify and internal openSL thread) they share a mutex. The size of the buffers are
- * used to notify when a buffer is filled. A buffer with a nonzero size is assumed to be filled.
+ * Libspotify delivers raw PCM data in the music_delivery callback. The data is written to a ring buffer that has room for
+ * twice the target latency. OpenSL plays a fixed number of enqueue slots, each holding one period of the target latency
+ * divided by the number of slots. When OpenSL has consumed a slot it tells so through the bqPlayerCallback callback, which
+ * moves the next period from the ring buffer to the free slot and enqueues it.
  *
- * The two buffers have a fixed size which could casue problems if libspotify is delivering more data then it fits. In this case the
- * parts that cant fit is rejected which casues sound-glitches, but should be rare if the buffers are big (half a second or more).
+ * The ring buffer has a single producer (libspotify) and a single consumer and no mutex. Each side only writes its own
+ * index, and memory barriers make sure the data is in place before the other side sees the index move. When the queue of
+ * slots has run dry the producer fills it instead of waiting for a callback that will not come, so the consumer side is
+ * guarded by a flag that is taken with compare and swap and never waited for. When the ring buffer is full music_delivery
+ * accepts only the frames that fit and libspotify delivers the rest again later, so no audio is dropped.
+ *
+ * The number of slots and the target latency are set with configure_audio before the player is initialized, so they can be
+ * tuned for each head unit. Underruns, overruns and the fill level are counted for get_audio_stats.
+ *
+ * get_audio_telemetry adds what is needed to follow the health of playback over time: a histogram of the fill level
+ * sampled every time a slot has been played, the frames of silence played because of underruns, how often and how much
+ * libspotify delivers, and the time from a play request to the first delivered frame.
  *
  * When intitializing the soundbuffer the PCM format is set in a static fasion. This should be changed if Spotify supports other PCM
  * formats.
@@ -43,6 +52,8 @@
 
 #include <assert.h>
 #include <pthread.h>
+#include <stdint.h>
+#include <time.h>
 // for native audio
 #include <SLES/OpenSLES.h>
 #include <SLES/OpenSLES_Android.h>
@@ -53,47 +64,111 @@
 #include "tasks.h"
 #include "run_loop.h"
 #include "logger.h"
+#include "sound_driver.h"
 
 static SLAndroidSimpleBufferQueueItf bqPlayerBufferQueue;
 
-// Size of the buffer in one second divided by SECOND_DEVIDER. Increase the number to make the buffer smaller.
-// Bigger buffers will produce slow feedback for actions like pause and seek.
-static const int SECOND_DEVIDER = 4;
 static const int SAMPLE_RATE = 44100;
-static const int SAMPLES_PER_BUFFER = SAMPLE_RATE / SECOND_DEVIDER;
-
 static const int NR_CHANNELS = 2;
+static const int FRAME_SIZE = sizeof(int16_t) * NR_CHANNELS;
+
+// Bigger latency will produce slow feedback for actions like pause and seek, smaller latency risks underruns
+static const int DEFAULT_SLOTS = 4;
+static const int DEFAULT_LATENCY_MS = 250;
+static const int MIN_SLOTS = 2;
+static const int MAX_SLOTS = 16;
+static const int MIN_LATENCY_MS = 20;
+static const int MAX_LATENCY_MS = 2000;
+
+static int s_slots = DEFAULT_SLOTS;
+static int s_latency_ms = DEFAULT_LATENCY_MS;
+static uint32_t s_period_frames = 0;
+
+// The ring buffer, the indexes count frames and only grow so that the fill level is write - read
+static int16_t *s_ring = NULL;
+static uint32_t s_ring_frames = 0;
+static uint32_t s_ring_mask = 0;
+static volatile uint32_t s_write_index = 0;
+static volatile uint32_t s_read_index = 0;
+
+// The enqueue slots, OpenSL plays them in order
+static int16_t *s_slot_buffers = NULL;
+static int s_next_slot = 0;
+static volatile int s_queued = 0;
+static volatile int s_consuming = 0;
+
+static volatile int s_playing = 0;
+static volatile uint32_t s_underruns = 0;
+static volatile uint32_t s_overruns = 0;
+
+// Telemetry, the histogram is only written by the openSL callback and the deliveries only by music_delivery
+static volatile uint32_t s_fill_histogram[AUDIO_FILL_BUCKETS];
+static volatile uint32_t s_dropped_frames = 0;
+static volatile uint32_t s_deliveries = 0;
+static volatile uint32_t s_delivered_frames = 0;
+static volatile int64_t s_underrun_started_ms = 0;
+// The time of the latest play request, and the same time once playback has started and waits for its first frame
+static volatile int64_t s_play_requested_ms = 0;
+static volatile int64_t s_first_frame_pending_ms = 0;
+static volatile int s_first_frame_ms = 0;
+static volatile int s_max_first_frame_ms = 0;
+
+static int64_t now_ms() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (int64_t) ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
 
-// Make buffers four times as big because we guess that music_delivery never delivers more
-// pcm data. If it does the overflowing data will not be put in the buffer, resulting in
-// temporary audio weirdness
-static const int BUFFER_SIZE = SAMPLES_PER_BUFFER * sizeof(int16_t) * NR_CHANNELS * 4;
-
-// The two sound buffers
-static int16_t buffer1[BUFFER_SIZE];
-static int16_t buffer2[BUFFER_SIZE];
-
-// buffers and sizes shared by libspotify and openSL
-static int buffer1_size = 0;
-static int buffer2_size = 0;
-static int position = 0;
-static short *next_buffer = buffer2;
-static int *current_buffer_size = &buffer1_size;
-static int *next_buffer_size = &buffer2_size;
-
-static pthread_mutex_t g_buffer_mutex;
+// Copies frames out of or into the ring buffer, wrapping around at the end
+static void copy_from_ring(int16_t *destination, uint32_t index, uint32_t frames) {
+	uint32_t start = index & s_ring_mask;
+	uint32_t first = (frames < s_ring_frames - start) ? frames : s_ring_frames - start;
+	memcpy(destination, s_ring + start * NR_CHANNELS, first * FRAME_SIZE);
+	memcpy(destination + first * NR_CHANNELS, s_ring, (frames - first) * FRAME_SIZE);
+}
 
-// Tell openSL to play the filled buffer and switch to filling the other buffer
-void enqueue(short *buffer, int size) {
-	// Play the buffer and flip to the other buffer
+static void copy_to_ring(uint32_t index, const int16_t *source, uint32_t frames) {
+	uint32_t start = index & s_ring_mask;
+	uint32_t first = (frames < s_ring_frames - start) ? frames : s_ring_frames - start;
+	memcpy(s_ring + start * NR_CHANNELS, source, first * FRAME_SIZE);
+	memcpy(s_ring, source + first * NR_CHANNELS, (frames - first) * FRAME_SIZE);
+}
 
-	logPlayback("Consume buffer %d", (buffer == buffer1) ? 1 : 2);
-	SLresult result = (*bqPlayerBufferQueue)->Enqueue(bqPlayerBufferQueue, buffer, size);
-	assert(SL_RESULT_SUCCESS != result);
+static bool can_enqueue() {
+	__sync_synchronize();
+	return s_queued < s_slots && s_write_index - s_read_index >= s_period_frames;
+}
 
-	current_buffer_size = (buffer == buffer1) ? &buffer1_size : &buffer2_size;
-	next_buffer = (buffer == buffer1) ? buffer2 : buffer1;
-	next_buffer_size = (buffer == buffer1) ? &buffer2_size : &buffer1_size;
+// Moves whole periods from the ring buffer to the free slots and tells openSL to play them. Both the producer and the
+// openSL callback call this, the one that does not get the flag returns at once since the other one does the work
+static void enqueue_periods() {
+	do {
+		if (!__sync_bool_compare_and_swap(&s_consuming, 0, 1))
+			return;
+		while (can_enqueue()) {
+			int16_t *slot = s_slot_buffers + s_next_slot * s_period_frames * NR_CHANNELS;
+			copy_from_ring(slot, s_read_index, s_period_frames);
+			__sync_synchronize();
+			s_read_index += s_period_frames;
+			__sync_fetch_and_add(&s_queued, 1);
+			SLresult result = (*bqPlayerBufferQueue)->Enqueue(bqPlayerBufferQueue, slot, s_period_frames * FRAME_SIZE);
+			if (SL_RESULT_SUCCESS != result) {
+				__sync_fetch_and_sub(&s_queued, 1);
+				log("Could not enqueue slot %d, error %d", s_next_slot, (int) result);
+				break;
+			}
+			logPlayback("Enqueued slot %d", s_next_slot);
+			// The output was silent since the underrun, count that time as dropped frames
+			int64_t underrun_started = s_underrun_started_ms;
+			if (underrun_started != 0) {
+				s_underrun_started_ms = 0;
+				s_dropped_frames += (uint32_t) ((now_ms() - underrun_started) * SAMPLE_RATE / 1000);
+			}
+			s_next_slot = (s_next_slot + 1) % s_slots;
+		}
+		__sync_lock_release(&s_consuming);
+		// Data or a free slot may have come while the flag was taken, and the other side gave up then
+	} while (can_enqueue());
 }
 
 int music_delivery(sp_session *sess, const sp_audioformat *format, const void *frames, int num_frames) {
@@ -102,85 +177,128 @@ int music_delivery(sp_session *sess, const sp_audioformat *format, const void *f
 		return 0; // Audio discontinuity, do nothing
 	}
 
-	pthread_mutex_lock(&g_buffer_mutex);
-
 	assert(format->channels == NR_CHANNELS);
 	assert(format->sample_rate == SAMPLE_RATE);
-	static short *current_buffer = buffer1;
-	static int *current_buffer_size = &buffer1_size;
-
-	// Fill the current buffer only if it has been consumed
-	if (*current_buffer_size == 0) {
-
-		static int total_samples = 0;
-
-		// fill the current buffer with frames
-		int size = num_frames * sizeof(int16_t) * format->channels;
-
-		// if we dont exceed buffer size then dont copy anything more into the buffer (should be rare) and will
-		// result in audio loss
-		if ((position + size) >= BUFFER_SIZE) {
-			log("Buffer to small... Buffer size %d, try to fill with size %d", BUFFER_SIZE, size);
-		} else {
-			memcpy(current_buffer + position, frames, size);
-			// advance by half the size because buffer1 is of size int16_t
-			position += size / sizeof(int16_t);
-			total_samples += num_frames;
-		}
 
-		// If one second of data has been filled that make it available to the consumer and start fill the other buffer
-		if (total_samples > SAMPLES_PER_BUFFER) {
-			int total_size = total_samples * sizeof(int16_t) * format->channels;
-
-			// play the buffer if both buffers are empty (no sound is playing)
-			if (buffer1_size == 0 && buffer2_size == 0) {
-				logPlayback("No sound, play buffer %d", (current_buffer == buffer1) ? 1 : 2);
-				enqueue(current_buffer, total_size);
-			} else {
-				// Make it possible for the consumer to use this buffer
-				logPlayback("Produced buffer %d", (current_buffer == buffer1) ? 1 : 2);
-			}
-			*current_buffer_size = total_size;
-
-			total_samples = 0;
-			position = 0;
+	s_deliveries++;
+	int64_t requested = s_first_frame_pending_ms;
+	if (requested != 0 && __sync_bool_compare_and_swap(&s_first_frame_pending_ms, requested, 0)) {
+		int first_frame_ms = (int) (now_ms() - requested);
+		s_first_frame_ms = first_frame_ms;
+		if (first_frame_ms > s_max_first_frame_ms)
+			s_max_first_frame_ms = first_frame_ms;
+		logPlayback("First frame %d ms after the play request", first_frame_ms);
+	}
 
-			// start fill the next buffer
-			current_buffer_size = (current_buffer == buffer1) ? &buffer2_size : &buffer1_size;
-			current_buffer = (current_buffer == buffer1) ? buffer2 : buffer1;
-		}
-	} else {
-		// if both buffers are filled then tell libspotify it cant get more.
-		logPlayback("Both buffers are filled");
-		num_frames = 0;
+	__sync_synchronize();
+	uint32_t write = s_write_index;
+	uint32_t free_frames = s_ring_frames - (write - s_read_index);
+	uint32_t accepted = ((uint32_t) num_frames < free_frames) ? num_frames : free_frames;
+	if (accepted < (uint32_t) num_frames) {
+		__sync_fetch_and_add(&s_overruns, 1);
+		logPlayback("Ring buffer is full, accepted %d of %d frames", accepted, num_frames);
 	}
-	pthread_mutex_unlock(&g_buffer_mutex);
-	return num_frames;
 
+	copy_to_ring(write, (const int16_t *) frames, accepted);
+	// the frames must be in place before the consumer sees the index move
+	__sync_synchronize();
+	s_write_index = write + accepted;
+	s_delivered_frames += accepted;
+
+	enqueue_periods();
+	return accepted;
 }
 
-// this callback handler is called every time a buffer finishes playing
+// this callback handler is called every time a slot finishes playing
 void bqPlayerCallback(SLAndroidSimpleBufferQueueItf bq, void *context) {
-	static int player_position = 0;
-	static int counter = 0;
-	pthread_mutex_lock(&g_buffer_mutex);
+	static uint32_t played_frames = 0;
 	assert(bq == bqPlayerBufferQueue);
 	assert(NULL == context);
 
-	// reset the buffer that was played so it can be filled again
-	*current_buffer_size = 0;
-	logPlayback("Buffer %d has been consumed", (next_buffer == buffer1) ? 2 : 1);
+	__sync_fetch_and_sub(&s_queued, 1);
+	enqueue_periods();
+	__sync_synchronize();
+	if (s_queued == 0 && s_playing) {
+		__sync_fetch_and_add(&s_underruns, 1);
+		if (s_underrun_started_ms == 0)
+			s_underrun_started_ms = now_ms();
+		logPlayback("Underrun, there is no slot left to play");
+	}
+
+	uint32_t buffered = (s_write_index - s_read_index) + s_queued * s_period_frames;
+	uint32_t bucket = (uint32_t) ((uint64_t) buffered * AUDIO_FILL_BUCKETS / (s_ring_frames + s_slots * s_period_frames));
+	s_fill_histogram[bucket < AUDIO_FILL_BUCKETS ? bucket : AUDIO_FILL_BUCKETS - 1]++;
+
+	played_frames += s_period_frames;
+	if (played_frames >= (uint32_t) SAMPLE_RATE) {
+		played_frames -= SAMPLE_RATE;
+		addTask(on_player_position_changed, "player_position_changed");
+	}
+}
+
+void configure_audio(int slots, int latency_ms) {
+	if (s_ring != NULL) {
+		log("The audio player is already initialized, keeping %d slots and %d ms", s_slots, s_latency_ms);
+		return;
+	}
+	s_slots = (slots < MIN_SLOTS) ? MIN_SLOTS : (slots > MAX_SLOTS) ? MAX_SLOTS : slots;
+	s_latency_ms = (latency_ms < MIN_LATENCY_MS) ? MIN_LATENCY_MS : (latency_ms > MAX_LATENCY_MS) ? MAX_LATENCY_MS : latency_ms;
+}
 
-	// play next buffer if ready and then flip to the other buffer
-	if (*next_buffer_size != 0) {
-		enqueue(next_buffer, *next_buffer_size);
+void audio_set_playing(bool playing) {
+	s_playing = playing ? 1 : 0;
+	if (playing) {
+		// frames of the previous track may still come before the player starts, so the wait starts here
+		s_first_frame_pending_ms = s_play_requested_ms;
 	} else {
-		logPlayback("There is no new buffer to consume?");
+		// a pause is not an underrun
+		s_underrun_started_ms = 0;
+		s_first_frame_pending_ms = 0;
 	}
-	pthread_mutex_unlock(&g_buffer_mutex);
-	if (counter % SECOND_DEVIDER == 0)
-		addTask(on_player_position_changed, "player_position_changed");
-	counter++;
+	s_play_requested_ms = 0;
+	__sync_synchronize();
+}
+
+void audio_mark_play_requested() {
+	s_play_requested_ms = now_ms();
+	__sync_synchronize();
+}
+
+void get_audio_stats(int *stats) {
+	__sync_synchronize();
+	uint32_t buffered = (s_write_index - s_read_index) + s_queued * s_period_frames;
+	stats[AUDIO_STATS_UNDERRUNS] = s_underruns;
+	stats[AUDIO_STATS_OVERRUNS] = s_overruns;
+	stats[AUDIO_STATS_FILL_MS] = (int) ((uint64_t) buffered * 1000 / SAMPLE_RATE);
+	stats[AUDIO_STATS_LATENCY_MS] = s_latency_ms;
+	stats[AUDIO_STATS_SLOTS] = s_slots;
+}
+
+void get_audio_telemetry(int *telemetry) {
+	__sync_synchronize();
+	for (int i = 0; i < AUDIO_FILL_BUCKETS; i++)
+		telemetry[i] = s_fill_histogram[i];
+	telemetry[AUDIO_TELEMETRY_UNDERRUNS] = s_underruns;
+	telemetry[AUDIO_TELEMETRY_DROPPED_FRAMES] = s_dropped_frames;
+	telemetry[AUDIO_TELEMETRY_DELIVERIES] = s_deliveries;
+	telemetry[AUDIO_TELEMETRY_DELIVERED_FRAMES] = s_delivered_frames;
+	telemetry[AUDIO_TELEMETRY_FIRST_FRAME_MS] = s_first_frame_ms;
+	telemetry[AUDIO_TELEMETRY_MAX_FIRST_FRAME_MS] = s_max_first_frame_ms;
+}
+
+// Allocates the ring buffer with room for twice the target latency, rounded up to a power of two
+static void allocate_buffers() {
+	s_period_frames = (uint32_t) s_latency_ms * SAMPLE_RATE / 1000 / s_slots;
+	s_ring_frames = 1;
+	while (s_ring_frames < 2 * s_period_frames * s_slots)
+		s_ring_frames <<= 1;
+	s_ring_mask = s_ring_frames - 1;
+	s_ring = new int16_t[s_ring_frames * NR_CHANNELS];
+	s_slot_buffers = new int16_t[s_slots * s_period_frames * NR_CHANNELS];
+	s_write_index = 0;
+	s_read_index = 0;
+	s_queued = 0;
+	s_next_slot = 0;
 }
 
 static SLObjectItf engineObject = NULL;
@@ -191,7 +309,7 @@ static SLObjectItf bqPlayerObject = NULL;
 static SLPlayItf bqPlayerPlay;
 void init_audio_player() {
 
-	pthread_mutex_init(&g_buffer_mutex, NULL);
+	allocate_buffers();
 
 	// create engine
 	SLresult result;
@@ -213,7 +331,7 @@ void init_audio_player() {
 	assert(SL_RESULT_SUCCESS == result);
 
 	// The source is the buffer
-	SLDataLocator_AndroidSimpleBufferQueue loc_bufq = { SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE, 2 };
+	SLDataLocator_AndroidSimpleBufferQueue loc_bufq = { SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE, (SLuint32) s_slots };
 	SLDataFormat_PCM format_pcm = { SL_DATAFORMAT_PCM, 2, SL_SAMPLINGRATE_44_1, SL_PCMSAMPLEFORMAT_FIXED_16, SL_PCMSAMPLEFORMAT_FIXED_16,
 			SL_SPEAKER_FRONT_LEFT | SL_SPEAKER_FRONT_RIGHT, SL_BYTEORDER_LITTLEENDIAN };
 	SLDataSource audioSrc = { &loc_bufq, &format_pcm };
@@ -244,7 +362,7 @@ void init_audio_player() {
 	// set the player's state to playing
 	result = (*bqPlayerPlay)->SetPlayState(bqPlayerPlay, SL_PLAYSTATE_PLAYING );
 
-	log("OpenSL was initiated with 16 bit 44100 samplerate and 2 channels");
+	log("OpenSL was initiated with 16 bit 44100 samplerate and 2 channels, %d slots of %d frames", s_slots, s_period_frames);
 
 }
 
@@ -271,4 +389,9 @@ void destroy_audio_player() {
 		engineObject = NULL;
 		engineEngine = NULL;
 	}
+
+	delete[] s_ring;
+	delete[] s_slot_buffers;
+	s_ring = NULL;
+	s_slot_buffers = NULL;
 }
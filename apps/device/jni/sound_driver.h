@@ -35,7 +35,38 @@
 #ifndef SOUND_DRIVER_H_
 #define SOUND_DRIVER_H_
 
+// Indexes of the values written by get_audio_stats
+enum {
+	AUDIO_STATS_UNDERRUNS,
+	AUDIO_STATS_OVERRUNS,
+	AUDIO_STATS_FILL_MS,
+	AUDIO_STATS_LATENCY_MS,
+	AUDIO_STATS_SLOTS,
+	AUDIO_STATS_COUNT
+};
+
+// Number of buckets of the fill histogram, each covers an equal share of the ring buffer
+#define AUDIO_FILL_BUCKETS 8
+
+// Indexes of the values written by get_audio_telemetry, the fill histogram comes first
+enum {
+	AUDIO_TELEMETRY_UNDERRUNS = AUDIO_FILL_BUCKETS,
+	AUDIO_TELEMETRY_DROPPED_FRAMES,
+	AUDIO_TELEMETRY_DELIVERIES,
+	AUDIO_TELEMETRY_DELIVERED_FRAMES,
+	AUDIO_TELEMETRY_FIRST_FRAME_MS,
+	AUDIO_TELEMETRY_MAX_FIRST_FRAME_MS,
+	AUDIO_TELEMETRY_COUNT
+};
+
+void configure_audio(int slots, int latency_ms);
 void init_audio_player();
 void destroy_audio_player();
+void audio_set_playing(bool playing);
+void get_audio_stats(int *stats);
+void get_audio_telemetry(int *telemetry);
+// Marks that playback was requested, the time until the first frame is delivered after the player has started is
+// measured from here
+void audio_mark_play_requested();
 
 #endif /* SOUND_DRIVER_H_ */
@@ -36,10 +36,22 @@
 
 static int s_player_position = 0;
 static string s_current_uri;
+// The version of the playlist that java passed with the current track, posted with its end of track
+static int s_current_version = -1;
 static bool s_is_playing = false;
 static bool s_is_waiting_for_metadata = false;
 static bool s_play_after_loaded = false;
 
+// The track that comes after the current one, loaded ahead so that the player
+// can switch to it by itself at the end of the current track
+static sp_track *s_next_track = NULL;
+static string s_next_uri;
+static int s_next_version = -1;
+static bool s_next_prefetched = false;
+// Set when the player switched track by itself, the play_next that java sends
+// for the same track afterwards is then already done
+static bool s_switched_locally = false;
+
 static void on_pause();
 static void on_play();
 
@@ -55,6 +67,7 @@ static void play_track(sp_session *session, sp_track *track) {
 	//unmute(opensl);
 	sp_session_player_play(session, true);
 	s_is_playing = true;
+	audio_set_playing(true);
 	on_play();
 }
 
@@ -65,12 +78,70 @@ static void load_and_play_track(sp_session *session, sp_track *track) {
 		play_track(session, track);
 }
 
+// Starts buffering the next track as soon as its metadata is available
+static void prefetch_next_track(sp_session *session) {
+	if (s_next_track != NULL && !s_next_prefetched && sp_track_is_loaded(s_next_track)) {
+		sp_session_player_prefetch(session, s_next_track);
+		s_next_prefetched = true;
+	}
+}
+
+static void release_next_track() {
+	if (s_next_track != NULL)
+		sp_track_release(s_next_track);
+	s_next_track = NULL;
+	s_next_uri.clear();
+	s_next_prefetched = false;
+}
+
 // Load the track if the metadata update was concerning the track
 void load_and_play_track_after_metadata_updated(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track) {
 	if (s_is_waiting_for_metadata == true && sp_track_is_loaded(track)) {
 		s_is_waiting_for_metadata = false;
 		load_and_play_track(session, track);
 	}
+	prefetch_next_track(session);
+}
+
+// Remember the track that comes next and load its metadata and first audio. An empty uri means there is no next track
+void preload(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track) {
+	string uri = string_params.front();
+	s_next_version = int_params.front();
+	if (uri == s_next_uri)
+		return;
+	release_next_track();
+	if (uri.empty())
+		return;
+	sp_link *link = sp_link_create_from_string(uri.c_str());
+	if (link == NULL)
+		return;
+	s_next_track = sp_link_as_track(link);
+	sp_track_add_ref(s_next_track);
+	sp_link_release(link);
+	s_next_uri = uri;
+	prefetch_next_track(session);
+}
+
+// Switch to the preloaded track at the end of the current one without waiting for java
+static void switch_to_next_track(sp_session *session, sp_track *track) {
+	if (s_next_track == NULL || !s_next_prefetched)
+		return;
+	if (track != NULL) {
+		sp_session_player_unload(session);
+		sp_track_release(track);
+	}
+	track = s_next_track;
+	s_next_track = NULL;
+	s_next_prefetched = false;
+	set_track(track);
+	s_current_uri = s_next_uri;
+	s_current_version = s_next_version;
+	s_next_uri.clear();
+	s_player_position = 0;
+	s_switched_locally = true;
+	sp_session_player_load(session, track);
+	if (s_is_playing)
+		sp_session_player_play(session, true);
 }
 
 // Loads track if metadata exists, otherwise load the metadata
@@ -98,6 +169,12 @@ static void load_track_or_metadata(sp_session *session, sp_track *track, const c
 // Play a new track. It will only play the song if the previous song was playing
 void play_next(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track) {
 	string uri = string_params.front();
+	s_current_version = int_params.front();
+	if (s_switched_locally) {
+		s_switched_locally = false;
+		if (uri == s_current_uri)
+			return;
+	}
 	s_play_after_loaded = s_is_playing;
 	load_track_or_metadata(session, track, uri.c_str());
 }
@@ -107,6 +184,7 @@ void toggle_play(list<int> int_params, list<string> string_params, sp_session *s
 	string uri = string_params.front();
 
 	if (!s_is_playing) {
+		s_current_version = int_params.front();
 		// just resume if its the same uri (current_uri is only set if the track has been loaded into the player)
 		if (uri == s_current_uri)
 			play_track(session, track);
@@ -121,6 +199,7 @@ void toggle_play(list<int> int_params, list<string> string_params, sp_session *s
 void pause(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track) {
 	if (s_is_playing) {
 		s_is_playing = false;
+		audio_set_playing(false);
 		sp_session_player_play(session, false);
 		//mute(opensl);
 		on_player_pause(int_params, string_params, session, track);
@@ -144,13 +223,7 @@ void on_player_position_changed(list<int> int_params, list<string> string_params
 
 	int total_length = sp_track_duration(track) / 1000;
 	float percentage = (float)s_player_position / (float)total_length;
-
-	JNIEnv *env;
-	jclass classLibSpotify = find_class_from_native_thread(&env);
-
-	jmethodID methodId = env->GetStaticMethodID(classLibSpotify,"onPlayerPositionChanged","(F)V");
-	env->CallStaticVoidMethod(classLibSpotify, methodId, percentage);
-	env->DeleteLocalRef(classLibSpotify);
+	post_position(percentage);
 }
 
 void on_end_of_track(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track) {
@@ -173,19 +246,24 @@ void on_player_pause(list<int> int_params, list<string> string_params, sp_sessio
 	on_pause();
 }
 
+// Tells java which track ended by the version java passed with it, java may already have moved on from it and then
+// ignores the event
 void on_player_end_of_track(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track) {
-	call_static_void_method("onPlayerEndOfTrack");
+	int ended = s_current_version;
+	switch_to_next_track(session, track);
+	post_event(EVENT_END_OF_TRACK, ended);
 }
 
 void destroy(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track) {
+	release_next_track();
 	sp_session_release(session);
 	destroy_audio_player();
 }
 
 static void on_pause() {
-	call_static_void_method("onPlayerPause");
+	post_event(EVENT_PAUSE);
 }
 static void on_play() {
-	call_static_void_method("onPlayerPlay");
+	post_event(EVENT_PLAY);
 }
 
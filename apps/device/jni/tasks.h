@@ -47,6 +47,7 @@ void toggle_play(list<int> int_params, list<string> string_params, sp_session *s
 void play_next(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track);
 void pause(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track);
 void seek(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track);
+void preload(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track);
 void load_and_play_track_after_metadata_updated(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track);
 void destroy(list<int> int_params, list<string> string_params, sp_session *session, sp_track *track);
 
@@ -18,5 +18,18 @@ public enum Action {
 	add_all,
     get_all,
     seek,
+    state,
+    clock,
+    snapshot,
+    op,
+    ops,
+    get_ops,
+    get_range,
+    range,
+    diagnostics,
+    shuffle,
+    repeat,
+    jump,
+    get_snapshot,
 	NONE;
 }
@@ -7,6 +7,8 @@ import org.json.JSONObject;
 import se.chalmers.pd.device.MqttWorker.MQTTCallback;
 import se.chalmers.pd.device.SpotifyController.PlaylistCallback;
 import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -49,17 +51,63 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
 	private MqttWorker mqttWorker;
 	private SpotifyController spotifyController;
 	private Callbacks callbacks;
+	private Handler handler;
+	private volatile PlaybackState playbackState;
+	private PlaybackDiagnostics diagnostics;
+    private static final long HEARTBEAT_MILLIS = 15000,
+                              DIAGNOSTICS_MILLIS = 30000,
+                              DRIFT_TOLERANCE_MILLIS = 2000;
+    private static final int SNAPSHOT_WINDOW = 100,
+                             MAX_RANGE = 500,
+                             MAX_SKIP = 100;
     private final String TOPIC_PLAYLIST = "/playlist",
                          TOPIC_PLAYLIST_1 = "/playlist/1",
+                         TOPIC_STATE = "/playlist/state",
+                         TOPIC_SNAPSHOT = "/playlist/snapshot",
+                         TOPIC_OPS = "/playlist/ops",
                          TOPIC_INFOTAINMENT = "/sensor/infotainment",
                          TOPIC_SYSTEM = "/system",
+                         TOPIC_DIAGNOSTICS = "/diagnostics/device",
                          PLAYLIST_ZIP = "Playlist.zip",
                          PLAYLIST_NAME = "playlist",
                          DATA = "data",
                          ARTIST = "artist",
                          TRACK = "track",
                          TRACK_LENGTH = "tracklength",
-                         URI = "uri";
+                         URI = "uri",
+                         VERSION = "version",
+                         TRACKS = "tracks",
+                         TOPIC = "topic",
+                         TOTAL = "total",
+                         OFFSET = "offset",
+                         COUNT = "count",
+                         ELEMENT_ID = "id",
+                         AFTER = "after",
+                         FROM = "from",
+                         CLOCK_ID = "id",
+                         CLOCK_SENT = "sent",
+                         CLOCK_DEVICE = "device";
+
+    /**
+     * Republishes the playback state at a slow pace so that clients that missed
+     * a change, or drifted, get back in sync without a request.
+     */
+    private final Runnable heartbeat = new Runnable() {
+        public void run() {
+            updatePlaybackState(getCurrentPosition());
+            handler.postDelayed(this, HEARTBEAT_MILLIS);
+        }
+    };
+
+    /**
+     * Publishes the playback diagnostics at a fixed pace while connected
+     */
+    private final Runnable diagnosticsReport = new Runnable() {
+        public void run() {
+            publishDiagnostics();
+            handler.postDelayed(this, DIAGNOSTICS_MILLIS);
+        }
+    };
 
 	public ApplicationController(Context context) {
 
@@ -67,6 +115,9 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
 		this.callbacks = (Callbacks) context;
 		spotifyController = new SpotifyController(this, context);
         mqttWorker = new MqttWorker(this);
+        handler = new Handler();
+        playbackState = new PlaybackState("", 0, false, SystemClock.elapsedRealtime());
+        diagnostics = new PlaybackDiagnostics();
 	}
 
 	/**
@@ -81,7 +132,7 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
 				"spotify:track:330r0K82tIDVr6f1GezAd8" };
 		int[] lengths = { 270, 170, 200};
 		for (int i = 0; i < 3; i++) {
-			Track track = new Track(tracks[i], artists[i], uris[i], lengths[i]);
+			Track track = TrackRegistry.getInstance().obtain(tracks[i], artists[i], uris[i], lengths[i]);
 			newPlaylist.add(track);
 		}
         sendAllTracks(TOPIC_PLAYLIST, newPlaylist);
@@ -114,6 +165,7 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
 	 */
 	public void onPlay(boolean success) {
 		if (success) {
+			updatePlaybackState(getCurrentPosition());
 			callbacks.onPlayerPlay();
 		}
 
@@ -123,14 +175,42 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
 	 * Callback that is called when a song has succesfully paused playing
 	 */
 	public void onPause(boolean success) {
+		if (success) {
+			updatePlaybackState(getCurrentPosition());
+		}
 		callbacks.onPlayerPause();
 	}
 
 	/**
-	 * Callback that is called when a song has ended and calls the functon next
+	 * Callback that is called when a song has ended. The player has already
+	 * switched to the preloaded track if it could, so the playlist moves to the
+	 * next track here and next is only published as a notification. It carries
+	 * the entry that ended and the version that the playlist got from it, so
+	 * that this device does not apply its own message again.
+	 * 
+	 * If the entry that the player played is no longer the current one, or was
+	 * played again since, the playlist has already moved on, for example by a
+	 * next from a user just before the end, and the player plays the track of
+	 * the playlist, so nothing is skipped.
+	 * 
+	 * @param endedVersion
+	 *            the version that the player was given with the track that ended
 	 */
-	public void onEndOfTrack() {
-		createAndPublishPlayerActions(Action.next);
+	public void onEndOfTrack(int endedVersion) {
+		ElementId ended = spotifyController.playNextAfter(endedVersion);
+		if (ended == null) {
+			return;
+		}
+		updatePlaybackState(0);
+		publishSnapshot();
+		JSONObject json = createJson(Action.next, "");
+		try {
+			json.put(FROM, ended.toString());
+			json.put(VERSION, spotifyController.getOperationLog().getVersion());
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		mqttWorker.publish(TOPIC_PLAYLIST, json.toString());
 		callbacks.onPlayerNext();
 	}
 
@@ -139,6 +219,8 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
 	 * threads from crashing
 	 */
 	public void onDestroy() {
+		handler.removeCallbacks(heartbeat);
+		handler.removeCallbacks(diagnosticsReport);
 		spotifyController.destroy();
 		mqttWorker.disconnect();
 	}
@@ -156,6 +238,8 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
 	 * Disconnects from the mqtt broker
 	 */
 	public void disconnect() {
+		handler.removeCallbacks(heartbeat);
+		handler.removeCallbacks(diagnosticsReport);
 		mqttWorker.disconnect();
         mqttWorker.interrupt();
 	}
@@ -184,12 +268,96 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
 
     /**
      * Callback from spotifycontroller that allows us to simulate
-     * timer.
+     * timer. The position is only published if the position that the
+     * clients extrapolate has drifted too far from the real one.
      * @param position
      */
 	public void onPositionChanged(float position) {
 		callbacks.onUpdateSeekbar(position);
+		Track track = spotifyController.getCurrentTrack();
+		if (track != null && spotifyController.isPlaying()) {
+			long reported = (long) (position * track.getLength() * 1000);
+			if (Math.abs(reported - getCurrentPosition()) > DRIFT_TOLERANCE_MILLIS) {
+				updatePlaybackState(reported);
+			}
+		}
 	}
+
+    /**
+     * Extrapolates the position of the current track from the last published
+     * playback state.
+     * @return the position in milliseconds
+     */
+    private long getCurrentPosition() {
+        return playbackState.getPositionAt(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Creates a new playback state from the current track and the given position
+     * and publishes it on the state topic.
+     * @param position the position in the current track in milliseconds
+     */
+    private void updatePlaybackState(long position) {
+        Track track = spotifyController.getCurrentTrack();
+        String uri = track != null ? track.getUri() : "";
+        playbackState = new PlaybackState(uri, position, spotifyController.isPlaying(), SystemClock.elapsedRealtime());
+        publishPlaybackState();
+    }
+
+    /**
+     * Publishes the latest playback state on the state topic
+     */
+    private void publishPlaybackState() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put(Action.action.toString(), Action.state.toString());
+            json.put(DATA, playbackState.toJson());
+            mqttWorker.publish(TOPIC_STATE, json.toString());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Publishes what the audio pipeline, the native run loop, the cpu and the
+     * network have done since the last report on the diagnostics topic.
+     */
+    private void publishDiagnostics() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put(Action.action.toString(), Action.diagnostics.toString());
+            json.put(DATA, diagnostics.collect());
+            mqttWorker.publish(TOPIC_DIAGNOSTICS, json.toString());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Answers a clock request from a client with the current device time. The
+     * client uses the time it sent the request and the time it got the answer to
+     * calculate its offset to the device clock. The current state is published
+     * right after so that a newly connected client can start extrapolating.
+     * @param request the data of the clock request with the client id and send time
+     */
+    private void answerClockRequest(JSONObject request) {
+        if (request == null) {
+            return;
+        }
+        JSONObject response = new JSONObject();
+        JSONObject json = new JSONObject();
+        try {
+            response.put(CLOCK_ID, request.optString(CLOCK_ID));
+            response.put(CLOCK_SENT, request.optLong(CLOCK_SENT));
+            response.put(CLOCK_DEVICE, SystemClock.elapsedRealtime());
+            json.put(Action.action.toString(), Action.clock.toString());
+            json.put(DATA, response);
+            mqttWorker.publish(TOPIC_STATE, json.toString());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        publishPlaybackState();
+    }
 	
 	/**
 	 * Callback from Mqttworker thath handles all action-messages and performs
@@ -208,6 +376,7 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
 			switch (Action.valueOf(action)) {
 			case add:
 				addJsonTrackToPlaylist(json);
+				publishSnapshot();
 				break;
 			case play:
 				spotifyController.play();
@@ -216,11 +385,21 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
 				spotifyController.pause();
 				break;
 			case next:
-				spotifyController.playNext();
+				if (!isCurrentEntry(json)) {
+					break;
+				}
+				spotifyController.playNext(getSkipCount(json));
+				updatePlaybackState(0);
+				publishSnapshot();
 				callbacks.onPlayerNext();
 				break;
             case prev:
-                spotifyController.playPrevious();
+                if (!isCurrentEntry(json)) {
+                    break;
+                }
+                spotifyController.playPrevious(getSkipCount(json));
+                updatePlaybackState(0);
+                publishSnapshot();
                 callbacks.onPlayerNext();
                 break;
 			case install:
@@ -239,6 +418,8 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
 			case stop:
                 spotifyController.pause();
                 spotifyController.clearPlaylist();
+                updatePlaybackState(0);
+                publishSnapshot();
                 callbacks.onStartedApplication(action);
 				break;
 			case uninstall:
@@ -257,9 +438,41 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
 					jsonTrack = new JSONObject(playlistArray.get(i).toString());
 					addJsonTrackToPlaylist(jsonTrack);
 				}
+				publishSnapshot();
 				break;
             case seek:
-                 spotifyController.seek(Float.parseFloat(data));
+                 float fraction = Float.parseFloat(data);
+                 spotifyController.seek(fraction);
+                 Track current = spotifyController.getCurrentTrack();
+                 if (current != null) {
+                     updatePlaybackState((long) (fraction * current.getLength() * 1000));
+                 }
+                 break;
+            case clock:
+                 answerClockRequest(json.optJSONObject(DATA));
+                 break;
+            case get_ops:
+                 sendOperations(json.optJSONObject(DATA));
+                 break;
+            case get_range:
+                 sendRange(json.optJSONObject(DATA));
+                 break;
+            case get_snapshot:
+                 sendSnapshot(json.optJSONObject(DATA));
+                 break;
+            case shuffle:
+                 spotifyController.setShuffle(Boolean.parseBoolean(data));
+                 publishSnapshot();
+                 break;
+            case repeat:
+                 setRepeatMode(data);
+                 break;
+            case jump:
+                 if (spotifyController.jumpTo(ElementId.parse(data))) {
+                     updatePlaybackState(0);
+                     publishSnapshot();
+                     callbacks.onPlayerNext();
+                 }
                  break;
 			}
 			
@@ -278,11 +491,42 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
 		String artist = jsonTrack.optString(ARTIST);
 		String spotifyUri = jsonTrack.optString(URI);
 		int length = jsonTrack.optInt(TRACK_LENGTH);
-		Track newTrack = new Track(name, artist, spotifyUri, length);
-		spotifyController.addTrackToPlaylist(newTrack);
+		Track newTrack = TrackRegistry.getInstance().obtain(name, artist, spotifyUri, length);
+		ElementId id = ElementId.parse(jsonTrack.optString(ELEMENT_ID, null));
+		ElementId after = ElementId.parse(jsonTrack.optString(AFTER, null));
+		spotifyController.addTrackToPlaylist(newTrack, id, after);
         callbacks.onUpdatedPlaylist();
 	}
 
+    /**
+     * A client that skips a track says which entry it saw as the current one.
+     * If another client has skipped in the meantime the skip is ignored, so two
+     * users pressing next at the same time skip one track and not two. Messages
+     * without an entry, like the ones from the web application, always skip.
+     * A skip that has already been applied, like the notification of an end of
+     * track which has the version the playlist got from it, is ignored too, so
+     * it is not applied again when the current entry stays the same.
+     * @param json the next or prev message
+     * @return true if the message should be performed
+     */
+    private boolean isCurrentEntry(JSONObject json) {
+        if (json.optInt(VERSION, -1) >= 0 && json.optInt(VERSION) <= spotifyController.getOperationLog().getVersion()) {
+            return false;
+        }
+        ElementId from = ElementId.parse(json.optString(FROM, null));
+        return from == null || from.equals(spotifyController.getCurrentId());
+    }
+
+    /**
+     * The sensors send one next or prev message with a count when a button is
+     * pressed several times in a row. Messages without a count skip one track.
+     * @param json the next or prev message
+     * @return the number of tracks to skip, at least 1 and at most MAX_SKIP
+     */
+    private int getSkipCount(JSONObject json) {
+        return Math.max(1, Math.min(json.optInt(COUNT, 1), MAX_SKIP));
+    }
+
     /**
      * Creates a system action message and publish it on the private topic
      * with the application name in the data field except for 'install' where
@@ -352,6 +596,144 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
         }
     }
 
+    /**
+     * Publishes the playlist as a retained message on the snapshot topic so that
+     * clients that connect later get the playlist from the broker when they
+     * subscribe, without asking this device for it.
+     */
+    private void publishSnapshot() {
+        mqttWorker.publish(TOPIC_SNAPSHOT, createSnapshotJson().toString(), true);
+    }
+
+    /**
+     * Creates a snapshot message of the playlist. The snapshot only has the
+     * tracks from the current track and a window forward together with the
+     * total number of tracks, clients fetch the rest with 'get_range' when
+     * they need them. This keeps the snapshot the same size no matter how
+     * long the playlist is.
+     * @return the snapshot message
+     */
+    private JSONObject createSnapshotJson() {
+        return createRangeJson(Action.snapshot, 0, SNAPSHOT_WINDOW);
+    }
+
+    /**
+     * Creates a message with a window of the playlist. To keep the message
+     * small each track is an array of [track, artist, uri, tracklength, id]
+     * instead of an object. The offset is counted from the current track and
+     * the version is the version of the latest operation, so the client can
+     * tell if the window still fits its playlist.
+     * @param action the action of the message, snapshot or range
+     * @param offset the first track counted from the current track
+     * @param count the maximum number of tracks
+     * @return the message
+     */
+    private JSONObject createRangeJson(Action action, int offset, int count) {
+        JSONObject payload = new JSONObject();
+        JSONObject range = new JSONObject();
+        JSONArray playlistArray = new JSONArray();
+        try {
+            PlaylistSnapshot playlist = spotifyController.getPlaylistSnapshot();
+            List<Track> tracks = playlist.getTracks(offset, count);
+            List<ElementId> ids = playlist.getIds(offset, count);
+            for (int i = 0; i < tracks.size(); i++) {
+                playlistArray.put(tracks.get(i).toJsonArray().put(ids.get(i).toString()));
+            }
+            range.put(VERSION, playlist.getVersion());
+            range.put(TOTAL, playlist.size());
+            range.put(OFFSET, offset);
+            range.put(TRACKS, playlistArray);
+            payload.put(Action.action.toString(), action.toString());
+            payload.put(DATA, range);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return payload;
+    }
+
+    /**
+     * Answers a client that needs a window of the playlist, for example when
+     * the user scrolls the list. The window is sent to the topic of the request.
+     * @param request the data of the request with the offset, count and the topic to answer on
+     */
+    private void sendRange(JSONObject request) {
+        if (request == null) {
+            return;
+        }
+        String topic = request.optString(TOPIC, TOPIC_PLAYLIST);
+        int count = Math.min(request.optInt(COUNT), MAX_RANGE);
+        JSONObject json = createRangeJson(Action.range, request.optInt(OFFSET), count);
+        mqttWorker.publish(topic, json.toString());
+    }
+
+    /**
+     * Answers a client that has to replace its playlist, for example after a
+     * shuffle. The snapshot is sent to the topic of the request.
+     * @param request the data of the request with the topic to answer on
+     */
+    private void sendSnapshot(JSONObject request) {
+        String topic = request == null ? TOPIC_PLAYLIST : request.optString(TOPIC, TOPIC_PLAYLIST);
+        mqttWorker.publish(topic, createSnapshotJson().toString());
+    }
+
+    /**
+     * Sets what happens at the end of the playlist, unknown modes are ignored.
+     * @param mode one of OFF, ALL or ONE
+     */
+    private void setRepeatMode(String mode) {
+        try {
+            spotifyController.setRepeatMode(PlaylistEngine.RepeatMode.valueOf(mode));
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Callback from the spotifycontroller when the playlist has changed.
+     * Publishes the operation on the operations topic so that clients can
+     * apply the change and notice if they have missed one.
+     * @param operation
+     */
+    public void onOperation(Operation operation) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put(Action.action.toString(), Action.op.toString());
+            json.put(DATA, operation.toJson());
+            mqttWorker.publish(TOPIC_OPS, json.toString());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Answers a client that has missed operations. Sends all operations after
+     * the version of the client to the topic of the request, or a snapshot if
+     * the operation log no longer goes back that far.
+     * @param request the data of the request with the version and the topic to answer on
+     */
+    private void sendOperations(JSONObject request) {
+        if (request == null) {
+            return;
+        }
+        String topic = request.optString(TOPIC, TOPIC_PLAYLIST);
+        List<Operation> operations = spotifyController.getOperationLog().getOperationsSince(request.optInt(VERSION));
+        if (operations == null) {
+            mqttWorker.publish(topic, createSnapshotJson().toString());
+            return;
+        }
+        JSONObject json = new JSONObject();
+        JSONArray operationArray = new JSONArray();
+        try {
+            for (Operation operation : operations) {
+                operationArray.put(operation.toJson());
+            }
+            json.put(Action.action.toString(), Action.ops.toString());
+            json.put(DATA, operationArray);
+            mqttWorker.publish(topic, json.toString());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
 	
 	/**
 	 * When the application is connected to the broker this callback is called
@@ -365,6 +747,11 @@ public class ApplicationController implements MQTTCallback, PlaylistCallback {
             mqttWorker.subscribe(TOPIC_PLAYLIST_1);
             mqttWorker.subscribe(TOPIC_INFOTAINMENT);
             createAndPublishSystemActions(Action.exist);
+            publishSnapshot();
+            handler.removeCallbacks(heartbeat);
+            handler.postDelayed(heartbeat, HEARTBEAT_MILLIS);
+            handler.removeCallbacks(diagnosticsReport);
+            handler.postDelayed(diagnosticsReport, DIAGNOSTICS_MILLIS);
         }
 	}
 
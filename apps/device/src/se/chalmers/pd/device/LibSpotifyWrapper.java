@@ -1,13 +1,77 @@
 package se.chalmers.pd.device;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import se.chalmers.pd.device.SpotifyController.PlaylistCallback;
 import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
 
 public class LibSpotifyWrapper {
 
+	/** Indexes of the values returned by getAudioStats */
+	public static final int AUDIO_UNDERRUNS = 0,
+	                        AUDIO_OVERRUNS = 1,
+	                        AUDIO_FILL_MILLIS = 2,
+	                        AUDIO_LATENCY_MILLIS = 3,
+	                        AUDIO_SLOTS = 4;
+
+	/**
+	 * Indexes of the values returned by getAudioTelemetry, the first
+	 * TELEMETRY_FILL_BUCKETS values are the fill histogram
+	 */
+	public static final int TELEMETRY_FILL_BUCKETS = 8,
+	                        TELEMETRY_UNDERRUNS = 8,
+	                        TELEMETRY_DROPPED_FRAMES = 9,
+	                        TELEMETRY_DELIVERIES = 10,
+	                        TELEMETRY_DELIVERED_FRAMES = 11,
+	                        TELEMETRY_FIRST_FRAME_MILLIS = 12,
+	                        TELEMETRY_MAX_FIRST_FRAME_MILLIS = 13;
+
+	/** Indexes of the values returned by getTaskStats */
+	public static final int TASK_DEPTH = 0,
+	                        TASK_MAX_DEPTH = 1,
+	                        TASK_RUN = 2,
+	                        TASK_DROPPED = 3,
+	                        TASK_MERGED = 4,
+	                        TASK_AVERAGE_LATENCY_MICROS = 5,
+	                        TASK_MAX_LATENCY_MICROS = 6;
+
+	/** Indexes of the values returned by getEventStats */
+	public static final int EVENTS_POSTED = 0,
+	                        EVENTS_UPCALLS = 1,
+	                        EVENTS_DROPPED = 2;
+
+	/** The player events in the event ring, the values must match jni_glue.h */
+	private static final int EVENT_PLAY = 1,
+	                         EVENT_PAUSE = 2,
+	                         EVENT_END_OF_TRACK = 3;
+
+	/** Layout of the event ring, see jni_glue.cpp */
+	private static final int EVENT_HEADER_SLOTS = 0,
+	                         EVENT_HEADER_POSITION_PENDING = 4,
+	                         EVENT_HEADER_POSITION = 8,
+	                         EVENT_HEADER_SIZE = 12;
+
+	private static final long MIN_POLL_INTERVAL = 100;
+	private static final long STATS_INTERVAL = 60000;
+
 	private static Handler handler = new Handler();
 	private static PlaylistCallback callback;
 
+	private static ByteBuffer events;
+	private static int eventSlots;
+	private static int eventPosition = 0;
+	private static volatile long lastPoll = 0;
+	private static long lastStats = 0;
+	private static int[] lastEventStats = new int[3];
+	private static final Runnable pollEvents = new Runnable() {
+		public void run() {
+			pollEvents();
+		}
+	};
+
     /**
      *  The Native methods accessable from the java code.
      */
@@ -17,23 +81,94 @@ public class LibSpotifyWrapper {
 
 	native private static void login(String username, String password);
 
-	native private static void toggleplay(String uri);
+	native private static void toggleplay(String uri, int version);
+
+	native private static void playnext(String uri, int version);
 
-	native private static void playnext(String uri);
+	native private static void preload(String uri, int version);
 
 	native public static void seek(float position);
 
+    /**
+     * Sets up the audio buffering, must be called before init.
+     * @param slots the number of buffers queued to the audio output
+     * @param latencyMillis the target latency that is split over the slots
+     */
+	native public static void configureAudio(int slots, int latencyMillis);
+
+    /**
+     * @return the underruns, overruns, fill level and target latency in
+     *         milliseconds and the number of slots of the audio buffering,
+     *         see the AUDIO_ indexes
+     */
+	native public static int[] getAudioStats();
+
+    /**
+     * @return counters of the audio pipeline since init: how many times each
+     *         share of the ring buffer was the fill level when a slot had been
+     *         played, underruns, frames of silence played because of them,
+     *         music_delivery calls and the frames they delivered, and the last
+     *         and highest time in milliseconds from a play request to the
+     *         first frame, see the TELEMETRY_ indexes
+     */
+	native public static int[] getAudioTelemetry();
+
+    /**
+     * @return the current and highest depth of the task queue of the native
+     *         run loop, the tasks run, dropped and merged process_events
+     *         tasks and the average and highest time in microseconds a task
+     *         waited in the queue, see the TASK_ indexes
+     */
+	native public static int[] getTaskStats();
+
+    /**
+     * @return the events posted by the player, the calls to java that were
+     *         made for them and the events dropped because the ring was full,
+     *         see the EVENTS_ indexes
+     */
+	native public static int[] getEventStats();
+
+	native private static ByteBuffer getEventBuffer();
+
+    /**
+     * Frees the handled slots of the event ring and writes the latest position
+     * to the header.
+     * @param handled the position after the last handled event
+     * @return the position after the last written event
+     */
+	native private static int pollEvents(int handled);
+
 	public static void loginUser(String username, String password, PlaylistCallback playlistCallback) {
 		callback = playlistCallback;
 		login(username, password);
 	}
 
-	public static void togglePlay(String uri) {
-		toggleplay(uri);
+    /**
+     * Plays or pauses a track
+     * @param uri the uri of the track
+     * @param version the version of the playlist, passed back with the end of the track
+     */
+	public static void togglePlay(String uri, int version) {
+		toggleplay(uri, version);
 	}
 
-	public static void playNext(String uri) {
-		playnext(uri);
+    /**
+     * Plays a track instead of the current one
+     * @param uri the uri of the track
+     * @param version the version of the playlist, passed back with the end of the track
+     */
+	public static void playNext(String uri, int version) {
+		playnext(uri, version);
+	}
+
+    /**
+     * Tells the player which track comes after the current one. The player
+     * loads it ahead and switches to it by itself when the current track ends.
+     * @param uri the uri of the next track, null if there is none
+     * @param version the version of the playlist, passed back with the end of the track
+     */
+	public static void preloadNext(String uri, int version) {
+		preload(uri, version);
 	}
 
     /**
@@ -56,52 +191,70 @@ public class LibSpotifyWrapper {
 	}
 
     /**
-     * When a track has ended notify the callback to PlaylistCallback
+     * Called from the native thread when there are new events in the event
+     * ring and no poll is scheduled. The ring is polled on the handler thread
+     * at most once every MIN_POLL_INTERVAL milliseconds, the events written
+     * until then are handled in the same poll.
      */
-	public static void onPlayerEndOfTrack() {
-		handler.post(new Runnable() {
-
-			public void run() {
-				callback.onEndOfTrack();
-			}
-		});
+	public static void onEventsPending() {
+		long delay = lastPoll + MIN_POLL_INTERVAL - SystemClock.uptimeMillis();
+		handler.postDelayed(pollEvents, Math.max(delay, 0));
 	}
 
     /**
-     * When a player position has changed notify the callback to PlaylistCallback
-     * @param position
+     * Notifies the PlaylistCallback of the events in the ring in the order
+     * they were posted and then of the latest position, if it has changed.
      */
-	public static void onPlayerPositionChanged(final float position) {
-		handler.post(new Runnable() {
-
-			public void run() {
-				callback.onPositionChanged(position);
-
+	private static void pollEvents() {
+		long now = SystemClock.uptimeMillis();
+		lastPoll = now;
+		if (events == null) {
+			events = getEventBuffer().order(ByteOrder.nativeOrder());
+			eventSlots = events.getInt(EVENT_HEADER_SLOTS);
+		}
+		int end = pollEvents(eventPosition);
+		for (; eventPosition != end; eventPosition++) {
+			switch (events.getInt(EVENT_HEADER_SIZE + (eventPosition & (eventSlots - 1)) * 4)) {
+			case EVENT_PLAY:
+				callback.onPlay(true);
+				break;
+			case EVENT_PAUSE:
+				callback.onPause(true);
+				break;
+			case EVENT_END_OF_TRACK:
+				callback.onEndOfTrack(readEventVersion(eventPosition & (eventSlots - 1)));
+				break;
 			}
-		});
+		}
+		if (events.getInt(EVENT_HEADER_POSITION_PENDING) != 0) {
+			callback.onPositionChanged(events.getFloat(EVENT_HEADER_POSITION));
+		}
+		if (now - lastStats >= STATS_INTERVAL) {
+			logEventStats(now);
+		}
 	}
 
     /**
-     * When a track has paused notify the callback PlaylistCallback
+     * @return the version that was passed with the track of the event in the
+     *         slot, -1 if there is none
      */
-	public static void onPlayerPause() {
-		handler.post(new Runnable() {
-
-			public void run() {
-				callback.onPause(true);
-			}
-		});
+	private static int readEventVersion(int slot) {
+		return events.getInt(EVENT_HEADER_SIZE + (eventSlots + slot) * 4);
 	}
 
     /**
-     * When a track has started playing notify PlaylistCallback
+     * Logs the events per second and the calls to java that the ring saved
+     * since the last time
      */
-	public static void onPlayerPlay() {
-		handler.post(new Runnable() {
-
-			public void run() {
-				callback.onPlay(true);
-			}
-		});
+	private static void logEventStats(long now) {
+		int[] stats = getEventStats();
+		if (lastStats > 0) {
+			int posted = stats[EVENTS_POSTED] - lastEventStats[EVENTS_POSTED];
+			int upcalls = stats[EVENTS_UPCALLS] - lastEventStats[EVENTS_UPCALLS];
+			Log.d("LibSpotifyWrapper", "Events/s: " + posted * 1000f / (now - lastStats) + ", JNI calls saved: "
+					+ (posted - upcalls) + " of " + posted + ", dropped: " + stats[EVENTS_DROPPED]);
+		}
+		lastEventStats = stats;
+		lastStats = now;
 	}
-}
\ No newline at end of file
+}
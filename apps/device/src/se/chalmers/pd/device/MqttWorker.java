@@ -83,11 +83,26 @@ public class MqttWorker extends Thread {
 	 *            should be stringified JSON
 	 */
 	public void publish(String topic, String message) {
+		publish(topic, message, false);
+	}
+
+	/**
+	 * Publishes a message on the given topic. A retained message is kept by
+	 * the broker and delivered to every client that subscribes to the topic
+	 * later on.
+	 * 
+	 * @param topic
+	 * @param message
+	 *            should be stringified JSON
+	 * @param retained
+	 *            true if the broker should keep the message
+	 */
+	public void publish(String topic, String message, boolean retained) {
 		if(isConnected()){
             Log.d("MqttController", "publishing topic " + topic + " with message " + message);
             try {
                 MqttMessage payload = new MqttMessage(message.getBytes());
-                mqttClient.getTopic(topic).publish(payload.getPayload(), 0, false);
+                mqttClient.getTopic(topic).publish(payload.getPayload(), 0, retained);
             } catch (MqttPersistenceException e) {
                 e.printStackTrace();
             } catch (MqttException e) {
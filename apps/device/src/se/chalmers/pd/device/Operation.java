@@ -0,0 +1,118 @@
+package se.chalmers.pd.device;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A single mutation of the playlist. Every operation gets the next version of
+ * the playlist so that clients can tell if they have missed one. The type is
+ * one of the playlist actions add, next, prev, stop, shuffle or jump where stop
+ * clears the playlist. An add also has the id of the new entry and where it
+ * ended up counted from the current track. A next or prev that skips several
+ * tracks at once is one operation with the number of tracks it skipped. A
+ * shuffle or a jump reorders the playlist in a way the clients cannot repeat,
+ * so they fetch a snapshot.
+ */
+public class Operation {
+
+    public static final String VERSION = "version",
+                               TYPE = "op",
+                               TRACK = "track",
+                               OFFSET = "offset",
+                               COUNT = "count";
+
+    private final int version;
+    private final Action type;
+    private final Track track;
+    private final ElementId id;
+    private final int offset;
+    private final int count;
+
+    /**
+     * @param version
+     *            the version of the playlist after this operation
+     * @param type
+     *            the action that changed the playlist
+     * @param track
+     *            the added track or null if the operation has no track
+     * @param id
+     *            the id of the added entry or null if the operation has no track
+     * @param offset
+     *            the position of the added track counted from the current track
+     */
+    public Operation(int version, Action type, Track track, ElementId id, int offset) {
+        this(version, type, track, id, offset, 1);
+    }
+
+    /**
+     * @param version
+     *            the version of the playlist after this operation
+     * @param type
+     *            the action that changed the playlist
+     * @param track
+     *            the added track or null if the operation has no track
+     * @param id
+     *            the id of the added entry or null if the operation has no track
+     * @param offset
+     *            the position of the added track counted from the current track
+     * @param count
+     *            the number of tracks a next or prev skipped
+     */
+    public Operation(int version, Action type, Track track, ElementId id, int offset, int count) {
+        this.version = version;
+        this.type = type;
+        this.track = track;
+        this.id = id;
+        this.offset = offset;
+        this.count = count;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public Action getType() {
+        return type;
+    }
+
+    public Track getTrack() {
+        return track;
+    }
+
+    public ElementId getId() {
+        return id;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Creates the json representation of the operation. The track is written
+     * in the same compact form as in the playlist snapshot, followed by the id.
+     * The count is only written for a skip of more than one track.
+     *
+     * @return the json object
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put(VERSION, version);
+            json.put(TYPE, type.toString());
+            if (track != null) {
+                json.put(TRACK, track.toJsonArray().put(String.valueOf(id)));
+                json.put(OFFSET, offset);
+            }
+            if (count > 1) {
+                json.put(COUNT, count);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
@@ -0,0 +1,118 @@
+package se.chalmers.pd.device;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded in-memory log of the latest playlist operations. The log hands out
+ * the versions, so every operation that is appended gets the version after
+ * the previous one. When the log is full the oldest operation is dropped and
+ * clients that are further behind than that have to use a snapshot instead.
+ */
+public class OperationLog {
+
+    private final Operation[] operations;
+    private int first = 0;
+    private int size = 0;
+    private int version = 0;
+
+    /**
+     * @param capacity
+     *            the number of operations to keep
+     */
+    public OperationLog(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * @param capacity
+     *            the number of operations to keep
+     * @param version
+     *            the version of the playlist to continue from, the log starts
+     *            empty so clients at an older version get a snapshot
+     */
+    public OperationLog(int capacity, int version) {
+        operations = new Operation[capacity];
+        this.version = version;
+    }
+
+    /**
+     * Creates an operation with the next version and appends it to the log.
+     *
+     * @param type
+     *            the action that changed the playlist
+     * @return the new operation
+     */
+    public Operation append(Action type) {
+        return append(type, null, null, 0);
+    }
+
+    /**
+     * Creates a skip with the next version and appends it to the log.
+     *
+     * @param type
+     *            next or prev
+     * @param count
+     *            the number of tracks that were skipped
+     * @return the new operation
+     */
+    public Operation append(Action type, int count) {
+        return append(type, null, null, 0, count);
+    }
+
+    /**
+     * Creates an operation with the next version and appends it to the log.
+     *
+     * @param type
+     *            the action that changed the playlist
+     * @param track
+     *            the track of the operation, null if none
+     * @param id
+     *            the id of the entry of the track, null if none
+     * @param offset
+     *            the position of the track counted from the current track
+     * @return the new operation
+     */
+    public Operation append(Action type, Track track, ElementId id, int offset) {
+        return append(type, track, id, offset, 1);
+    }
+
+    private synchronized Operation append(Action type, Track track, ElementId id, int offset, int count) {
+        Operation operation = new Operation(++version, type, track, id, offset, count);
+        if (size < operations.length) {
+            operations[(first + size) % operations.length] = operation;
+            size++;
+        } else {
+            operations[first] = operation;
+            first = (first + 1) % operations.length;
+        }
+        return operation;
+    }
+
+    /**
+     * Returns the operations that have been made after the given version.
+     *
+     * @param since
+     *            the version the client has
+     * @return the operations in order, or null if the log has been truncated
+     *         past the given version or the version is unknown
+     */
+    public synchronized List<Operation> getOperationsSince(int since) {
+        if (since > version || since < version - size) {
+            return null;
+        }
+        int count = version - since;
+        List<Operation> result = new ArrayList<Operation>(count);
+        for (int i = size - count; i < size; i++) {
+            result.add(operations[(first + i) % operations.length]);
+        }
+        return result;
+    }
+
+    /**
+     * @return the version of the latest operation
+     */
+    public synchronized int getVersion() {
+        return version;
+    }
+}
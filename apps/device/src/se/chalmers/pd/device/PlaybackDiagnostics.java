@@ -0,0 +1,115 @@
+package se.chalmers.pd.device;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.net.TrafficStats;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Collects the health of playback from the native counters together with the
+ * CPU time and network traffic of the application, so that stutter in the
+ * field can be matched against load. The counters only grow, so every report
+ * holds what changed since the report before it.
+ */
+public class PlaybackDiagnostics {
+
+	public static final String INTERVAL = "interval",
+	                           AUDIO = "audio",
+	                           FILL_HISTOGRAM = "fill",
+	                           FILL_MILLIS = "fillms",
+	                           LATENCY_MILLIS = "latency",
+	                           UNDERRUNS = "underruns",
+	                           DROPPED_FRAMES = "droppedframes",
+	                           DELIVERIES_PER_SECOND = "deliveries",
+	                           FRAMES_PER_SECOND = "frames",
+	                           FIRST_FRAME_MILLIS = "firstframe",
+	                           MAX_FIRST_FRAME_MILLIS = "maxfirstframe",
+	                           TASKS = "tasks",
+	                           QUEUE_DEPTH = "depth",
+	                           MAX_QUEUE_DEPTH = "maxdepth",
+	                           TASK_LATENCY = "latency",
+	                           MAX_TASK_LATENCY = "maxlatency",
+	                           CPU = "cpu",
+	                           RECEIVED_BYTES = "rx",
+	                           SENT_BYTES = "tx";
+
+	private final int uid = Process.myUid();
+	private int[] lastTelemetry;
+	private long lastTime;
+	private long lastCpu;
+	private long lastReceived;
+	private long lastSent;
+
+	public PlaybackDiagnostics() {
+		lastTelemetry = LibSpotifyWrapper.getAudioTelemetry();
+		lastTime = SystemClock.elapsedRealtime();
+		lastCpu = Process.getElapsedCpuTime();
+		lastReceived = TrafficStats.getUidRxBytes(uid);
+		lastSent = TrafficStats.getUidTxBytes(uid);
+	}
+
+	/**
+	 * Reads the counters and reports what has changed since the last call.
+	 *
+	 * @return the report with rates per second, the fill histogram, counts
+	 *         for the interval, the cpu usage of the application in percent and
+	 *         the bytes it received and sent
+	 * @throws JSONException
+	 */
+	public JSONObject collect() throws JSONException {
+		int[] telemetry = LibSpotifyWrapper.getAudioTelemetry();
+		int[] audioStats = LibSpotifyWrapper.getAudioStats();
+		int[] taskStats = LibSpotifyWrapper.getTaskStats();
+		long time = SystemClock.elapsedRealtime();
+		long cpu = Process.getElapsedCpuTime();
+		long received = TrafficStats.getUidRxBytes(uid);
+		long sent = TrafficStats.getUidTxBytes(uid);
+		long interval = Math.max(time - lastTime, 1);
+
+		JSONArray histogram = new JSONArray();
+		for (int i = 0; i < LibSpotifyWrapper.TELEMETRY_FILL_BUCKETS; i++) {
+			histogram.put(telemetry[i] - lastTelemetry[i]);
+		}
+		JSONObject audio = new JSONObject();
+		audio.put(FILL_HISTOGRAM, histogram);
+		audio.put(FILL_MILLIS, audioStats[LibSpotifyWrapper.AUDIO_FILL_MILLIS]);
+		audio.put(LATENCY_MILLIS, audioStats[LibSpotifyWrapper.AUDIO_LATENCY_MILLIS]);
+		audio.put(UNDERRUNS, delta(telemetry, LibSpotifyWrapper.TELEMETRY_UNDERRUNS));
+		audio.put(DROPPED_FRAMES, delta(telemetry, LibSpotifyWrapper.TELEMETRY_DROPPED_FRAMES));
+		audio.put(DELIVERIES_PER_SECOND, delta(telemetry, LibSpotifyWrapper.TELEMETRY_DELIVERIES) * 1000.0 / interval);
+		audio.put(FRAMES_PER_SECOND, delta(telemetry, LibSpotifyWrapper.TELEMETRY_DELIVERED_FRAMES) * 1000.0 / interval);
+		audio.put(FIRST_FRAME_MILLIS, telemetry[LibSpotifyWrapper.TELEMETRY_FIRST_FRAME_MILLIS]);
+		audio.put(MAX_FIRST_FRAME_MILLIS, telemetry[LibSpotifyWrapper.TELEMETRY_MAX_FIRST_FRAME_MILLIS]);
+
+		JSONObject tasks = new JSONObject();
+		tasks.put(QUEUE_DEPTH, taskStats[LibSpotifyWrapper.TASK_DEPTH]);
+		tasks.put(MAX_QUEUE_DEPTH, taskStats[LibSpotifyWrapper.TASK_MAX_DEPTH]);
+		tasks.put(TASK_LATENCY, taskStats[LibSpotifyWrapper.TASK_AVERAGE_LATENCY_MICROS]);
+		tasks.put(MAX_TASK_LATENCY, taskStats[LibSpotifyWrapper.TASK_MAX_LATENCY_MICROS]);
+
+		JSONObject json = new JSONObject();
+		json.put(INTERVAL, interval);
+		json.put(AUDIO, audio);
+		json.put(TASKS, tasks);
+		json.put(CPU, (cpu - lastCpu) * 100.0 / interval);
+		// TrafficStats answers UNSUPPORTED (-1) on devices without the counters
+		if (received >= 0 && sent >= 0) {
+			json.put(RECEIVED_BYTES, received - lastReceived);
+			json.put(SENT_BYTES, sent - lastSent);
+		}
+
+		lastTelemetry = telemetry;
+		lastTime = time;
+		lastCpu = cpu;
+		lastReceived = received;
+		lastSent = sent;
+		return json;
+	}
+
+	private int delta(int[] telemetry, int index) {
+		return telemetry[index] - lastTelemetry[index];
+	}
+}
@@ -0,0 +1,103 @@
+package se.chalmers.pd.device;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Immutable record of what the player is doing at a given moment. Instead of
+ * pushing every position update, the device publishes one of these whenever
+ * something changes and lets the receivers extrapolate the position from the
+ * timestamp and the rate.
+ *
+ * The timestamp is taken from the monotonic device clock (elapsed realtime) so
+ * clients need to know their offset to this clock, see the clock exchange in
+ * the ApplicationController.
+ */
+public class PlaybackState {
+
+    public static final String URI = "uri",
+                               POSITION = "position",
+                               PLAYING = "playing",
+                               TIMESTAMP = "timestamp",
+                               RATE = "rate";
+
+    private static final float NORMAL_RATE = 1.0f;
+
+    private final String uri;
+    private final long position;
+    private final boolean playing;
+    private final long timestamp;
+    private final float rate;
+
+    /**
+     * @param uri
+     *            the uri of the current track, empty if there is none
+     * @param position
+     *            the position in the track in milliseconds
+     * @param playing
+     *            true if the position is advancing
+     * @param timestamp
+     *            the device clock in milliseconds when the position was taken
+     */
+    public PlaybackState(String uri, long position, boolean playing, long timestamp) {
+        this.uri = uri == null ? "" : uri;
+        this.position = position;
+        this.playing = playing;
+        this.timestamp = timestamp;
+        this.rate = NORMAL_RATE;
+    }
+
+    /**
+     * Extrapolates the position at the given device time.
+     *
+     * @param now
+     *            the device clock in milliseconds
+     * @return the position in milliseconds
+     */
+    public long getPositionAt(long now) {
+        if (!playing || now <= timestamp) {
+            return position;
+        }
+        return position + (long) ((now - timestamp) * rate);
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public float getRate() {
+        return rate;
+    }
+
+    /**
+     * Creates the json representation that is put in the data field of a
+     * 'state' message.
+     *
+     * @return the json object
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put(URI, uri);
+            json.put(POSITION, position);
+            json.put(PLAYING, playing);
+            json.put(TIMESTAMP, timestamp);
+            json.put(RATE, (double) rate);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
@@ -0,0 +1,418 @@
+package se.chalmers.pd.device;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Keeps the tracks of the playlist in the order they were added and a cursor
+ * that points out the current track in the play order. The play order is a
+ * permutation of the track indexes, so moving to the next or previous track or
+ * jumping to a track only moves the cursor and never moves any tracks around.
+ *
+ * The tracks are listed to the clients in play order starting with the current
+ * track, the same way as before when the current track was the first track of
+ * the playlist, and a new track is queued last in that list.
+ *
+ * Every entry has an ElementId. A client that adds a track says which entry it
+ * should follow, and entries that were added after the same entry are ordered
+ * by their ids with the highest first. This places concurrent additions from
+ * several clients the same way no matter in which order they arrive.
+ *
+ * The engine is not thread safe, it is changed by one thread at a time and
+ * readers on other threads use a PlaylistSnapshot. The snapshots share the
+ * arrays of the engine, which is why tracks are only ever written past the end
+ * of the tracks of the latest snapshot and the play order is copied before it
+ * is changed in place.
+ */
+public class PlaylistEngine {
+
+	/**
+	 * What to do when the cursor moves past the end of the play order
+	 */
+	public enum RepeatMode {
+		/** Stop at the last track */
+		OFF,
+		/** Start over from the first track */
+		ALL,
+		/** Stay on the current track */
+		ONE
+	}
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final String CLIENT = "device";
+
+	private Track[] tracks = new Track[INITIAL_CAPACITY];
+	private ElementId[] ids = new ElementId[INITIAL_CAPACITY];
+	private int size = 0;
+	private boolean orderShared = false;
+	private final HashMap<ElementId, Integer> indexes = new HashMap<ElementId, Integer>();
+	private final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+	private final Random random = new Random();
+	private int[] order = new int[INITIAL_CAPACITY];
+	private int[] positions = new int[INITIAL_CAPACITY];
+	private int cursor = 0;
+	private long clock = 0;
+	private boolean shuffle = false;
+	private RepeatMode repeatMode = RepeatMode.ALL;
+
+	/**
+	 * Adds a track last in the play order counted from the current track, i.e.
+	 * right before the current track when the play order wraps around.
+	 *
+	 * @param track
+	 *            the track to add
+	 * @return the position of the track counted from the current track
+	 */
+	public int add(Track track) {
+		return add(track, null, null);
+	}
+
+	/**
+	 * Adds a track after the given entry. If there already are entries after
+	 * that entry with higher ids the track is put after them, which is where
+	 * every other device puts it too. Without an entry to follow, or if the
+	 * entry is unknown, the track is queued last counted from the current
+	 * track. Appending is constant time, otherwise the positions after the new
+	 * track are moved one step.
+	 *
+	 * @param track
+	 *            the track to add
+	 * @param id
+	 *            the id of the new entry, null to create one
+	 * @param after
+	 *            the id of the entry to follow, null to queue the track last
+	 * @return the position of the track counted from the current track, or -1
+	 *         if an entry with the id already has been added
+	 */
+	public int add(Track track, ElementId id, ElementId after) {
+		if (id == null) {
+			id = new ElementId(clock + 1, CLIENT);
+		} else if (indexes.containsKey(id)) {
+			return -1;
+		}
+		clock = Math.max(clock, id.getClock());
+		int index = size;
+		ensureCapacity(index + 1);
+		tracks[index] = track;
+		ids[index] = id;
+		size++;
+		indexes.put(id, index);
+		Integer count = counts.get(track.getUri());
+		counts.put(track.getUri(), count == null ? 1 : count + 1);
+		int position = getInsertPosition(id, after, index);
+		if (position < index) {
+			copyOrder();
+		}
+		System.arraycopy(order, position, order, position + 1, index - position);
+		order[position] = index;
+		for (int i = position; i <= index; i++) {
+			positions[order[i]] = i;
+		}
+		if (index > 0 && position <= cursor) {
+			cursor++;
+		}
+		return (position - cursor + index + 1) % (index + 1);
+	}
+
+	/**
+	 * Finds where in the play order a new entry goes. Entries with higher ids
+	 * that follow the entry to follow are skipped, but never the current track
+	 * since that would put the new track before it.
+	 */
+	private int getInsertPosition(ElementId id, ElementId after, int size) {
+		Integer afterIndex = after == null ? null : indexes.get(after);
+		if (afterIndex == null) {
+			return cursor == 0 ? size : cursor;
+		}
+		int position = positions[afterIndex] + 1;
+		while (position < size && position != cursor && ids[order[position]].compareTo(id) > 0) {
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * Moves the cursor to the next track in play order, wrapping around to the
+	 * first track if the repeat mode is ALL.
+	 *
+	 * @return true if the cursor moved, false if it stayed where it was
+	 */
+	public boolean next() {
+		if (size == 0 || repeatMode == RepeatMode.ONE) {
+			return false;
+		}
+		if (cursor + 1 < size) {
+			cursor++;
+		} else if (repeatMode == RepeatMode.ALL) {
+			cursor = 0;
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the cursor to the previous track in play order, wrapping around to
+	 * the last track if the repeat mode is ALL.
+	 *
+	 * @return true if the cursor moved, false if it stayed where it was
+	 */
+	public boolean previous() {
+		if (size == 0 || repeatMode == RepeatMode.ONE) {
+			return false;
+		}
+		if (cursor > 0) {
+			cursor--;
+		} else if (repeatMode == RepeatMode.ALL) {
+			cursor = size - 1;
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the cursor to the given entry.
+	 *
+	 * @param id
+	 *            the id of the entry
+	 * @return true if the cursor moved, false if the entry is unknown or
+	 *         already is the current entry
+	 */
+	public boolean jumpTo(ElementId id) {
+		Integer index = id == null ? null : indexes.get(id);
+		if (index == null || positions[index] == cursor) {
+			return false;
+		}
+		cursor = positions[index];
+		return true;
+	}
+
+	/**
+	 * Turns shuffle on or off. When turned on the tracks are shuffled with the
+	 * current track first, when turned off the tracks are played in the order
+	 * they were added from the current track. Either way the play order is
+	 * rebuilt, so the clients need a new snapshot of the playlist.
+	 *
+	 * @param shuffle
+	 *            true to shuffle
+	 */
+	public void setShuffle(boolean shuffle) {
+		this.shuffle = shuffle;
+		if (size == 0) {
+			return;
+		}
+		copyOrder();
+		int current = order[cursor];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+			positions[i] = i;
+		}
+		if (shuffle) {
+			swap(0, current);
+			for (int i = size - 1; i > 1; i--) {
+				swap(i, 1 + random.nextInt(i));
+			}
+			cursor = 0;
+		} else {
+			cursor = current;
+		}
+	}
+
+	/**
+	 * Restores a play order that was recorded with getPlayOrder(), so that a
+	 * shuffle is replayed the same way as it was made.
+	 *
+	 * @param shuffle
+	 *            true if the order is shuffled
+	 * @param playOrder
+	 *            the ids of every entry in play order
+	 * @param cursor
+	 *            the position of the current entry in the play order
+	 * @return true if the order was restored, false if the ids do not match
+	 *         the entries of the playlist
+	 */
+	public boolean setPlayOrder(boolean shuffle, List<ElementId> playOrder, int cursor) {
+		if (playOrder.size() != size || cursor < 0 || (size > 0 && cursor >= size)) {
+			return false;
+		}
+		int[] newOrder = new int[order.length];
+		int[] newPositions = new int[positions.length];
+		boolean[] seen = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			Integer index = indexes.get(playOrder.get(i));
+			if (index == null || seen[index]) {
+				return false;
+			}
+			seen[index] = true;
+			newOrder[i] = index;
+			newPositions[index] = i;
+		}
+		this.shuffle = shuffle;
+		order = newOrder;
+		positions = newPositions;
+		orderShared = false;
+		this.cursor = cursor;
+		return true;
+	}
+
+	/**
+	 * @return the ids of every entry in play order, from the first position
+	 *         and not from the current entry
+	 */
+	public List<ElementId> getPlayOrder() {
+		List<ElementId> playOrder = new ArrayList<ElementId>(size);
+		for (int i = 0; i < size; i++) {
+			playOrder.add(ids[order[i]]);
+		}
+		return playOrder;
+	}
+
+	/**
+	 * @return the position of the current entry in the play order
+	 */
+	public int getCursor() {
+		return cursor;
+	}
+
+	public boolean isShuffle() {
+		return shuffle;
+	}
+
+	public void setRepeatMode(RepeatMode repeatMode) {
+		this.repeatMode = repeatMode;
+	}
+
+	public RepeatMode getRepeatMode() {
+		return repeatMode;
+	}
+
+	/**
+	 * @return the current track or null if the playlist is empty
+	 */
+	public Track getCurrentTrack() {
+		return size == 0 ? null : tracks[order[cursor]];
+	}
+
+	/**
+	 * @return the track that next() moves to, the current track if the repeat
+	 *         mode is ONE, or null if there is no next track
+	 */
+	public Track getNextTrack() {
+		if (size == 0) {
+			return null;
+		}
+		if (repeatMode == RepeatMode.ONE) {
+			return tracks[order[cursor]];
+		}
+		if (cursor + 1 < size) {
+			return tracks[order[cursor + 1]];
+		}
+		return repeatMode == RepeatMode.ALL ? tracks[order[0]] : null;
+	}
+
+	/**
+	 * @return the id of the current entry or null if the playlist is empty
+	 */
+	public ElementId getCurrentId() {
+		return size == 0 ? null : ids[order[cursor]];
+	}
+
+	/**
+	 * @param spotifyUri
+	 *            the uri of the track
+	 * @return true if the track is in the playlist
+	 */
+	public boolean contains(String spotifyUri) {
+		return counts.containsKey(spotifyUri);
+	}
+
+	/**
+	 * @return the number of tracks
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @param offset
+	 *            the entry counted from the current track
+	 * @return the id of the entry or null if there is no such entry
+	 */
+	public ElementId getId(int offset) {
+		return size == 0 || offset < 0 || offset >= size ? null : ids[order[(cursor + offset) % size]];
+	}
+
+	/**
+	 * Creates a snapshot of the playlist as it is now. The snapshot stays the
+	 * same when the playlist changes.
+	 *
+	 * @param version
+	 *            the version of the playlist
+	 * @return the new snapshot
+	 */
+	public PlaylistSnapshot snapshot(int version) {
+		orderShared = true;
+		return new PlaylistSnapshot(tracks, ids, order, size, cursor, shuffle, repeatMode, version);
+	}
+
+	/**
+	 * Removes all tracks and resets the cursor. New arrays are used since the
+	 * old ones may still be read through a snapshot.
+	 */
+	public void clear() {
+		tracks = new Track[INITIAL_CAPACITY];
+		ids = new ElementId[INITIAL_CAPACITY];
+		order = new int[INITIAL_CAPACITY];
+		positions = new int[INITIAL_CAPACITY];
+		orderShared = false;
+		size = 0;
+		indexes.clear();
+		counts.clear();
+		cursor = 0;
+	}
+
+	private void swap(int a, int b) {
+		int trackA = order[a];
+		int trackB = order[b];
+		order[a] = trackB;
+		order[b] = trackA;
+		positions[trackB] = a;
+		positions[trackA] = b;
+	}
+
+	/**
+	 * Copies the play order before it is changed in place if a snapshot uses it
+	 */
+	private void copyOrder() {
+		if (orderShared) {
+			order = order.clone();
+			orderShared = false;
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > order.length) {
+			int length = Math.max(capacity, order.length * 2);
+			int[] newOrder = new int[length];
+			int[] newPositions = new int[length];
+			Track[] newTracks = new Track[length];
+			ElementId[] newIds = new ElementId[length];
+			System.arraycopy(order, 0, newOrder, 0, order.length);
+			System.arraycopy(positions, 0, newPositions, 0, positions.length);
+			System.arraycopy(tracks, 0, newTracks, 0, tracks.length);
+			System.arraycopy(ids, 0, newIds, 0, ids.length);
+			order = newOrder;
+			positions = newPositions;
+			tracks = newTracks;
+			ids = newIds;
+			orderShared = false;
+		}
+	}
+}
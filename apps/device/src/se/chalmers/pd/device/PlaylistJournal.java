@@ -0,0 +1,552 @@
+package se.chalmers.pd.device;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * This thread keeps the playlist on disk so that it survives a crash or a
+ * restart of the device. Every operation is appended to a binary journal, the
+ * operations that are waiting when the thread wakes up are written together
+ * and synced to disk once. When the journal has grown enough the playlist is
+ * written to a snapshot file and the journal starts over.
+ *
+ * On startup the snapshot is memory mapped and the journal is replayed on top
+ * of it. A journal record that was only partly written when the device went
+ * down fails its checksum and is cut off together with anything after it.
+ */
+public class PlaylistJournal extends Thread {
+
+	/**
+	 * Gives the journal the playlist to write when it compacts
+	 */
+	interface SnapshotSource {
+		PlaylistSnapshot getPlaylistSnapshot();
+	}
+
+	private static final String WORKER_NAME = "PlaylistJournal";
+	private static final String JOURNAL_FILE = "playlist.journal";
+	private static final String SNAPSHOT_FILE = "playlist.snapshot";
+	private static final String SNAPSHOT_TEMP_FILE = "playlist.snapshot.tmp";
+	private static final int SNAPSHOT_MAGIC = 0x504c5332;
+	/** Snapshots written before the play order was kept, the tracks are in play order from the current track */
+	private static final int SNAPSHOT_MAGIC_1 = 0x504c5331;
+	private static final int COMPACT_RECORDS = 512;
+	private static final int RECORD_HEADER = 8;
+	private static final byte ADD = 1, NEXT = 2, PREV = 3, STOP = 4, SHUFFLE = 5, JUMP = 6, SKIP = 7, REPEAT = 8;
+	private static final byte[] CLOSE = new byte[0];
+
+	private final File journalFile;
+	private final File snapshotFile;
+	private final File snapshotTempFile;
+	private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+	private final SnapshotSource source;
+	private FileOutputStream journal;
+	private int records = 0;
+
+	/**
+	 * @param directory
+	 *            the private directory of the application
+	 * @param source
+	 *            gives the playlist to write when the journal is compacted
+	 */
+	public PlaylistJournal(File directory, SnapshotSource source) {
+		super(WORKER_NAME);
+		this.source = source;
+		journalFile = new File(directory, JOURNAL_FILE);
+		snapshotFile = new File(directory, SNAPSHOT_FILE);
+		snapshotTempFile = new File(directory, SNAPSHOT_TEMP_FILE);
+	}
+
+	/**
+	 * Reads the snapshot and replays the journal into the empty playlist. Must
+	 * be called before the thread is started.
+	 *
+	 * @param playlist
+	 *            the playlist to restore
+	 * @return the version of the restored playlist
+	 */
+	public int restore(PlaylistEngine playlist) {
+		long start = SystemClock.uptimeMillis();
+		int version = 0;
+		try {
+			version = readSnapshot(playlist);
+			version = replayJournal(playlist, version);
+		} catch (IOException e) {
+			Log.e(WORKER_NAME, "Could not restore the playlist " + e.getMessage());
+			playlist.clear();
+			version = 0;
+			journalFile.delete();
+			snapshotFile.delete();
+		}
+		Log.d(WORKER_NAME, "Restored " + playlist.size() + " tracks at version " + version + " in "
+				+ (SystemClock.uptimeMillis() - start) + " ms");
+		return version;
+	}
+
+	/**
+	 * Queues an added track to be written.
+	 *
+	 * @param version
+	 *            the version of the operation
+	 * @param track
+	 *            the added track
+	 * @param id
+	 *            the id of the new entry
+	 * @param after
+	 *            the id of the entry the track was added after, null if none
+	 */
+	public void add(int version, Track track, ElementId id, ElementId after) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream output = new DataOutputStream(bytes);
+			output.writeByte(ADD);
+			output.writeInt(version);
+			writeTrack(output, track);
+			writeId(output, id);
+			output.writeBoolean(after != null);
+			if (after != null) {
+				writeId(output, after);
+			}
+			queue.add(bytes.toByteArray());
+		} catch (IOException e) {
+			Log.e(WORKER_NAME, "Could not create journal record " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Queues a new play order to be written. The whole order is written since
+	 * a shuffle cannot be replayed from a random seed once the tracks of the
+	 * playlist have been restored from a snapshot in another order.
+	 *
+	 * @param version
+	 *            the version of the operation
+	 * @param shuffle
+	 *            true if shuffle was turned on
+	 * @param playOrder
+	 *            the ids of every entry in play order
+	 * @param cursor
+	 *            the position of the current entry in the play order
+	 */
+	public void shuffle(int version, boolean shuffle, List<ElementId> playOrder, int cursor) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream output = new DataOutputStream(bytes);
+			output.writeByte(SHUFFLE);
+			output.writeInt(version);
+			output.writeBoolean(shuffle);
+			output.writeInt(cursor);
+			output.writeInt(playOrder.size());
+			for (ElementId id : playOrder) {
+				writeId(output, id);
+			}
+			queue.add(bytes.toByteArray());
+		} catch (IOException e) {
+			Log.e(WORKER_NAME, "Could not create journal record " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Queues a jump to another entry to be written.
+	 *
+	 * @param version
+	 *            the version of the operation
+	 * @param id
+	 *            the id of the entry that became the current one
+	 */
+	public void jump(int version, ElementId id) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream output = new DataOutputStream(bytes);
+			output.writeByte(JUMP);
+			output.writeInt(version);
+			writeId(output, id);
+			queue.add(bytes.toByteArray());
+		} catch (IOException e) {
+			Log.e(WORKER_NAME, "Could not create journal record " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Queues a skip of one or more tracks to be written as one record.
+	 *
+	 * @param version
+	 *            the version of the operation
+	 * @param forward
+	 *            true for next, false for prev
+	 * @param count
+	 *            the number of tracks that were skipped
+	 */
+	public void skip(int version, boolean forward, int count) {
+		queue.add(ByteBuffer.allocate(10).put(SKIP).putInt(version).put((byte) (forward ? 1 : 0)).putInt(count).array());
+	}
+
+	/**
+	 * Queues a new repeat mode to be written. It is not an operation, so it
+	 * has the version of the playlist when it was changed and is replayed
+	 * whatever the version.
+	 *
+	 * @param version
+	 *            the version of the playlist
+	 * @param repeatMode
+	 *            the new repeat mode
+	 */
+	public void repeat(int version, PlaylistEngine.RepeatMode repeatMode) {
+		queue.add(ByteBuffer.allocate(6).put(REPEAT).putInt(version).put((byte) repeatMode.ordinal()).array());
+	}
+
+	/**
+	 * Queues an operation without a track to be written.
+	 *
+	 * @param version
+	 *            the version of the operation
+	 * @param type
+	 *            one of next, prev or stop
+	 */
+	public void append(int version, Action type) {
+		byte record;
+		switch (type) {
+		case next:
+			record = NEXT;
+			break;
+		case prev:
+			record = PREV;
+			break;
+		case stop:
+			record = STOP;
+			break;
+		default:
+			return;
+		}
+		queue.add(ByteBuffer.allocate(5).put(record).putInt(version).array());
+	}
+
+	/**
+	 * Writes the queued records and stops the thread
+	 */
+	public void close() {
+		queue.add(CLOSE);
+	}
+
+	@Override
+	public void run() {
+		List<byte[]> batch = new ArrayList<byte[]>();
+		try {
+			journal = new FileOutputStream(journalFile, true);
+			boolean closing = false;
+			while (!closing) {
+				batch.clear();
+				batch.add(queue.take());
+				queue.drainTo(batch);
+				closing = write(batch);
+				if (records >= COMPACT_RECORDS) {
+					compact();
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.d(WORKER_NAME, "Interrupted with " + queue.size() + " records left");
+		} catch (IOException e) {
+			Log.e(WORKER_NAME, "Could not write the journal " + e.getMessage());
+		} finally {
+			try {
+				if (journal != null) {
+					journal.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch of records with one write and one sync
+	 *
+	 * @return true if the batch ends with the close marker
+	 */
+	private boolean write(List<byte[]> batch) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		CRC32 crc = new CRC32();
+		boolean closing = false;
+		for (byte[] record : batch) {
+			if (record == CLOSE) {
+				closing = true;
+				continue;
+			}
+			crc.reset();
+			crc.update(record);
+			output.writeInt(record.length);
+			output.writeInt((int) crc.getValue());
+			output.write(record);
+			records++;
+		}
+		if (bytes.size() > 0) {
+			journal.write(bytes.toByteArray());
+			journal.getFD().sync();
+		}
+		return closing;
+	}
+
+	/**
+	 * Writes the current playlist to the snapshot file and starts a new
+	 * journal. The snapshot is at least as new as every written record since
+	 * the operations are queued after their snapshot has been published. The
+	 * tracks are written in the order they were added, followed by the
+	 * shuffle flag, the repeat mode, the cursor and the play order.
+	 */
+	private void compact() throws IOException {
+		PlaylistSnapshot playlist = source.getPlaylistSnapshot();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeInt(SNAPSHOT_MAGIC);
+		output.writeInt(playlist.getVersion());
+		output.writeInt(playlist.size());
+		for (int i = 0; i < playlist.size(); i++) {
+			writeTrack(output, playlist.getAddedTrack(i));
+			writeId(output, playlist.getAddedId(i));
+		}
+		output.writeBoolean(playlist.isShuffle());
+		output.writeByte(playlist.getRepeatMode().ordinal());
+		output.writeInt(playlist.getCursor());
+		for (int i = 0; i < playlist.size(); i++) {
+			output.writeInt(playlist.getOrderIndex(i));
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		output.writeInt((int) crc.getValue());
+
+		FileOutputStream snapshot = new FileOutputStream(snapshotTempFile);
+		try {
+			snapshot.write(bytes.toByteArray());
+			snapshot.getFD().sync();
+		} finally {
+			snapshot.close();
+		}
+		if (!snapshotTempFile.renameTo(snapshotFile)) {
+			throw new IOException("Could not replace " + snapshotFile);
+		}
+		journal.close();
+		journal = new FileOutputStream(journalFile, false);
+		records = 0;
+		Log.d(WORKER_NAME, "Compacted " + playlist.size() + " tracks at version " + playlist.getVersion());
+	}
+
+	/**
+	 * Memory maps the snapshot, adds its tracks to the playlist and restores
+	 * the play order, shuffle and repeat mode. A snapshot of the old format
+	 * only has the tracks, starting with the current track.
+	 *
+	 * @return the version of the snapshot, 0 if there is none
+	 */
+	private int readSnapshot(PlaylistEngine playlist) throws IOException {
+		if (!snapshotFile.exists()) {
+			return 0;
+		}
+		FileInputStream input = new FileInputStream(snapshotFile);
+		try {
+			FileChannel channel = input.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int end = buffer.limit() - 4;
+			int magic = end < 12 ? 0 : buffer.getInt(0);
+			if ((magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_1) || checksum(buffer, 0, end) != buffer.getInt(end)) {
+				throw new IOException("Broken snapshot " + snapshotFile);
+			}
+			buffer.position(4);
+			int version = buffer.getInt();
+			int count = buffer.getInt();
+			List<ElementId> ids = new ArrayList<ElementId>(count);
+			for (int i = 0; i < count; i++) {
+				Track track = readTrack(buffer);
+				ElementId id = readId(buffer);
+				playlist.add(track, id, null);
+				ids.add(id);
+			}
+			if (magic == SNAPSHOT_MAGIC) {
+				boolean shuffle = buffer.get() != 0;
+				PlaylistEngine.RepeatMode repeatMode = PlaylistEngine.RepeatMode.values()[buffer.get()];
+				int cursor = buffer.getInt();
+				List<ElementId> playOrder = new ArrayList<ElementId>(count);
+				for (int i = 0; i < count; i++) {
+					playOrder.add(ids.get(buffer.getInt()));
+				}
+				if (!playlist.setPlayOrder(shuffle, playOrder, cursor)) {
+					throw new IOException("Broken play order in " + snapshotFile);
+				}
+				playlist.setRepeatMode(repeatMode);
+			}
+			return version;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Applies the records of the journal that are newer than the snapshot. The
+	 * journal is cut off after the last complete record.
+	 *
+	 * @return the version of the playlist after the journal
+	 */
+	private int replayJournal(PlaylistEngine playlist, int version) throws IOException {
+		if (!journalFile.exists()) {
+			return version;
+		}
+		RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int position = 0;
+			while (buffer.limit() - position >= RECORD_HEADER) {
+				int length = buffer.getInt(position);
+				int start = position + RECORD_HEADER;
+				if (length <= 0 || length > buffer.limit() - start
+						|| checksum(buffer, start, start + length) != buffer.getInt(position + 4)) {
+					break;
+				}
+				buffer.position(start);
+				version = apply(playlist, buffer, version);
+				position = start + length;
+			}
+			if (position < buffer.limit()) {
+				Log.d(WORKER_NAME, "Cutting off " + (buffer.limit() - position) + " bytes of the journal");
+				channel.truncate(position);
+			}
+			return version;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Applies one record if it is newer than the playlist
+	 *
+	 * @return the version of the playlist after the record
+	 */
+	private int apply(PlaylistEngine playlist, ByteBuffer record, int version) {
+		byte type = record.get();
+		int recordVersion = record.getInt();
+		if (type == REPEAT) {
+			playlist.setRepeatMode(PlaylistEngine.RepeatMode.values()[record.get()]);
+			return version;
+		}
+		if (recordVersion <= version) {
+			return version;
+		}
+		switch (type) {
+		case ADD:
+			Track track = readTrack(record);
+			ElementId id = readId(record);
+			ElementId after = record.get() != 0 ? readId(record) : null;
+			playlist.add(track, id, after);
+			break;
+		case NEXT:
+			playlist.next();
+			break;
+		case PREV:
+			playlist.previous();
+			break;
+		case STOP:
+			playlist.clear();
+			break;
+		case SHUFFLE:
+			boolean shuffle = record.get() != 0;
+			int cursor = record.getInt();
+			int count = record.getInt();
+			List<ElementId> playOrder = new ArrayList<ElementId>(count);
+			for (int i = 0; i < count; i++) {
+				playOrder.add(readId(record));
+			}
+			if (!playlist.setPlayOrder(shuffle, playOrder, cursor)) {
+				playlist.setShuffle(shuffle);
+			}
+			break;
+		case JUMP:
+			playlist.jumpTo(readId(record));
+			break;
+		case SKIP:
+			boolean forward = record.get() != 0;
+			for (int steps = record.getInt(); steps > 0; steps--) {
+				if (!(forward ? playlist.next() : playlist.previous())) {
+					break;
+				}
+			}
+			break;
+		}
+		return recordVersion;
+	}
+
+	private static int checksum(ByteBuffer buffer, int from, int to) {
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[Math.min(8192, Math.max(to - from, 1))];
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(from);
+		while (slice.position() < to) {
+			int length = Math.min(chunk.length, to - slice.position());
+			slice.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+		}
+		return (int) crc.getValue();
+	}
+
+	private static void writeTrack(DataOutputStream output, Track track) throws IOException {
+		writeString(output, track.getName());
+		writeString(output, track.getArtist());
+		writeString(output, track.getUri());
+		output.writeInt(track.getLength());
+	}
+
+	private static Track readTrack(ByteBuffer buffer) {
+		String name = readString(buffer);
+		String artist = readString(buffer);
+		String uri = readString(buffer);
+		return TrackRegistry.getInstance().obtain(name, artist, uri, buffer.getInt());
+	}
+
+	private static void writeId(DataOutputStream output, ElementId id) throws IOException {
+		output.writeLong(id.getClock());
+		writeString(output, id.getClient());
+	}
+
+	private static ElementId readId(ByteBuffer buffer) {
+		long clock = buffer.getLong();
+		return new ElementId(clock, readString(buffer));
+	}
+
+	private static void writeString(DataOutputStream output, String string) throws IOException {
+		if (string == null) {
+			output.writeInt(-1);
+			return;
+		}
+		byte[] bytes = string.getBytes("UTF-8");
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package se.chalmers.pd.device;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable view of the playlist at one version. The snapshot shares its
+ * arrays with the PlaylistEngine that created it, the engine only writes past
+ * the end of a shared array or copies it before changing it, so a snapshot can
+ * be read from any thread without locking while the playlist keeps changing.
+ */
+public class PlaylistSnapshot {
+
+	public static final PlaylistSnapshot EMPTY = new PlaylistSnapshot(new Track[0], new ElementId[0], new int[0], 0, 0,
+			false, PlaylistEngine.RepeatMode.ALL, 0);
+
+	private final Track[] tracks;
+	private final ElementId[] ids;
+	private final int[] order;
+	private final int size;
+	private final int cursor;
+	private final boolean shuffle;
+	private final PlaylistEngine.RepeatMode repeatMode;
+	private final int version;
+
+	/**
+	 * @param tracks
+	 *            the tracks in the order they were added
+	 * @param ids
+	 *            the ids of the entries in the order they were added
+	 * @param order
+	 *            the play order as indexes of the tracks
+	 * @param size
+	 *            the number of tracks
+	 * @param cursor
+	 *            the position of the current track in the play order
+	 * @param shuffle
+	 *            true if the play order is shuffled
+	 * @param repeatMode
+	 *            what happens at the end of the play order
+	 * @param version
+	 *            the version of the playlist
+	 */
+	PlaylistSnapshot(Track[] tracks, ElementId[] ids, int[] order, int size, int cursor, boolean shuffle,
+			PlaylistEngine.RepeatMode repeatMode, int version) {
+		this.tracks = tracks;
+		this.ids = ids;
+		this.order = order;
+		this.size = size;
+		this.cursor = cursor;
+		this.shuffle = shuffle;
+		this.repeatMode = repeatMode;
+		this.version = version;
+	}
+
+	/**
+	 * @return the current track or null if the playlist is empty
+	 */
+	public Track getCurrentTrack() {
+		return size == 0 ? null : tracks[order[cursor]];
+	}
+
+	/**
+	 * @return the id of the current entry or null if the playlist is empty
+	 */
+	public ElementId getCurrentId() {
+		return size == 0 ? null : ids[order[cursor]];
+	}
+
+	/**
+	 * Lists the tracks in play order starting with the current track.
+	 *
+	 * @return a new list with the tracks
+	 */
+	public List<Track> getTracks() {
+		return getTracks(0, size);
+	}
+
+	/**
+	 * Lists a window of the tracks in play order counted from the current
+	 * track. The window wraps around at the end of the play order.
+	 *
+	 * @param offset
+	 *            the first track counted from the current track
+	 * @param count
+	 *            the maximum number of tracks
+	 * @return a new list with at most size() tracks
+	 */
+	public List<Track> getTracks(int offset, int count) {
+		count = Math.min(count, size);
+		List<Track> list = new ArrayList<Track>(Math.max(count, 0));
+		if (size == 0 || offset < 0) {
+			return list;
+		}
+		for (int i = 0; i < count; i++) {
+			list.add(tracks[order[(cursor + offset + i) % size]]);
+		}
+		return list;
+	}
+
+	/**
+	 * Lists the ids of the same window as getTracks(offset, count)
+	 *
+	 * @param offset
+	 *            the first entry counted from the current track
+	 * @param count
+	 *            the maximum number of entries
+	 * @return a new list with at most size() ids
+	 */
+	public List<ElementId> getIds(int offset, int count) {
+		count = Math.min(count, size);
+		List<ElementId> list = new ArrayList<ElementId>(Math.max(count, 0));
+		if (size == 0 || offset < 0) {
+			return list;
+		}
+		for (int i = 0; i < count; i++) {
+			list.add(ids[order[(cursor + offset + i) % size]]);
+		}
+		return list;
+	}
+
+	/**
+	 * @param index
+	 *            the index of the track in the order the tracks were added
+	 * @return the track
+	 */
+	Track getAddedTrack(int index) {
+		return tracks[index];
+	}
+
+	/**
+	 * @param index
+	 *            the index of the entry in the order the tracks were added
+	 * @return the id of the entry
+	 */
+	ElementId getAddedId(int index) {
+		return ids[index];
+	}
+
+	/**
+	 * @param position
+	 *            the position in the play order, from the first position and
+	 *            not from the current entry
+	 * @return the index of the track at the position in the order the tracks
+	 *         were added
+	 */
+	int getOrderIndex(int position) {
+		return order[position];
+	}
+
+	/**
+	 * @return the position of the current track in the play order
+	 */
+	int getCursor() {
+		return cursor;
+	}
+
+	public boolean isShuffle() {
+		return shuffle;
+	}
+
+	public PlaylistEngine.RepeatMode getRepeatMode() {
+		return repeatMode;
+	}
+
+	/**
+	 * @return the number of tracks
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the version of the latest operation included in the snapshot
+	 */
+	public int getVersion() {
+		return version;
+	}
+}
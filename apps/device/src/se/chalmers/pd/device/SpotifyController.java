@@ -2,8 +2,8 @@ package se.chalmers.pd.device;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.Context;
 import android.os.Environment;
@@ -12,10 +12,15 @@ import android.os.Environment;
  * This class has the playlist and the connection with the libsspotifywrapper.
  * It initializes the wrapper class and forwards different actions.
  * 
+ * The playlist is changed by the mqtt thread and the native callbacks. Changes
+ * are made while holding the lock of the playlist and each change publishes a
+ * new PlaylistSnapshot, so the getters read the latest snapshot without
+ * locking and always see a playlist that is consistent with its version.
+ * 
  * @author Patrik Thituson
  * 
  */
-public class SpotifyController {
+public class SpotifyController implements PlaylistJournal.SnapshotSource {
 
 	interface PlaylistCallback {
 		void onLoginSuccess();
@@ -26,10 +31,12 @@ public class SpotifyController {
 
 		void onPause(boolean success);
 
-		void onEndOfTrack();
+		void onEndOfTrack(int endedVersion);
 		
 		void onPositionChanged(float position);
 
+		void onOperation(Operation operation);
+
 	}
 
 	private static final int USER_NAME = 0;
@@ -38,10 +45,17 @@ public class SpotifyController {
     private static final String SPOTIFY_WRAPPER = "spotifywrapper";
     private static final String USER_DETAILS = "userdetails.txt";
     private static final String PATH = "/Android/data/se.chalmers.pd.device";
+    private static final int OPERATION_LOG_SIZE = 128;
 
 	private boolean isPlaying = false;
     private boolean initiated = false;
-	private ArrayList<Track> playlist;
+	private PlaylistEngine playlist;
+	private final AtomicReference<PlaylistSnapshot> snapshot = new AtomicReference<PlaylistSnapshot>(PlaylistSnapshot.EMPTY);
+	private OperationLog operationLog;
+	private PlaylistJournal journal;
+	private String preloadedUri;
+	private int playerVersion = -1;
+	private ElementId playerId;
 	private PlaylistCallback playlistCallback;
 	private Context context;
 
@@ -52,12 +66,20 @@ public class SpotifyController {
 	}
 
 	/**
-	 * Initiates the spotifywrapper by loading the libraries and playlist
+	 * Initiates the spotifywrapper by loading the libraries and playlist. The
+	 * playlist of the last session is restored from the journal.
 	 */
 	private void init() {
-		playlist = new ArrayList<Track>();
+		playlist = new PlaylistEngine();
+		journal = new PlaylistJournal(context.getFilesDir(), this);
+		int version = journal.restore(playlist);
+		operationLog = new OperationLog(OPERATION_LOG_SIZE, version);
+		snapshot.set(playlist.snapshot(version));
+		journal.start();
 		System.loadLibrary(SPOTIFY);
 		System.loadLibrary(SPOTIFY_WRAPPER);
+		LibSpotifyWrapper.configureAudio(context.getResources().getInteger(R.integer.audio_buffer_slots),
+				context.getResources().getInteger(R.integer.audio_latency_ms));
 		LibSpotifyWrapper.init(LibSpotifyWrapper.class.getClassLoader(), Environment.getExternalStorageDirectory()
 				.getAbsolutePath() + PATH);
 	}
@@ -73,8 +95,7 @@ public class SpotifyController {
 	 *            the uri of the track
 	 */
 	public void addTrackToPlaylist(String name, String artist, String spotifyUri, int length) {
-		Track newTrack = new Track(name, artist, spotifyUri, length);
-		playlist.add(newTrack);
+		addTrackToPlaylist(TrackRegistry.getInstance().obtain(name, artist, spotifyUri, length));
 	}
 
     /**
@@ -83,7 +104,30 @@ public class SpotifyController {
      * @param newTrack
      */
 	public void addTrackToPlaylist(Track newTrack){
-        playlist.add(newTrack);
+        addTrackToPlaylist(newTrack, null, null);
+	}
+
+    /**
+     * Adds a track to the playlist after the given entry. An entry that has
+     * already been added is ignored so that a resent message does no harm.
+     * @param newTrack
+     * @param id the id of the new entry, null to create one
+     * @param after the id of the entry to follow, null to queue the track last
+     */
+	public void addTrackToPlaylist(Track newTrack, ElementId id, ElementId after){
+        Operation operation = null;
+        synchronized (playlist) {
+            int offset = playlist.add(newTrack, id, after);
+            if (offset >= 0) {
+                operation = operationLog.append(Action.add, newTrack, playlist.getId(offset), offset);
+                snapshot.set(playlist.snapshot(operation.getVersion()));
+                journal.add(operation.getVersion(), newTrack, operation.getId(), after);
+            }
+        }
+        if (operation != null) {
+            preloadNextTrack();
+            playlistCallback.onOperation(operation);
+        }
 	}
 	
 	/**
@@ -92,7 +136,13 @@ public class SpotifyController {
 	 */
 	public void play() {
 		if (!isPlaying && !isEmptyPlaylist()) {
-			LibSpotifyWrapper.togglePlay(getCurrentTrack().getUri());
+			PlaylistSnapshot current;
+			synchronized (playlist) {
+				current = snapshot.get();
+				setPlayerEntry(current);
+			}
+			LibSpotifyWrapper.togglePlay(current.getCurrentTrack().getUri(), current.getVersion());
+			preloadNextTrack();
 			isPlaying = true;
             if(!initiated){
                 initiated = true;
@@ -108,7 +158,7 @@ public class SpotifyController {
 	 */
 	public void pause() {
 		if (isPlaying) {
-			LibSpotifyWrapper.togglePlay(getCurrentTrack().getUri());
+			LibSpotifyWrapper.togglePlay(getCurrentTrack().getUri(), playerVersion);
 			isPlaying = false;
 		} else {
 			playlistCallback.onPause(false);
@@ -117,27 +167,154 @@ public class SpotifyController {
 	
 	/**
 	 * Tries to play the next track of the playlist. If it is at the end 
-	 * it starts over.
+	 * it starts over unless repeat has been turned off. With repeat one
+	 * the current track starts over.
 	 */
 	public void playNext() {
-		if (!isEmptyPlaylist()){
-            Track originalTrack = playlist.get(0);
-            playlist.remove(originalTrack);
-            playlist.add(originalTrack);
-		    LibSpotifyWrapper.playNext(getCurrentTrack().getUri());
-	    }
+		skip(1, true);
     }
+
+	/**
+	 * Skips several tracks forward at once, like playNext() count times but
+	 * with only the track that is skipped to being played.
+	 * 
+	 * @param count
+	 *            the number of tracks to skip
+	 */
+	public void playNext(int count) {
+		skip(count, true);
+	}
+
     /**
      * Tries to play the previous track of the playlist. If it is at the
-     * beginning of hte palylist it starts at the end.
+     * beginning of hte palylist it starts at the end unless repeat has been
+     * turned off. With repeat one the current track starts over.
      */
     public void playPrevious() {
-        if (!isEmptyPlaylist()){
-            Track originalTrack = playlist.get(playlist.size() - 1);
-            playlist.remove(originalTrack);
-            playlist.add(0, originalTrack);
-            LibSpotifyWrapper.playNext(originalTrack.getUri());
+        skip(1, false);
+    }
+
+	/**
+	 * Skips several tracks back at once, like playPrevious() count times but
+	 * with only the track that is skipped to being played.
+	 * 
+	 * @param count
+	 *            the number of tracks to skip
+	 */
+	public void playPrevious(int count) {
+		skip(count, false);
+	}
+
+	/**
+	 * Moves the cursor count steps and tells the native player to play the
+	 * track it ends up on, once. The whole skip is one operation with the
+	 * number of steps, published and journaled once, and the clients move
+	 * their cursor as many steps. The cursor stops early at the end of the
+	 * playlist when repeat is off.
+	 */
+	private void skip(int count, boolean forward) {
+		Operation operation = null;
+		PlaylistSnapshot current;
+		synchronized (playlist) {
+			int steps = 0;
+			while (steps < count && (forward ? playlist.next() : playlist.previous())) {
+				steps++;
+			}
+			if (steps > 0) {
+				operation = operationLog.append(forward ? Action.next : Action.prev, steps);
+				snapshot.set(playlist.snapshot(operation.getVersion()));
+				journal.skip(operation.getVersion(), forward, steps);
+			} else if (playlist.isEmpty() || playlist.getRepeatMode() != PlaylistEngine.RepeatMode.ONE) {
+				return;
+			}
+			current = snapshot.get();
+			setPlayerEntry(current);
+		}
+		LibSpotifyWrapper.playNext(current.getCurrentTrack().getUri(), current.getVersion());
+		preloadNextTrack();
+		if (operation != null) {
+			playlistCallback.onOperation(operation);
+		}
+	}
+
+	/**
+	 * Moves on to the next track when the player has played a track to the
+	 * end. The player passes back the version it was given with the track, so
+	 * an end of track that the playlist has already moved on from, by a skip
+	 * or a jump just before the end, is not applied. The entry is compared
+	 * too, so it does not matter if the next entry has the same track.
+	 * 
+	 * @param endedVersion
+	 *            the version that the player was given with the track that ended
+	 * @return the id of the entry that ended, null if the playlist did not move
+	 */
+	public ElementId playNextAfter(int endedVersion) {
+		ElementId ended;
+		synchronized (playlist) {
+			ended = snapshot.get().getCurrentId();
+			if (endedVersion != playerVersion || ended == null || !ended.equals(playerId)) {
+				return null;
+			}
+		}
+		skip(1, true);
+		return ended;
+	}
+
+    /**
+     * Sets what happens at the end of the playlist. It is not an operation,
+     * the snapshot is replaced with the same version and the mode journaled.
+     * @param repeatMode
+     */
+    public void setRepeatMode(PlaylistEngine.RepeatMode repeatMode) {
+        synchronized (playlist) {
+            playlist.setRepeatMode(repeatMode);
+            int version = snapshot.get().getVersion();
+            snapshot.set(playlist.snapshot(version));
+            journal.repeat(version, repeatMode);
         }
+        preloadNextTrack();
+    }
+
+    /**
+     * Turns shuffle on or off. This changes the play order, so it is an
+     * operation with a new version and the new order is journaled. The
+     * current track stays the current one.
+     * @param shuffle
+     */
+    public void setShuffle(boolean shuffle) {
+        Operation operation;
+        synchronized (playlist) {
+            playlist.setShuffle(shuffle);
+            operation = operationLog.append(Action.shuffle);
+            snapshot.set(playlist.snapshot(operation.getVersion()));
+            journal.shuffle(operation.getVersion(), shuffle, playlist.getPlayOrder(), playlist.getCursor());
+        }
+        preloadNextTrack();
+        playlistCallback.onOperation(operation);
+    }
+
+    /**
+     * Makes the given entry the current one and plays it.
+     * @param id the id of the entry
+     * @return true if the entry is in the playlist and was not already the current one
+     */
+    public boolean jumpTo(ElementId id) {
+        Operation operation;
+        PlaylistSnapshot current;
+        synchronized (playlist) {
+            if (!playlist.jumpTo(id)) {
+                return false;
+            }
+            operation = operationLog.append(Action.jump);
+            current = playlist.snapshot(operation.getVersion());
+            snapshot.set(current);
+            journal.jump(operation.getVersion(), id);
+            setPlayerEntry(current);
+        }
+        LibSpotifyWrapper.playNext(current.getCurrentTrack().getUri(), current.getVersion());
+        preloadNextTrack();
+        playlistCallback.onOperation(operation);
+        return true;
     }
 
 	/**
@@ -161,14 +338,59 @@ public class SpotifyController {
 	 */
 	public void destroy() {
 		LibSpotifyWrapper.destroy();
+		journal.close();
 	}
 	/**
 	 * 
 	 * @return playlist
-	 * 				the playlist with all tracks
+	 * 				the tracks in play order starting with the current track
 	 */
 	public List<Track> getPlaylist() {
-		return playlist;
+		return snapshot.get().getTracks();
+	}
+
+	/**
+	 * @return the latest snapshot of the playlist, which can be read without
+	 * 				locking and does not change
+	 */
+	public PlaylistSnapshot getPlaylistSnapshot() {
+		return snapshot.get();
+	}
+
+	/**
+	 * @param offset
+	 * 				the first entry counted from the current track
+	 * @param count
+	 * 				the maximum number of entries
+	 * @return the ids of the same window as getPlaylist(offset, count)
+	 */
+	public List<ElementId> getPlaylistIds(int offset, int count) {
+		return snapshot.get().getIds(offset, count);
+	}
+
+	/**
+	 * @return the id of the current entry or null if the playlist is empty
+	 */
+	public ElementId getCurrentId() {
+		return snapshot.get().getCurrentId();
+	}
+
+	/**
+	 * @param offset
+	 * 				the first track counted from the current track
+	 * @param count
+	 * 				the maximum number of tracks
+	 * @return a window of the playlist in play order
+	 */
+	public List<Track> getPlaylist(int offset, int count) {
+		return snapshot.get().getTracks(offset, count);
+	}
+
+	/**
+	 * @return the number of tracks in the playlist
+	 */
+	public int getPlaylistSize() {
+		return snapshot.get().size();
 	}
 
 	/**
@@ -177,7 +399,7 @@ public class SpotifyController {
 	 * 				the current track
 	 */
 	public Track getCurrentTrack() {
-        return playlist.isEmpty() ? null : playlist.get(0);
+        return snapshot.get().getCurrentTrack();
     }
 	/**
 	 * Method for updating the tracks position
@@ -196,11 +418,74 @@ public class SpotifyController {
 	public void clearPlaylist() {
 		seek(0);
         initiated = false;
-        playlist.clear();
+        Operation operation;
+        synchronized (playlist) {
+            playlist.clear();
+            operation = logOperation(Action.stop);
+        }
+        preloadNextTrack();
+        playlistCallback.onOperation(operation);
 	}
 
+    /**
+     * @return true if the player has been told to play
+     */
+    public boolean isPlaying() {
+        return isPlaying;
+    }
+
+    /**
+     * @return the operation log with the latest changes of the playlist
+     */
+    public OperationLog getOperationLog() {
+        return operationLog;
+    }
+
+    /**
+     * Appends a change of the playlist to the operation log and the journal
+     * and publishes a snapshot with the new version. Must be called holding
+     * the lock of the playlist, the callback is notified afterwards outside
+     * of the lock.
+     * @return the operation to notify the callback with
+     */
+    private Operation logOperation(Action type) {
+        Operation operation = operationLog.append(type);
+        snapshot.set(playlist.snapshot(operation.getVersion()));
+        journal.append(operation.getVersion(), type);
+        return operation;
+    }
+
+    /**
+     * Remembers the entry that the native player is told to play and the
+     * version passed with it. Must be called holding the lock of the playlist.
+     */
+    private void setPlayerEntry(PlaylistSnapshot current) {
+        playerVersion = current.getVersion();
+        playerId = current.getCurrentId();
+    }
+
+    /**
+     * Tells the native player which track comes next if it has changed, so
+     * that the player can load it ahead and switch to it at the end of the
+     * current track without waiting for a next message.
+     */
+    private void preloadNextTrack() {
+        String uri;
+        int version;
+        synchronized (playlist) {
+            version = snapshot.get().getVersion();
+            Track next = playlist.getNextTrack();
+            uri = next == null ? null : next.getUri();
+            if (uri == null ? preloadedUri == null : uri.equals(preloadedUri)) {
+                return;
+            }
+            preloadedUri = uri;
+        }
+        LibSpotifyWrapper.preloadNext(uri, version);
+    }
+
     private boolean isEmptyPlaylist(){
-        return playlist.isEmpty();
+        return snapshot.get().isEmpty();
     }
 
 }
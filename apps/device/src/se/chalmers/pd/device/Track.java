@@ -1,5 +1,7 @@
 package se.chalmers.pd.device;
 
+import org.json.JSONArray;
+
 import android.os.Parcel;
 import android.os.Parcelable;
 
@@ -77,15 +79,46 @@ public class Track implements Parcelable {
      */
 	@Override
 	public boolean equals(Object object) {
+		if (object == this) {
+			return true;
+		}
 		if (object instanceof Track) {
 			Track track = (Track) object;
-			if (track.name.equals(this.name) && track.artist.equals(this.artist)
-					&& track.spotifyUri.equals(this.spotifyUri))
+			if (equals(track.spotifyUri, this.spotifyUri) && equals(track.name, this.name)
+					&& equals(track.artist, this.artist))
 				return true;
 		}
 		return false;
 	}
 
+	/**
+	 * The hash code is based on the uri only, tracks that are equal always
+	 * have the same uri.
+	 */
+	@Override
+	public int hashCode() {
+		return spotifyUri == null ? 0 : spotifyUri.hashCode();
+	}
+
+	private static boolean equals(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Creates the compact json representation of the track that is used in
+	 * snapshots and operations, [track, artist, uri, tracklength].
+	 * 
+	 * @return the json array
+	 */
+	public JSONArray toJsonArray() {
+		JSONArray json = new JSONArray();
+		json.put(name);
+		json.put(artist);
+		json.put(spotifyUri);
+		json.put(length);
+		return json;
+	}
+
 	public int describeContents() {
 		return 0;
 	}
@@ -119,7 +152,7 @@ public class Track implements Parcelable {
 	 */
 	public static final Parcelable.Creator CREATOR = new Parcelable.Creator() {
 		public Track createFromParcel(Parcel in) {
-			return new Track(in);
+			return TrackRegistry.getInstance().intern(new Track(in));
 		}
 
 		public Track[] newArray(int size) {
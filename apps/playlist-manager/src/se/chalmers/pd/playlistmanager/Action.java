@@ -30,6 +30,47 @@ package se.chalmers.pd.playlistmanager;
  * <b>seek</b>
  * Used when the track should seek and update its scrubber.
  *
+ * <b>state</b>
+ * Used when the primary device publishes its playback state.
+ *
+ * <b>clock</b>
+ * Used to exchange clock times with the primary device.
+ *
+ * <b>snapshot</b>
+ * Used when the primary device publishes the retained playlist snapshot.
+ *
+ * <b>stop</b>
+ * Used in operations when the playlist has been stopped and cleared.
+ *
+ * <b>op</b>
+ * Used when the primary device publishes a versioned change of the playlist.
+ *
+ * <b>ops</b>
+ * Used when the primary device answers with the changes a client has missed.
+ *
+ * <b>get_ops</b>
+ * Used when the changes since a version needs to be fetched.
+ *
+ * <b>get_range</b>
+ * Used when a window of the playlist needs to be fetched.
+ *
+ * <b>range</b>
+ * Used when the primary device answers with a window of the playlist.
+ *
+ * <b>shuffle</b>
+ * Used when shuffle should be turned on or off, and in operations when the
+ * playlist has been shuffled.
+ *
+ * <b>repeat</b>
+ * Used when the repeat mode of the primary device should change.
+ *
+ * <b>jump</b>
+ * Used when a track should be played right away, and in operations when the
+ * current track has changed that way.
+ *
+ * <b>get_snapshot</b>
+ * Used when the whole playlist needs to be fetched again.
+ *
  * <b>NONE</b>
  * Not used.
  */
@@ -44,5 +85,18 @@ public enum Action {
 	pause,
 	prev,
 	seek,
+	state,
+	clock,
+	snapshot,
+	stop,
+	op,
+	ops,
+	get_ops,
+	get_range,
+	range,
+	shuffle,
+	repeat,
+	jump,
+	get_snapshot,
 	NONE
 }
@@ -1,28 +1,45 @@
 package se.chalmers.pd.playlistmanager;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLEncoder;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 
-import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
 
+import com.mixtape.spotify.api.Album;
 import com.mixtape.spotify.api.Artist;
+import com.mixtape.spotify.api.Info;
 import com.mixtape.spotify.api.RequestType;
 import com.mixtape.spotify.api.Response;
-import com.mixtape.spotify.api.ResponseParser;
 
 /**
  * This is an Android wrapper for the Spotify Metadata API library. It uses the library to search for tracks
- * from an AsyncTask. When a result has been received, it is converted into an ArrayList of Track objects
+ * from a job on the MetadataClient. When a result has been received, it is converted into an ArrayList of Track objects
  * which is returned through the Callback interface and the method onSearchResult(ArrayList<Track> tracks).
  * <p/>
- * Note that the Track object returned from this class is different then the Track object in the library. This
- * class is also just working with tracks, not albums or artists.
+ * Note that the Track object returned from this class is different then the Track object in the library. The
+ * albums and artists of a combined search are the objects of the library.
+ * <p/>
+ * A combined search runs a track, an album and an artist search at the same time and delivers what it has each time
+ * one of them completes, so the whole result is there when the slowest of them is done. The tracks of an album are
+ * only looked up when they are asked for, and are cached like a search.
+ * <p/>
+ * The time from a search to its delivery is measured, also when it comes from the cache, and the percentiles are
+ * logged now and then together with the queue depth and the wait and run times of the MetadataClient. A combined
+ * search is measured until it is complete. Searches that are cancelled are not measured.
+ * <p/>
+ * When a combined search has found albums, the tracks of the first ones are looked up in the background with the
+ * lowest priority, so that they are cached if the user opens one of them.
+ * <p/>
+ * Only the latest search is delivered, a new search cancels the one that is running.
+ * <p/>
+ * Results are looked up in the SearchCache first. A result that is in memory is returned at once, otherwise the
+ * MetadataClient reads the response from disk or downloads it and stores it on disk. When the download fails a stale
+ * response from disk is used if there is one.
  */
 public class AndroidSpotifyMetadata {
 
@@ -38,8 +55,28 @@ public class AndroidSpotifyMetadata {
         public void onSearchResult(ArrayList<Track> tracks);
     }
 
-    private final static String QUERY_TEMPLATE = "http://ws.spotify.com/search/1/%s.json?q=%s&page=%d";
-    private Callback callback;
+    /**
+     * Interface that the user of a combined search must implement.
+     */
+    public interface CombinedCallback {
+        /**
+         * Called each time one of the searches of a combined search is finished, with everything that has been
+         * received so far.
+         *
+         * @param result the result so far, complete once every search is finished
+         */
+        public void onCombinedResult(CombinedResult result);
+    }
+
+    private static final String TAG = "AndroidSpotifyMetadata";
+    private static final int LATENCY_SAMPLES = 256;
+    private static final int LOG_EVERY = 20;
+    private static final int ENRICHED_ALBUMS = 2;
+    private static final LatencySamples latency = new LatencySamples(LATENCY_SAMPLES);
+
+    private int generation = 0;
+    private SearchJob task;
+    private final ArrayList<CombinedJob> combinedJobs = new ArrayList<CombinedJob>();
 
     /**
      * Searches the API for a match. This method doesn't return anything, the
@@ -55,7 +92,9 @@ public class AndroidSpotifyMetadata {
 
     /**
      * Searches the API for a match. This method doesn't return anything, the
-     * result is delivered through the onSearchResult callback.
+     * result is delivered through the onSearchResult callback. A search that is
+     * still running is cancelled, only the result of the latest search is
+     * delivered.
      *
      * @param searchString the string to search for
      * @param page         the page of the result set to return; defaults to 1
@@ -63,75 +102,487 @@ public class AndroidSpotifyMetadata {
      * @param callback     the callback which will receive the result
      */
     public void search(String searchString, int page, RequestType type, Callback callback) {
-        this.callback = callback;
-        String urlEncodedSearchString;
-        String searchUrl = "";
+        cancel();
+        long started = SystemClock.uptimeMillis();
+        String key = SearchCache.key(searchString, type, page);
+        ArrayList<Track> cached = SearchCache.getInstance().get(key);
+        if (cached != null) {
+            measure(started);
+            callback.onSearchResult(page == 1 ? LocalTrackIndex.merge(cached, LocalTrackIndex.getInstance().search(searchString)) : cached);
+            return;
+        }
         try {
-            urlEncodedSearchString = URLEncoder.encode(searchString, "UTF-8");
-            searchUrl = String.format(QUERY_TEMPLATE, type.name(), urlEncodedSearchString, page);
-            request(searchUrl);
+            String searchUrl = MetadataClient.getUrl(searchString, type, page);
+            task = new SearchJob(searchString, type, page, searchUrl, generation, started, callback);
+            MetadataClient.getInstance().submit(task);
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Sends a request to the Spotify Metadata API through the SMAPI library in an asynchronous
-     * request. It takes the response and converts it to an arraylist which is passed back
-     * when the result is received. This only supports track search at the moment.
+     * Searches tracks, albums and artists at the same time. A search that is still running is cancelled. The result
+     * is delivered through the onCombinedResult callback each time one of the three searches is finished, and at
+     * once if the tracks are in memory.
      *
-     * @param searchUrl the url to the spotify api
-     */
-    private void request(String searchUrl) {
-        final ArrayList<Track> tracks = new ArrayList<Track>();
-
-        AsyncTask<String, Void, Response> worker = new AsyncTask<String, Void, Response>() {
-            Response response;
-
-            /**
-             * Performs the request in the background.
-             *
-             * @param params url as first param
-             * @return the response from the ResponseParser
-             */
-            @Override
-            protected Response doInBackground(String... params) {
-                URL url;
-                try {
-                    url = new URL(params[0]);
-                    URLConnection connection = url.openConnection();
-                    InputStream inputStream = connection.getInputStream();
-                    response = ResponseParser.parse(inputStream);
-                    inputStream.close();
-                } catch (MalformedURLException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
+     * @param searchString the string to search for
+     * @param callback     the callback which will receive the results
+     */
+    public void searchAll(String searchString, CombinedCallback callback) {
+        cancel();
+        CombinedResult result = new CombinedResult();
+        result.started = SystemClock.uptimeMillis();
+        for (RequestType type : RequestType.values()) {
+            if (type == RequestType.track) {
+                ArrayList<Track> cached = SearchCache.getInstance().get(SearchCache.key(searchString, type, 1));
+                if (cached != null) {
+                    result.tracks = LocalTrackIndex.merge(cached, LocalTrackIndex.getInstance().search(searchString));
+                    result.pending--;
+                    continue;
                 }
-                return response;
             }
+            try {
+                CombinedJob job = new CombinedJob(searchString, type, MetadataClient.getUrl(searchString, type, 1), generation, result, callback);
+                combinedJobs.add(job);
+                MetadataClient.getInstance().submit(job);
+            } catch (UnsupportedEncodingException e) {
+                e.printStackTrace();
+                result.pending--;
+            }
+        }
+        if (combinedJobs.size() < RequestType.values().length) {
+            if (result.isComplete()) {
+                measure(result.started);
+            }
+            callback.onCombinedResult(result.copy());
+        }
+    }
+
+    /**
+     * Looks up the tracks of an album, in the order they are on the album. The tracks are delivered through the
+     * onSearchResult callback, at once if they are in memory. The lookup is not cancelled by a new search.
+     *
+     * @param album    the album from a combined search
+     * @param callback the callback which will receive the tracks
+     */
+    public void getAlbumTracks(Album album, Callback callback) {
+        String key = SearchCache.albumKey(album.getHref());
+        ArrayList<Track> cached = SearchCache.getInstance().get(key);
+        if (cached != null) {
+            callback.onSearchResult(cached);
+            return;
+        }
+        try {
+            String searchUrl = MetadataClient.getUrl("album:\"" + album.getName() + "\"", RequestType.track, 1);
+            MetadataClient.getInstance().submit(new AlbumJob(album.getHref(), new MetadataClient.Call(searchUrl, key),
+                    MetadataClient.Priority.INTERACTIVE, callback));
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Looks up the tracks of the first albums in the background unless they are cached already
+     *
+     * @param albums the albums of a combined search, the best match first
+     */
+    private static void enrichAlbums(Collection<Album> albums) {
+        int count = 0;
+        for (Album album : albums) {
+            if (count++ == ENRICHED_ALBUMS) {
+                break;
+            }
+            String key = SearchCache.albumKey(album.getHref());
+            if (SearchCache.getInstance().get(key) != null) {
+                continue;
+            }
+            try {
+                String searchUrl = MetadataClient.getUrl("album:\"" + album.getName() + "\"", RequestType.track, 1);
+                MetadataClient.getInstance().submit(new AlbumJob(album.getHref(), new MetadataClient.Call(searchUrl, key),
+                        MetadataClient.Priority.ENRICHMENT, null));
+            } catch (UnsupportedEncodingException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the latest latencies from a search to its delivery
+     */
+    public static LatencySamples getSearchLatency() {
+        return latency;
+    }
+
+    /**
+     * Adds the latency of a search that is delivered now and logs the percentiles and the metrics of the
+     * MetadataClient every LOG_EVERY searches
+     *
+     * @param started the uptime when the search started
+     */
+    private static void measure(long started) {
+        latency.add(SystemClock.uptimeMillis() - started);
+        if (latency.getCount() % LOG_EVERY == 0) {
+            long[] percentiles = latency.getPercentiles(50, 95, 99);
+            MetadataClient client = MetadataClient.getInstance();
+            Log.d(TAG, "search latency p50 " + percentiles[0] + " ms, p95 " + percentiles[1] + " ms, p99 " + percentiles[2]
+                    + " ms; jobs run " + client.getJobsRun() + ", queue depth " + client.getQueueDepth() + ", wait avg "
+                    + client.getAverageWaitMillis() + " ms, max " + client.getMaxWaitMillis() + " ms, run avg "
+                    + client.getAverageRunMillis() + " ms");
+        }
+    }
+
+    /**
+     * Returns what is already known about the first page of a search without
+     * waiting for the network. That is either the cached result of the same
+     * search, or the tracks of the longest cached search whose query is a
+     * prefix of this query that match this query, followed by the matches in
+     * the LocalTrackIndex.
+     *
+     * @param searchString the string to search for
+     * @param type         the type of the search
+     * @return the tracks or null if nothing is cached
+     */
+    public ArrayList<Track> getCachedResult(String searchString, RequestType type) {
+        SearchCache cache = SearchCache.getInstance();
+        ArrayList<Track> cached = cache.get(SearchCache.key(searchString, type, 1));
+        if (cached == null) {
+            cached = cache.getPrefixMatch(searchString, type);
+        }
+        ArrayList<Track> local = type == RequestType.track ? LocalTrackIndex.getInstance().search(searchString) : null;
+        return LocalTrackIndex.merge(cached, local);
+    }
+
+    /**
+     * Cancels the running search, if any. Its result will not be delivered.
+     */
+    public void cancel() {
+        generation++;
+        if (task != null) {
+            task.abort();
+            task = null;
+        }
+        for (CombinedJob job : combinedJobs) {
+            job.abort();
+        }
+        combinedJobs.clear();
+    }
+
+    /**
+     * Sends a request to the Spotify Metadata API through the MetadataClient in an asynchronous
+     * request. It takes the response and converts it to an arraylist which is passed back
+     * when the result is received. This only supports track search at the moment.
+     * <p/>
+     * A job that has been superseded by a newer search is aborted. Its connection is closed so the download stops,
+     * the response is not parsed and nothing is delivered, even if the job already has finished its work. When the
+     * result has more pages the next page is prefetched. The callback is only weakly referenced, so a job that waits
+     * for the network does not keep the activity alive.
+     */
+    private class SearchJob extends MetadataClient.Job {
+
+        private final String query;
+        private final RequestType type;
+        private final int page;
+        private final int requestGeneration;
+        private final long started;
+        private final WeakReference<Callback> callback;
+        private final MetadataClient.Call call;
+        private volatile ArrayList<Track> tracks;
+        private volatile boolean hasMorePages = false;
+
+        /**
+         * @param query             the string to search for
+         * @param type              the type of the search
+         * @param page              the page of the result set
+         * @param searchUrl         the url to the spotify api
+         * @param requestGeneration the generation of the search
+         * @param started           the uptime when the search started
+         * @param callback          the callback which will receive the result
+         */
+        SearchJob(String query, RequestType type, int page, String searchUrl, int requestGeneration, long started,
+                  Callback callback) {
+            super(MetadataClient.Priority.INTERACTIVE);
+            this.query = query;
+            this.type = type;
+            this.page = page;
+            this.requestGeneration = requestGeneration;
+            this.started = started;
+            this.callback = new WeakReference<Callback>(callback);
+            call = new MetadataClient.Call(searchUrl, SearchCache.key(query, type, page));
+        }
+
+        /**
+         * Stops the task and the download
+         */
+        void abort() {
+            MetadataClient.getInstance().cancel(this);
+            call.cancel();
+        }
+
+        /**
+         * Performs the request in the background and keeps the tracks of the
+         * response, or null if there was no response
+         */
+        @Override
+        protected void work() {
+            Response response = MetadataClient.getInstance().fetch(call);
+            if (response == null || isCancelled()) {
+                return;
+            }
+            Info info = response.getInfo();
+            hasMorePages = info.getOffset() + info.getLimit() < info.getNumResults();
+            tracks = toTracks(response);
+        }
 
-            /**
-             * Takes the response and converts it to an arraylist of custom Track objects
-             *
-             * @param response from the search
-             */
-            @Override
-            protected void onPostExecute(Response response) {
-                super.onPostExecute(response);
+        /**
+         * Delivers the tracks unless a newer search has started
+         */
+        @Override
+        protected void deliver() {
+            Callback callback = this.callback.get();
+            if (requestGeneration != generation || callback == null) {
+                return;
+            }
+            ArrayList<Track> tracks = this.tracks;
+            task = null;
+            if (tracks != null) {
+                SearchCache.getInstance().put(SearchCache.key(query, type, page), tracks);
+            } else {
+                tracks = new ArrayList<Track>();
+            }
+            if (page == 1 && type == RequestType.track) {
+                // the local matches that the network did not find go last
+                tracks = LocalTrackIndex.merge(tracks, LocalTrackIndex.getInstance().search(query));
+            }
+            measure(started);
+            callback.onSearchResult(tracks);
+            if (hasMorePages) {
+                MetadataClient.getInstance().prefetch(query, type, page + 1);
+            }
+        }
+    }
+
+    /**
+     * One of the searches of a combined search. It is aborted like a SearchJob when a newer search starts, and adds
+     * its result to the combined result on the main thread.
+     */
+    private class CombinedJob extends MetadataClient.Job {
+
+        private final String query;
+        private final RequestType type;
+        private final int requestGeneration;
+        private final CombinedResult result;
+        private final WeakReference<CombinedCallback> callback;
+        private final MetadataClient.Call call;
+        private volatile Response response;
+
+        /**
+         * @param query             the string to search for
+         * @param type              the type of the search
+         * @param searchUrl         the url to the spotify api
+         * @param requestGeneration the generation of the search
+         * @param result            the combined result to add to
+         * @param callback          the callback which will receive the result
+         */
+        CombinedJob(String query, RequestType type, String searchUrl, int requestGeneration, CombinedResult result,
+                    CombinedCallback callback) {
+            super(MetadataClient.Priority.INTERACTIVE);
+            this.query = query;
+            this.type = type;
+            this.requestGeneration = requestGeneration;
+            this.result = result;
+            this.callback = new WeakReference<CombinedCallback>(callback);
+            call = new MetadataClient.Call(searchUrl, SearchCache.key(query, type, 1));
+        }
+
+        void abort() {
+            MetadataClient.getInstance().cancel(this);
+            call.cancel();
+        }
+
+        @Override
+        protected void work() {
+            response = MetadataClient.getInstance().fetch(call);
+        }
+
+        /**
+         * Adds the response to the combined result and delivers it unless a newer search has started
+         */
+        @Override
+        protected void deliver() {
+            CombinedCallback callback = this.callback.get();
+            if (requestGeneration != generation || callback == null) {
+                return;
+            }
+            combinedJobs.remove(this);
+            Response response = this.response;
+            if (type == RequestType.track) {
+                ArrayList<Track> tracks = response == null ? new ArrayList<Track>() : toTracks(response);
                 if (response != null) {
-                    if (response.getInfo().getType() == RequestType.track) {
-                        for (com.mixtape.spotify.api.Track t : response.getTracks()) {
-                            Artist a = (Artist) t.getArtists().toArray()[0];
-                            Track track = new Track(t.getName(), a.getName(), t.getHref(), t.getLength());
-                            tracks.add(track);
-                        }
-                    }
+                    SearchCache.getInstance().put(SearchCache.key(query, type, 1), tracks);
                 }
-                callback.onSearchResult(tracks);
+                result.tracks = LocalTrackIndex.merge(tracks, LocalTrackIndex.getInstance().search(query));
+            } else if (type == RequestType.album && response != null && response.getAlbums() != null) {
+                result.albums = new ArrayList<Album>(response.getAlbums());
+                enrichAlbums(result.albums);
+            } else if (type == RequestType.artist && response != null && response.getArtists() != null) {
+                result.artists = new ArrayList<Artist>(response.getArtists());
+            }
+            result.pending--;
+            if (result.isComplete()) {
+                measure(result.started);
             }
-        };
-        worker.execute(searchUrl);
+            callback.onCombinedResult(result.copy());
+        }
+    }
+
+    /**
+     * Looks up the tracks of an album with a track search for the name of the album, keeping only the tracks of that
+     * very album. The tracks are kept in the SearchCache under the key of the album. A job without a callback only
+     * fills the cache.
+     */
+    private static class AlbumJob extends MetadataClient.Job {
+
+        private final String album;
+        private final MetadataClient.Call call;
+        private final WeakReference<Callback> callback;
+        private volatile ArrayList<Track> tracks;
+
+        /**
+         * @param album    the href of the album
+         * @param call     the track search for the name of the album
+         * @param priority INTERACTIVE when the user opens the album, ENRICHMENT in the background
+         * @param callback the callback which will receive the tracks, null if none
+         */
+        AlbumJob(String album, MetadataClient.Call call, MetadataClient.Priority priority, Callback callback) {
+            super(priority);
+            this.album = album;
+            this.call = call;
+            this.callback = callback == null ? null : new WeakReference<Callback>(callback);
+        }
+
+        @Override
+        protected void work() {
+            Response response = MetadataClient.getInstance().fetch(call);
+            if (response == null || response.getTracks() == null) {
+                return;
+            }
+            ArrayList<com.mixtape.spotify.api.Track> albumTracks = new ArrayList<com.mixtape.spotify.api.Track>();
+            for (com.mixtape.spotify.api.Track t : response.getTracks()) {
+                if (t.getAlbum() != null && album.equals(t.getAlbum().getHref())) {
+                    albumTracks.add(t);
+                }
+            }
+            Collections.sort(albumTracks, new Comparator<com.mixtape.spotify.api.Track>() {
+                public int compare(com.mixtape.spotify.api.Track a, com.mixtape.spotify.api.Track b) {
+                    return a.getTrackNumber() - b.getTrackNumber();
+                }
+            });
+            ArrayList<Track> tracks = toTracks(albumTracks);
+            SearchCache.getInstance().put(SearchCache.albumKey(album), tracks);
+            this.tracks = tracks;
+        }
+
+        @Override
+        protected void deliver() {
+            Callback callback = this.callback == null ? null : this.callback.get();
+            if (callback != null) {
+                ArrayList<Track> tracks = this.tracks;
+                callback.onSearchResult(tracks == null ? new ArrayList<Track>() : tracks);
+            }
+        }
     }
 
+    /**
+     * The result of a combined search so far. The lists are empty until their search is finished, and the tracks
+     * are followed by the matches in the LocalTrackIndex like in a track search.
+     */
+    public static class CombinedResult {
+
+        private ArrayList<Track> tracks = new ArrayList<Track>();
+        private ArrayList<Album> albums = new ArrayList<Album>();
+        private ArrayList<Artist> artists = new ArrayList<Artist>();
+        private int pending = RequestType.values().length;
+        private long started;
+
+        /**
+         * An empty result, none of the searches is finished
+         */
+        public CombinedResult() {
+        }
+
+        /**
+         * A result with tracks that are known before any of the searches is finished, like those of
+         * getCachedResult
+         *
+         * @param tracks the tracks
+         */
+        public CombinedResult(ArrayList<Track> tracks) {
+            this.tracks = tracks;
+        }
+
+        public ArrayList<Track> getTracks() {
+            return tracks;
+        }
+
+        public ArrayList<Album> getAlbums() {
+            return albums;
+        }
+
+        public ArrayList<Artist> getArtists() {
+            return artists;
+        }
+
+        /**
+         * @return true if every search is finished
+         */
+        public boolean isComplete() {
+            return pending <= 0;
+        }
+
+        /**
+         * @return true if nothing has been found so far
+         */
+        public boolean isEmpty() {
+            return tracks.isEmpty() && albums.isEmpty() && artists.isEmpty();
+        }
+
+        /**
+         * The result that is delivered is a copy, so it does not change when the next search is finished
+         */
+        private CombinedResult copy() {
+            CombinedResult copy = new CombinedResult();
+            copy.tracks = new ArrayList<Track>(tracks);
+            copy.albums = new ArrayList<Album>(albums);
+            copy.artists = new ArrayList<Artist>(artists);
+            copy.pending = pending;
+            return copy;
+        }
+    }
+
+    /**
+     * Converts the response to an arraylist of custom Track objects
+     *
+     * @param response from the search
+     * @return the tracks, empty unless it was a track search
+     */
+    static ArrayList<Track> toTracks(Response response) {
+        if (response.getInfo().getType() == RequestType.track && response.getTracks() != null) {
+            return toTracks(response.getTracks());
+        }
+        return new ArrayList<Track>();
+    }
+
+    /**
+     * @param libraryTracks tracks of the library
+     * @return the custom Track objects of the tracks
+     */
+    private static ArrayList<Track> toTracks(Collection<com.mixtape.spotify.api.Track> libraryTracks) {
+        ArrayList<Track> tracks = new ArrayList<Track>(libraryTracks.size());
+        for (com.mixtape.spotify.api.Track t : libraryTracks) {
+            Artist a = (Artist) t.getArtists().toArray()[0];
+            Track track = TrackRegistry.getInstance().obtain(t.getName(), a.getName(), t.getHref(), t.getLength());
+            tracks.add(track);
+        }
+        return tracks;
+    }
 }
@@ -5,11 +5,14 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
 import android.util.Log;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 /**
  * This class controls the main flow of the application. It forwards connect requests and messages
@@ -35,9 +38,12 @@ public class ApplicationController implements MqttWorker.Callback, DialogFactory
          *
          * @param action the action to perform
          * @param t      the data that the actions needs to complete its action. This differs as follows;
-         *               add: Track t
-         *               add_all: ArrayList<Track> t
+         *               add: TrackRange t with the added track
+         *               next, prev: Integer t with the number of tracks skipped
+         *               snapshot: TrackRange t
+         *               range: TrackRange t
          *               seek: float t
+         *               state: PlaybackState t
          */
         public <T extends Object> void onMessageAction(Action action, T t);
     }
@@ -46,17 +52,53 @@ public class ApplicationController implements MqttWorker.Callback, DialogFactory
     private static final String TOPIC_PLAYLIST = "/playlist";
     private static final String TOPIC_PRIVATE = "/playlist/playlistmanager";
     private static final String TOPIC_SENSOR = "/sensor/infotainment";
+    private static final String TOPIC_STATE = "/playlist/state";
+    private static final String TOPIC_SNAPSHOT = "/playlist/snapshot";
+    private static final String TOPIC_OPS = "/playlist/ops";
     private static final String TAG = "ApplicationController";
     private static final String TRACK_URI = "uri";
     private static final String TRACK_NAME = "track";
     private static final String TRACK_ARTIST = "artist";
     private static final String TRACK_LENGTH = "tracklength";
+    private static final String STATE_URI = "uri";
+    private static final String STATE_POSITION = "position";
+    private static final String STATE_PLAYING = "playing";
+    private static final String STATE_TIMESTAMP = "timestamp";
+    private static final String STATE_RATE = "rate";
+    private static final String SNAPSHOT_VERSION = "version";
+    private static final String SNAPSHOT_TRACKS = "tracks";
+    private static final String RANGE_TOTAL = "total";
+    private static final String RANGE_OFFSET = "offset";
+    private static final String RANGE_COUNT = "count";
+    private static final String OP_VERSION = "version";
+    private static final String OP_TYPE = "op";
+    private static final String OP_TRACK = "track";
+    private static final String OP_COUNT = "count";
+    private static final String OP_TOPIC = "topic";
+    private static final String ELEMENT_ID = "id";
+    private static final String ELEMENT_AFTER = "after";
+    private static final String ELEMENT_FROM = "from";
+    private static final String CLOCK_ID = "id";
+    private static final String CLOCK_SENT = "sent";
+    private static final String CLOCK_DEVICE = "device";
+    private static final String CLIENT_ID = "playlistmanager";
+    private static final int CLOCK_SAMPLES = 3;
+    private static final long REQUEST_TIMEOUT_MILLIS = 5000;
 
     private String brokerUrl = "";
     private MqttWorker mqttWorker;
     private Context context;
     private Callback callback;
     private LoadingDialogFragment connectingDialog;
+    private PlaybackClock clock = new PlaybackClock();
+    private int playlistVersion = -1;
+    private boolean awaitingOperations = false;
+    private boolean awaitingSnapshot = false;
+    private boolean operationsResent = false;
+    private long operationsRequested;
+    private long snapshotRequested;
+    private final String elementClient = CLIENT_ID + "-" + Long.toHexString(new Random().nextLong());
+    private long elementClock = 0;
 
     /**
      * Sets up the basic controls of the class.
@@ -80,6 +122,10 @@ public class ApplicationController implements MqttWorker.Callback, DialogFactory
         connectingDialog = DialogFactory.buildConnectingDialog(context, url);
         connectingDialog.show(((FragmentActivity) context).getFragmentManager(), "connectingDialog");
         brokerUrl = url;
+        clock.reset();
+        playlistVersion = -1;
+        awaitingOperations = false;
+        awaitingSnapshot = false;
         mqttWorker.disconnect();
         mqttWorker.interrupt();
         mqttWorker = new MqttWorker(this);
@@ -89,7 +135,8 @@ public class ApplicationController implements MqttWorker.Callback, DialogFactory
 
     /**
      * Called from the mqtt client when the connection has been established or failed. If connection
-     * has failed, it shows a connect dialog to the user.
+     * has failed, it shows a connect dialog to the user. The playlist is not requested from the
+     * primary device, it is delivered by the broker as the retained snapshot on subscribe.
      *
      * @param connected true if connected, false if not.
      */
@@ -99,9 +146,14 @@ public class ApplicationController implements MqttWorker.Callback, DialogFactory
             mqttWorker.subscribe(TOPIC_PLAYLIST);
             mqttWorker.subscribe(TOPIC_PRIVATE);
             mqttWorker.subscribe(TOPIC_SENSOR);
-            mqttWorker.publish(TOPIC_PLAYLIST, getAllJsonMessage());
+            mqttWorker.subscribe(TOPIC_STATE);
+            mqttWorker.subscribe(TOPIC_SNAPSHOT);
+            mqttWorker.subscribe(TOPIC_OPS);
+            for (int i = 0; i < CLOCK_SAMPLES; i++) {
+                mqttWorker.publish(TOPIC_PLAYLIST, getClockJsonMessage());
+            }
             connectingDialog.dismiss();
-            Log.d(TAG, "Now subscribing to " + TOPIC_PLAYLIST + ", " + TOPIC_PRIVATE + ", " + TOPIC_SENSOR);
+            Log.d(TAG, "Now subscribing to " + TOPIC_PLAYLIST + ", " + TOPIC_PRIVATE + ", " + TOPIC_SENSOR + ", " + TOPIC_STATE + ", " + TOPIC_SNAPSHOT + ", " + TOPIC_OPS);
         } else {
             ((MainActivity) context).runOnUiThread(new Runnable() {
                 @Override
@@ -113,18 +165,23 @@ public class ApplicationController implements MqttWorker.Callback, DialogFactory
     }
 
     /**
-     * Helper method that builds a "get_all" json message which is published
-     * by the mqtt client when the application starts.
+     * Helper method that builds a "clock" json message. The primary device answers
+     * with its own time on the state topic which is used to calculate the offset
+     * between the clocks. The request carries the id of this instance, so that
+     * only the answers to this phone's own requests are used.
      *
      * @return a string representation of the message.
      */
-    private String getAllJsonMessage() {
+    private String getClockJsonMessage() {
         JSONObject message = new JSONObject();
+        JSONObject data = new JSONObject();
         try {
-            message.put(Action.action.toString(), Action.get_all.toString());
-            message.put(TYPE_DATA, TOPIC_PRIVATE);
+            data.put(CLOCK_ID, elementClient);
+            data.put(CLOCK_SENT, SystemClock.elapsedRealtime());
+            message.put(Action.action.toString(), Action.clock.toString());
+            message.put(TYPE_DATA, data);
         } catch (JSONException e) {
-            Log.d(TAG, "Could not create get_all message: " + e.getMessage());
+            Log.d(TAG, "Could not create clock message: " + e.getMessage());
         }
         return message.toString();
     }
@@ -152,7 +209,9 @@ public class ApplicationController implements MqttWorker.Callback, DialogFactory
      * Executed from the mqtt client when a message has been received. It checks what
      * kind of message has come in and triggers callbacks to the Callback implementer.
      * The actions have different datatypes that are required for their actions and
-     * this data is constructed here.
+     * this data is constructed here. Changes of the playlist are only applied from the
+     * versioned operations and snapshots of the primary device, the plain add, add_all,
+     * next and prev messages are commands to the primary device.
      *
      * @param topic   the topic of the imcoming message
      * @param payload the message body as a json string
@@ -165,17 +224,44 @@ public class ApplicationController implements MqttWorker.Callback, DialogFactory
             Action action = Action.valueOf(actionString);
             switch (action) {
                 case add:
-                    Track track = jsonToTrack(json);
-                    callback.onMessageAction(action, track);
-                    break;
                 case add_all:
-                    JSONArray trackArray = json.getJSONArray(TYPE_DATA);
-                    callback.onMessageAction(action, jsonArrayToTrackList(trackArray));
+                case next:
+                case prev:
+                case shuffle:
+                case repeat:
+                case jump:
+                case get_snapshot:
                     break;
                 case seek:
                     float position = Float.parseFloat(json.getString(TYPE_DATA));
                     callback.onMessageAction(action, position);
                     break;
+                case state:
+                    callback.onMessageAction(action, jsonToPlaybackState(json.getJSONObject(TYPE_DATA)));
+                    break;
+                case snapshot:
+                    applySnapshot(json.getJSONObject(TYPE_DATA));
+                    break;
+                case op:
+                    applyOperation(json.getJSONObject(TYPE_DATA));
+                    break;
+                case range:
+                    callback.onMessageAction(action, jsonToTrackRange(json.getJSONObject(TYPE_DATA)));
+                    break;
+                case ops:
+                    awaitingOperations = false;
+                    JSONArray operations = json.getJSONArray(TYPE_DATA);
+                    for (int i = 0; i < operations.length(); i++) {
+                        applyOperation(operations.getJSONObject(i));
+                    }
+                    break;
+                case clock:
+                    JSONObject data = json.getJSONObject(TYPE_DATA);
+                    // Requests come back on /playlist too, only answers have the time of the device
+                    if (elementClient.equals(data.optString(CLOCK_ID)) && data.has(CLOCK_DEVICE)) {
+                        clock.addSample(data.getLong(CLOCK_SENT), data.getLong(CLOCK_DEVICE), SystemClock.elapsedRealtime());
+                    }
+                    break;
                 default:
                     callback.onMessageAction(action);
                     break;
@@ -183,58 +269,271 @@ public class ApplicationController implements MqttWorker.Callback, DialogFactory
         } catch (JSONException e) {
             Log.e(TAG, "Could not create json object from payload " + payload + " with error: " + e.getMessage());
         }
+        checkRequests();
     }
 
     /**
-     * Converts a json array of tracks to an array list of tracks.
+     * Repeats the requests that have not been answered in time. It runs after every
+     * message, and the primary device publishes its state at a slow pace, so a lost
+     * request or answer is noticed even if the playlist does not change again.
+     */
+    private void checkRequests() {
+        if (awaitingOperations) {
+            requestOperations();
+        }
+        if (awaitingSnapshot) {
+            requestSnapshot();
+        }
+    }
+
+    /**
+     * Replaces the playlist with the one in the snapshot unless the snapshot has the
+     * version that the playlist already has. After a shuffle or a jump the playlist
+     * has the version of the operation but not its order, so then the snapshot is
+     * used anyway.
+     *
+     * @param snapshot the data of the snapshot message
+     * @throws JSONException if the snapshot does not have the required fields.
+     */
+    private void applySnapshot(JSONObject snapshot) throws JSONException {
+        int version = snapshot.getInt(SNAPSHOT_VERSION);
+        awaitingOperations = false;
+        if (version != playlistVersion || (awaitingSnapshot && version >= playlistVersion)) {
+            awaitingSnapshot = false;
+            playlistVersion = version;
+            callback.onMessageAction(Action.snapshot, jsonToTrackRange(snapshot));
+        }
+    }
+
+    /**
+     * Applies an operation if it is the one following the current version of the playlist.
+     * Operations that already have been applied are skipped. If one or more operations
+     * are missing, the primary device is asked for the operations since the current
+     * version and the playlist is left as it is until they arrive. Without a snapshot
+     * there is nothing to build on, so the playlist starts over empty at version 0.
      *
-     * @param trackArray the json array of tracks
+     * @param operation the json object of the operation
+     * @throws JSONException if the operation does not have the required fields.
+     */
+    private void applyOperation(JSONObject operation) throws JSONException {
+        int version = operation.getInt(OP_VERSION);
+        if (playlistVersion == -1) {
+            playlistVersion = 0;
+            callback.onMessageAction(Action.snapshot, new TrackRange(0, 0, 0, new ArrayList<Track>()));
+        }
+        if (version <= playlistVersion) {
+            return;
+        }
+        if (version != playlistVersion + 1) {
+            requestOperations();
+            return;
+        }
+        playlistVersion = version;
+        Action type = Action.valueOf(operation.getString(OP_TYPE));
+        switch (type) {
+            case add:
+                JSONArray compactTrack = operation.getJSONArray(OP_TRACK);
+                ArrayList<Track> tracks = new ArrayList<Track>(1);
+                ArrayList<ElementId> ids = new ArrayList<ElementId>(1);
+                tracks.add(compactToTrack(compactTrack));
+                ids.add(compactToId(compactTrack));
+                callback.onMessageAction(type, new TrackRange(version, 0, operation.optInt(RANGE_OFFSET, -1), tracks, ids));
+                break;
+            case stop:
+                callback.onMessageAction(Action.snapshot, new TrackRange(version, 0, 0, new ArrayList<Track>()));
+                break;
+            case next:
+            case prev:
+                callback.onMessageAction(type, operation.optInt(OP_COUNT, 1));
+                break;
+            case shuffle:
+            case jump:
+                requestSnapshot();
+                break;
+            default:
+                callback.onMessageAction(type);
+                break;
+        }
+    }
+
+    /**
+     * Asks the primary device for the operations since the current version of the
+     * playlist. Only one request is made until the answer has arrived, unless it has
+     * not arrived within the timeout. Then the request is sent once more, and if that
+     * is not answered either a snapshot is requested instead.
+     */
+    private void requestOperations() {
+        long now = SystemClock.elapsedRealtime();
+        if (awaitingOperations) {
+            if (now - operationsRequested < REQUEST_TIMEOUT_MILLIS) {
+                return;
+            }
+            if (operationsResent) {
+                // The operations are still missing, the snapshot replaces them
+                operationsRequested = now;
+                requestSnapshot();
+                return;
+            }
+            operationsResent = true;
+        } else {
+            operationsResent = false;
+        }
+        awaitingOperations = true;
+        operationsRequested = now;
+        JSONObject message = new JSONObject();
+        JSONObject data = new JSONObject();
+        try {
+            data.put(OP_VERSION, playlistVersion);
+            data.put(OP_TOPIC, TOPIC_PRIVATE);
+            message.put(Action.action.toString(), Action.get_ops.toString());
+            message.put(TYPE_DATA, data);
+        } catch (JSONException e) {
+            Log.d(TAG, "Could not create get_ops message: " + e.getMessage());
+        }
+        mqttWorker.publish(TOPIC_PLAYLIST, message.toString());
+    }
+
+    /**
+     * Asks the primary device for a snapshot of the playlist, since the order after a
+     * shuffle or a jump cannot be worked out from the operation. Only one request is
+     * made until a snapshot has arrived, unless it has not arrived within the timeout.
+     */
+    private void requestSnapshot() {
+        long now = SystemClock.elapsedRealtime();
+        if (awaitingSnapshot && now - snapshotRequested < REQUEST_TIMEOUT_MILLIS) {
+            return;
+        }
+        awaitingSnapshot = true;
+        snapshotRequested = now;
+        JSONObject message = new JSONObject();
+        JSONObject data = new JSONObject();
+        try {
+            data.put(OP_TOPIC, TOPIC_PRIVATE);
+            message.put(Action.action.toString(), Action.get_snapshot.toString());
+            message.put(TYPE_DATA, data);
+        } catch (JSONException e) {
+            Log.d(TAG, "Could not create get_snapshot message: " + e.getMessage());
+        }
+        mqttWorker.publish(TOPIC_PLAYLIST, message.toString());
+    }
+
+    /**
+     * Converts the data of a snapshot or range message to a TrackRange.
+     *
+     * @param range the json object with the version, total, offset and tracks
+     * @return the TrackRange object that has been created
+     * @throws JSONException if the json object does not have the required fields.
+     */
+    private TrackRange jsonToTrackRange(JSONObject range) throws JSONException {
+        JSONArray trackArray = range.getJSONArray(SNAPSHOT_TRACKS);
+        ArrayList<Track> tracks = snapshotToTrackList(trackArray);
+        List<ElementId> ids = new ArrayList<ElementId>(trackArray.length());
+        for (int i = 0; i < trackArray.length(); i++) {
+            ids.add(compactToId(trackArray.getJSONArray(i)));
+        }
+        return new TrackRange(range.getInt(SNAPSHOT_VERSION), range.optInt(RANGE_TOTAL, tracks.size()),
+                range.optInt(RANGE_OFFSET), tracks, ids);
+    }
+
+    /**
+     * Converts the compact track array of a snapshot to an array list of tracks. Each
+     * track in the snapshot is an array of [track, artist, uri, tracklength, id].
+     *
+     * @param trackArray the json array of compact tracks
      * @return a list of Track objects
-     * @throws JSONException if the json object does not meet the Track object required fields.
+     * @throws JSONException if a track does not have the required fields.
      */
-    private ArrayList<Track> jsonArrayToTrackList(JSONArray trackArray) throws JSONException {
-        ArrayList<Track> playlist = new ArrayList<Track>();
+    private ArrayList<Track> snapshotToTrackList(JSONArray trackArray) throws JSONException {
+        ArrayList<Track> playlist = new ArrayList<Track>(trackArray.length());
         for (int i = 0; i < trackArray.length(); i++) {
-            JSONObject jsonTrack = trackArray.getJSONObject(i);
-            Track track = jsonToTrack(jsonTrack);
-            playlist.add(track);
+            playlist.add(compactToTrack(trackArray.getJSONArray(i)));
         }
         return playlist;
     }
 
     /**
-     * Converts a json object of a track to a real Track object.
+     * Converts a compact track of a snapshot or an operation to a Track object.
      *
-     * @param jsonTrack the json object to convert
+     * @param compactTrack the json array [track, artist, uri, tracklength]
      * @return the Track object that has been created
-     * @throws JSONException if the json object does not meet the Track object required fields.
+     * @throws JSONException if the track does not have the required fields.
+     */
+    private Track compactToTrack(JSONArray compactTrack) throws JSONException {
+        return TrackRegistry.getInstance().obtain(compactTrack.getString(0), compactTrack.getString(1), compactTrack.optString(2), compactTrack.optInt(3));
+    }
+
+    /**
+     * Reads the id of the entry of a compact track and moves the clock past it, so
+     * that the ids of the tracks this client adds are ordered after it.
+     *
+     * @param compactTrack the json array [track, artist, uri, tracklength, id]
+     * @return the id or null if the track has none
      */
-    private Track jsonToTrack(JSONObject jsonTrack) throws JSONException {
-        return new Track(jsonTrack.getString(TRACK_NAME), jsonTrack.getString(TRACK_ARTIST), jsonTrack.optString(TRACK_URI), jsonTrack.optInt(TRACK_LENGTH));
+    private ElementId compactToId(JSONArray compactTrack) {
+        ElementId id = ElementId.parse(compactTrack.optString(4, null));
+        if (id != null) {
+            synchronized (this) {
+                elementClock = Math.max(elementClock, id.getClock());
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return a new id for an entry that this client adds
+     */
+    private synchronized ElementId nextElementId() {
+        return new ElementId(++elementClock, elementClient);
+    }
+
+    /**
+     * Converts a json object of a playback state to a PlaybackState where the timestamp
+     * has been converted to the local clock.
+     *
+     * @param jsonState the json object to convert
+     * @return the PlaybackState object that has been created
+     * @throws JSONException if the json object does not have the required fields.
+     */
+    private PlaybackState jsonToPlaybackState(JSONObject jsonState) throws JSONException {
+        long timestamp = clock.toLocalTime(jsonState.getLong(STATE_TIMESTAMP));
+        return new PlaybackState(jsonState.optString(STATE_URI), jsonState.getLong(STATE_POSITION),
+                jsonState.getBoolean(STATE_PLAYING), timestamp, (float) jsonState.optDouble(STATE_RATE, 1.0));
     }
 
     /**
      * Called when the user has selected a track from the search results and wish to add it to
      * the playlist. This method creates the json object and ask's the mqtt client to publish it.
+     * The track is sent with a new id and the id of the entry it should follow, so that the
+     * primary device puts it where the user saw it being added even if other clients add tracks
+     * at the same time.
      *
      * @param track the track to add to the playlist
+     * @param after the id of the entry to add the track after, null to add it last
+     * @return the id the track was sent with, or null if it could not be sent
      */
-    public void addTrack(Track track) {
+    public ElementId addTrack(Track track, ElementId after) {
         if (mqttWorker != null) {
             JSONObject message = new JSONObject();
+            ElementId id = nextElementId();
             try {
                 message.put(Action.action.toString(), Action.add.toString());
                 message.put(TRACK_ARTIST, track.getArtist());
                 message.put(TRACK_NAME, track.getName());
                 message.put(TRACK_URI, track.getUri());
                 message.put(TRACK_LENGTH, track.getLength());
+                message.put(ELEMENT_ID, id.toString());
+                if (after != null) {
+                    message.put(ELEMENT_AFTER, after.toString());
+                }
                 mqttWorker.publish(TOPIC_PLAYLIST, message.toString());
+                return id;
             } catch (JSONException e) {
                 Log.e(TAG, "Could not create and send json object from track " + track.toString() + " with error: " + e.getMessage());
             }
         } else {
             Toast.makeText(context, R.string.cant_add_tracks_connect_to_broker, Toast.LENGTH_LONG).show();
         }
+        return null;
     }
 
     /**
@@ -244,12 +543,27 @@ public class ApplicationController implements MqttWorker.Callback, DialogFactory
      * @param action the action to publish
      */
     public void performAction(Action action) {
+        performAction(action, null);
+    }
+
+    /**
+     * Tells the mqtt client to perfom an action. These actions are any of;
+     * play, pause, prev, next. A prev or next is sent with the entry that the user saw
+     * as the current one, so that the primary device can skip it only once when several
+     * users press next at the same time.
+     *
+     * @param action  the action to publish
+     * @param current the id of the current entry, null if not known
+     */
+    public void performAction(Action action, ElementId current) {
         switch (action) {
             case play:
             case pause:
+                mqttWorker.publish(TOPIC_PLAYLIST, getJsonActionMessage(action.toString(), null));
+                break;
             case prev:
             case next:
-                mqttWorker.publish(TOPIC_PLAYLIST, getJsonActionMessage(action.toString()));
+                mqttWorker.publish(TOPIC_PLAYLIST, getJsonActionMessage(action.toString(), current));
                 break;
             default:
                 break;
@@ -260,18 +574,44 @@ public class ApplicationController implements MqttWorker.Callback, DialogFactory
      * Helper method to build a json message with a given action.
      *
      * @param action the action to add to the 'action' field
+     * @param from   the id of the current entry to add to the 'from' field, null if none
      * @return a string representation of the json object
      */
-    private String getJsonActionMessage(String action) {
+    private String getJsonActionMessage(String action, ElementId from) {
         JSONObject json = new JSONObject();
         try {
             json.put(Action.action.toString(), action);
+            if (from != null) {
+                json.put(ELEMENT_FROM, from.toString());
+            }
         } catch (JSONException e) {
             Log.e(TAG, "Could not create and send json object from action " + action + " with error: " + e.getMessage());
         }
         return json.toString();
     }
 
+    /**
+     * Asks the primary device for a window of the playlist. The answer is a 'range'
+     * message on the private topic.
+     *
+     * @param offset the first track counted from the current track
+     * @param count  the number of tracks
+     */
+    public void requestRange(int offset, int count) {
+        JSONObject message = new JSONObject();
+        JSONObject data = new JSONObject();
+        try {
+            data.put(RANGE_OFFSET, offset);
+            data.put(RANGE_COUNT, count);
+            data.put(OP_TOPIC, TOPIC_PRIVATE);
+            message.put(Action.action.toString(), Action.get_range.toString());
+            message.put(TYPE_DATA, data);
+        } catch (JSONException e) {
+            Log.d(TAG, "Could not create get_range message: " + e.getMessage());
+        }
+        mqttWorker.publish(TOPIC_PLAYLIST, message.toString());
+    }
+
     /**
      * Fetches the current brokerUrl and returns it.
      *
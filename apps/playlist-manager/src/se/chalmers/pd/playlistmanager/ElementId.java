@@ -0,0 +1,80 @@
+package se.chalmers.pd.playlistmanager;
+
+/**
+ * Identifies one entry of the playlist across all devices. The id is made of a
+ * logical clock and the id of the client that created the entry, which makes it
+ * unique without asking anyone and gives all entries a total order that every
+ * device agrees on. A client always uses a clock that is higher than every id it
+ * has seen, so an entry is ordered after the entries its creator knew about.
+ */
+public class ElementId implements Comparable<ElementId> {
+
+    private static final char SEPARATOR = ':';
+
+    private final long clock;
+    private final String client;
+
+    /**
+     * @param clock  the logical clock of the client when the entry was created
+     * @param client the id of the client that created the entry
+     */
+    public ElementId(long clock, String client) {
+        this.clock = clock;
+        this.client = client;
+    }
+
+    /**
+     * Parses an id in the form clock:client
+     *
+     * @param id the string representation
+     * @return the id or null if the string is not an id
+     */
+    public static ElementId parse(String id) {
+        if (id == null) {
+            return null;
+        }
+        int separator = id.indexOf(SEPARATOR);
+        if (separator <= 0) {
+            return null;
+        }
+        try {
+            return new ElementId(Long.parseLong(id.substring(0, separator)), id.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public long getClock() {
+        return clock;
+    }
+
+    public String getClient() {
+        return client;
+    }
+
+    public int compareTo(ElementId other) {
+        if (clock != other.clock) {
+            return clock < other.clock ? -1 : 1;
+        }
+        return client.compareTo(other.client);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (object instanceof ElementId) {
+            ElementId id = (ElementId) object;
+            return id.clock == clock && id.client.equals(client);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (clock ^ (clock >>> 32)) * 31 + client.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return clock + String.valueOf(SEPARATOR) + client;
+    }
+}
@@ -1,5 +1,8 @@
 package se.chalmers.pd.playlistmanager;
 
+import com.mixtape.spotify.api.Album;
+import com.mixtape.spotify.api.Artist;
+
 /**
  * This interface contains callbacks from the fragments.
  */
@@ -26,4 +29,26 @@ public interface FragmentCallback {
      * @param track the track selected
      */
     public void onTrackSelected(Track track);
+
+    /**
+     * Called when an album has been selected in the search result list.
+     *
+     * @param album the album selected
+     */
+    public void onAlbumSelected(Album album);
+
+    /**
+     * Called when an artist has been selected in the search result list.
+     *
+     * @param artist the artist selected
+     */
+    public void onArtistSelected(Artist artist);
+
+    /**
+     * Called when a list needs tracks of the playlist that have not been loaded.
+     *
+     * @param offset the first track counted from the current track
+     * @param count  the number of tracks
+     */
+    public void onLoadTracks(int offset, int count);
 }
@@ -0,0 +1,64 @@
+package se.chalmers.pd.playlistmanager;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latest latencies that were measured and calculates percentiles of
+ * them. Older samples are overwritten, so the percentiles follow how the
+ * application behaves now rather than since it was started. Any thread may add
+ * samples.
+ */
+public class LatencySamples {
+
+    private final long[] samples;
+    private int next = 0;
+    private int size = 0;
+    private long count = 0;
+
+    /**
+     * @param capacity the number of latest samples to keep
+     */
+    public LatencySamples(int capacity) {
+        samples = new long[capacity];
+    }
+
+    /**
+     * @param millis the latency of one measurement
+     */
+    public synchronized void add(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        size = Math.min(size + 1, samples.length);
+        count++;
+    }
+
+    /**
+     * @return the number of samples that have been added, also those that have been overwritten
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Calculates percentiles of the kept samples with the nearest rank method
+     *
+     * @param percentiles the percentiles to calculate, from 0 to 100
+     * @return the latency at each percentile, all 0 if there are no samples
+     */
+    public long[] getPercentiles(int... percentiles) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, size);
+        }
+        Arrays.sort(sorted);
+        long[] result = new long[percentiles.length];
+        if (sorted.length == 0) {
+            return result;
+        }
+        for (int i = 0; i < percentiles.length; i++) {
+            int rank = (int) Math.ceil(percentiles[i] / 100.0 * sorted.length);
+            result[i] = sorted[Math.min(Math.max(rank, 1), sorted.length) - 1];
+        }
+        return result;
+    }
+}
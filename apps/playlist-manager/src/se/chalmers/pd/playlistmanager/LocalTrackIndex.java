@@ -0,0 +1,540 @@
+package se.chalmers.pd.playlistmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An index over every track the playlist manager has seen, from the playlist
+ * messages and from search results, so that searches get local matches
+ * without the network.
+ * <p/>
+ * The words of the track names and artists are indexed twice. Every prefix of
+ * a word, up to MAX_PREFIX characters, points to the tracks with that word, which
+ * answers queries that are being typed. Every three letter sequence of a word
+ * also points to its tracks, which finds tracks when the query is misspelled or
+ * starts in the middle of a word. The postings are lists of track numbers in
+ * the order the tracks were added, so they are sorted and can be intersected
+ * in one pass.
+ * <p/>
+ * The tracks are appended to a file as they are seen, on a background thread,
+ * and the index is rebuilt from the file when the application starts. Tracks
+ * that are seen before the file has been loaded are only appended if the file
+ * does not have them, and a file with many duplicates is written anew.
+ */
+public class LocalTrackIndex {
+
+    private static final int MAX_PREFIX = 12;
+    private static final int GRAM = 3;
+    private static final int MAX_RESULTS = 50;
+    private static final float MIN_GRAM_SHARE = 0.5f;
+    private static final int COMPACT_DUPLICATES = 100;
+
+    private static LocalTrackIndex instance;
+
+    private final ArrayList<Entry> entries = new ArrayList<Entry>();
+    private final HashMap<String, Integer> uris = new HashMap<String, Integer>();
+    private final HashMap<String, Postings> prefixes = new HashMap<String, Postings>();
+    private final HashMap<String, Postings> grams = new HashMap<String, Postings>();
+    private final ArrayList<Entry> unsaved = new ArrayList<Entry>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private File file;
+    private boolean saveScheduled = false;
+
+    private LocalTrackIndex() {
+    }
+
+    /**
+     * @return the index
+     */
+    public static synchronized LocalTrackIndex getInstance() {
+        if (instance == null) {
+            instance = new LocalTrackIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * Loads the tracks that were seen before in the background, and saves the
+     * tracks that are seen from now on to the same file.
+     *
+     * @param file the file of the index
+     */
+    public synchronized void open(final File file) {
+        if (this.file != null) {
+            return;
+        }
+        this.file = file;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(file);
+            }
+        });
+        scheduleSave();
+    }
+
+    /**
+     * Indexes a track unless a track with the same uri has been indexed
+     *
+     * @param track the track that has been seen
+     */
+    public void add(Track track) {
+        if (track.getUri() == null || track.getName() == null) {
+            return;
+        }
+        Entry entry = new Entry(track.getName(), track.getArtist() == null ? "" : track.getArtist(), track.getUri(),
+                track.getLength());
+        synchronized (this) {
+            if (index(entry)) {
+                unsaved.add(entry);
+                scheduleSave();
+            }
+        }
+    }
+
+    /**
+     * Finds the tracks that match the query. Tracks where every word of the
+     * query starts a word of the track come first, the ones with whole words
+     * matching before the others. If there are few of them, tracks that share
+     * at least half of the three letter sequences of the query follow.
+     *
+     * @param query the query as typed
+     * @return the matching tracks, best match first
+     */
+    public ArrayList<Track> search(String query) {
+        List<String> words = tokenize(query);
+        ArrayList<Match> matches = new ArrayList<Match>();
+        if (!words.isEmpty()) {
+            synchronized (this) {
+                findByPrefix(words, matches);
+                if (matches.size() < MAX_RESULTS) {
+                    findByGrams(words, matches);
+                }
+            }
+        }
+        Collections.sort(matches, new Comparator<Match>() {
+            public int compare(Match a, Match b) {
+                return Float.compare(b.score, a.score);
+            }
+        });
+        // The tracks are created outside the lock since the registry calls back into the index
+        ArrayList<Track> tracks = new ArrayList<Track>(Math.min(matches.size(), MAX_RESULTS));
+        for (int i = 0; i < matches.size() && i < MAX_RESULTS; i++) {
+            Entry entry = matches.get(i).entry;
+            tracks.add(TrackRegistry.getInstance().obtain(entry.name, entry.artist, entry.uri, entry.length));
+        }
+        return tracks;
+    }
+
+    /**
+     * Merges two results, keeping the order of the first and appending the
+     * tracks of the second that are not in the first.
+     *
+     * @param first  the result that goes first, may be null
+     * @param second the result that goes last, may be null
+     * @return a new list with the tracks or null if both were null
+     */
+    public static ArrayList<Track> merge(ArrayList<Track> first, ArrayList<Track> second) {
+        if (first == null && second == null) {
+            return null;
+        }
+        LinkedHashMap<String, Track> merged = new LinkedHashMap<String, Track>();
+        if (first != null) {
+            for (Track track : first) {
+                merged.put(track.getUri(), track);
+            }
+        }
+        if (second != null) {
+            for (Track track : second) {
+                if (!merged.containsKey(track.getUri())) {
+                    merged.put(track.getUri(), track);
+                }
+            }
+        }
+        return new ArrayList<Track>(merged.values());
+    }
+
+    private void findByPrefix(List<String> words, ArrayList<Match> matches) {
+        Postings result = null;
+        for (String word : words) {
+            Postings postings = prefixes.get(word.length() > MAX_PREFIX ? word.substring(0, MAX_PREFIX) : word);
+            if (postings == null) {
+                return;
+            }
+            result = result == null ? postings : result.intersect(postings);
+        }
+        for (int i = 0; i < result.size; i++) {
+            Entry entry = entries.get(result.values[i]);
+            float score = 0;
+            for (String word : words) {
+                float best = 0;
+                for (String entryWord : entry.words) {
+                    if (entryWord.equals(word)) {
+                        best = 2;
+                        break;
+                    } else if (entryWord.startsWith(word)) {
+                        best = 1;
+                    }
+                }
+                if (best == 0) {
+                    // a long word only matched on its first MAX_PREFIX characters
+                    score = -1;
+                    break;
+                }
+                score += best;
+            }
+            if (score > 0) {
+                matches.add(new Match(entry, score));
+            }
+        }
+    }
+
+    private void findByGrams(List<String> words, ArrayList<Match> matches) {
+        HashMap<Integer, Integer> hits = new HashMap<Integer, Integer>();
+        int total = 0;
+        for (String word : words) {
+            for (int i = 0; i + GRAM <= word.length(); i++) {
+                total++;
+                Postings postings = grams.get(word.substring(i, i + GRAM));
+                if (postings == null) {
+                    continue;
+                }
+                for (int j = 0; j < postings.size; j++) {
+                    Integer count = hits.get(postings.values[j]);
+                    hits.put(postings.values[j], count == null ? 1 : count + 1);
+                }
+            }
+        }
+        if (total == 0) {
+            return;
+        }
+        HashMap<Entry, Boolean> found = new HashMap<Entry, Boolean>();
+        for (Match match : matches) {
+            found.put(match.entry, Boolean.TRUE);
+        }
+        for (java.util.Map.Entry<Integer, Integer> hit : hits.entrySet()) {
+            float share = (float) hit.getValue() / total;
+            Entry entry = entries.get(hit.getKey());
+            if (share >= MIN_GRAM_SHARE && !found.containsKey(entry)) {
+                // always below the prefix matches, which score at least 1
+                matches.add(new Match(entry, Math.min(share, 1f) * 0.99f));
+            }
+        }
+    }
+
+    /**
+     * Adds an entry to the postings, must hold the lock
+     *
+     * @return false if the uri was indexed already
+     */
+    private boolean index(Entry entry) {
+        if (uris.containsKey(entry.uri)) {
+            return false;
+        }
+        int number = entries.size();
+        entries.add(entry);
+        uris.put(entry.uri, number);
+        for (String word : entry.words) {
+            for (int i = 1; i <= word.length() && i <= MAX_PREFIX; i++) {
+                add(prefixes, word.substring(0, i), number);
+            }
+            for (int i = 0; i + GRAM <= word.length(); i++) {
+                add(grams, word.substring(i, i + GRAM), number);
+            }
+        }
+        return true;
+    }
+
+    private static void add(HashMap<String, Postings> map, String term, int number) {
+        Postings postings = map.get(term);
+        if (postings == null) {
+            postings = new Postings();
+            map.put(term, postings);
+        }
+        postings.add(number);
+    }
+
+    private static List<String> tokenize(String text) {
+        ArrayList<String> words = new ArrayList<String>();
+        for (String word : text.toLowerCase(Locale.US).split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() > 0) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private synchronized void scheduleSave() {
+        if (file == null || saveScheduled || unsaved.isEmpty()) {
+            return;
+        }
+        saveScheduled = true;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    /**
+     * Appends the tracks that are not saved yet to the file
+     */
+    private void save() {
+        ArrayList<Entry> batch;
+        synchronized (this) {
+            batch = new ArrayList<Entry>(unsaved);
+            unsaved.clear();
+            saveScheduled = false;
+        }
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            write(output, batch);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Indexes the tracks in the file. A record that was only partly written
+     * when the application stopped is cut off so the next one starts clean.
+     * The saves run after the load on the same thread, so a track that has
+     * been added meanwhile and is in the file is taken off the unsaved tracks.
+     * If the file has more than COMPACT_DUPLICATES records of tracks that it
+     * already had, it is rewritten without them.
+     */
+    private void load(File file) {
+        if (!file.isFile()) {
+            return;
+        }
+        long valid = 0;
+        int duplicates = 0;
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                String uri = input.readUTF();
+                String name = input.readUTF();
+                String artist = input.readUTF();
+                int length = input.readInt();
+                synchronized (this) {
+                    if (!index(new Entry(name, artist, uri, length)) && !removeUnsaved(uri)) {
+                        duplicates++;
+                    }
+                }
+                valid += utfLength(uri) + utfLength(name) + utfLength(artist) + 4;
+            }
+        } catch (EOFException e) {
+            // the end of the file
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (duplicates > COMPACT_DUPLICATES) {
+            compact(file);
+        } else if (valid < file.length()) {
+            truncate(file, valid);
+        }
+    }
+
+    /**
+     * Takes a track off the unsaved tracks, must hold the lock
+     *
+     * @return true if the track was unsaved
+     */
+    private boolean removeUnsaved(String uri) {
+        for (int i = 0; i < unsaved.size(); i++) {
+            if (unsaved.get(i).uri.equals(uri)) {
+                unsaved.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the indexed tracks that are saved to a new file, which replaces
+     * the file. Runs on the writer thread.
+     */
+    private void compact(File file) {
+        ArrayList<Entry> saved;
+        synchronized (this) {
+            saved = new ArrayList<Entry>(entries);
+            saved.removeAll(unsaved);
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            write(output, saved);
+            output.close();
+            output = null;
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temporary.delete();
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void write(DataOutputStream output, List<Entry> batch) throws IOException {
+        for (Entry entry : batch) {
+            output.writeUTF(entry.uri);
+            output.writeUTF(entry.name);
+            output.writeUTF(entry.artist);
+            output.writeInt(entry.length);
+        }
+    }
+
+    private static void truncate(File file, long length) {
+        RandomAccessFile access = null;
+        try {
+            access = new RandomAccessFile(file, "rw");
+            access.setLength(length);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (access != null) {
+                try {
+                    access.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes writeUTF writes for the string
+     */
+    private static int utfLength(String string) {
+        int length = 2;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * A track as it is kept in the index
+     */
+    private static class Entry {
+        final String name;
+        final String artist;
+        final String uri;
+        final int length;
+        final String[] words;
+
+        Entry(String name, String artist, String uri, int length) {
+            this.name = name;
+            this.artist = artist;
+            this.uri = uri;
+            this.length = length;
+            List<String> tokens = tokenize(name + " " + artist);
+            words = tokens.toArray(new String[tokens.size()]);
+        }
+    }
+
+    /**
+     * A track that matched a query and how well
+     */
+    private static class Match {
+        final Entry entry;
+        final float score;
+
+        Match(Entry entry, float score) {
+            this.entry = entry;
+            this.score = score;
+        }
+    }
+
+    /**
+     * A sorted list of track numbers
+     */
+    private static class Postings {
+        int[] values = new int[2];
+        int size = 0;
+
+        /**
+         * Adds a number unless it is the last one, the numbers are added in order
+         */
+        void add(int value) {
+            if (size > 0 && values[size - 1] == value) {
+                return;
+            }
+            if (size == values.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = value;
+        }
+
+        Postings intersect(Postings other) {
+            Postings result = new Postings();
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size) {
+                if (values[i] < other.values[j]) {
+                    i++;
+                } else if (values[i] > other.values[j]) {
+                    j++;
+                } else {
+                    result.add(values[i]);
+                    i++;
+                    j++;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package se.chalmers.pd.playlistmanager;
 
+import java.io.File;
 import java.util.ArrayList;
 
 import android.app.SearchManager;
@@ -13,6 +14,9 @@ import android.view.MenuItem;
 import android.widget.SearchView;
 import android.widget.Toast;
 
+import com.mixtape.spotify.api.Album;
+import com.mixtape.spotify.api.Artist;
+
 /**
  * This is the main activity of the application. It is a fragment activity so that it can host a view pager with
  * fragments. Since this class holds the view pager and its adapter, it contains callback implementations
@@ -21,11 +25,14 @@ import android.widget.Toast;
 public class MainActivity extends FragmentActivity implements FragmentCallback, ApplicationController.Callback, QueryTextListener.Callback, NfcReader.NfcCallback {
 
     private static final int NUMBER_OF_PAGES = 3;
+    private static final String SEARCH_CACHE = "search",
+                                TRACK_INDEX = "tracks.idx";
     private SectionsPagerAdapter sectionsPagerAdapter;
     private ViewPager viewPager;
     private ApplicationController controller;
     private LoadingDialogFragment searchingDialog;
     private NfcReader nfcReader;
+    private QueryTextListener queryTextListener;
 
     /**
      * System callback implementations
@@ -46,6 +53,10 @@ public class MainActivity extends FragmentActivity implements FragmentCallback,
         viewPager.setAdapter(sectionsPagerAdapter);
         controller = new ApplicationController(this, this);
         nfcReader = new NfcReader(this);
+        SearchCache.getInstance().setDirectory(new File(getCacheDir(), SEARCH_CACHE));
+        LocalTrackIndex.getInstance().open(new File(getFilesDir(), TRACK_INDEX));
+        MetadataClient.getInstance().setMaxConnections(getResources().getInteger(R.integer.metadata_max_connections));
+        MetadataClient.setBaseUrl(getString(R.string.metadata_url));
     }
 
 
@@ -60,7 +71,8 @@ public class MainActivity extends FragmentActivity implements FragmentCallback,
         SearchManager searchManager = (SearchManager) getSystemService(Context.SEARCH_SERVICE);
         SearchView searchView = (SearchView) menu.findItem(R.id.menu_search).getActionView();
         searchView.setSearchableInfo(searchManager.getSearchableInfo(this.getComponentName()));
-        searchView.setOnQueryTextListener(new QueryTextListener(this));
+        queryTextListener = new QueryTextListener(this);
+        searchView.setOnQueryTextListener(queryTextListener);
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -143,23 +155,60 @@ public class MainActivity extends FragmentActivity implements FragmentCallback,
     }
 
     /**
-     * Called from the query text listener when a result has been received.
+     * Called from the query text listener each time a part of the result has been
+     * received. The dialog is dismissed as soon as there is something to show, and
+     * the user is told if nothing was found when the search is complete.
      *
-     * @param tracks the tracks that matched the search
+     * @param result the tracks, albums and artists found so far
      */
     @Override
-    public void onSearchResult(ArrayList<Track> tracks) {
-        searchingDialog.dismiss();
+    public void onSearchResult(AndroidSpotifyMetadata.CombinedResult result) {
+        if (!result.isEmpty()) {
+            dismissSearchingDialog();
+            viewPager.setCurrentItem(SectionsPagerAdapter.FIRST_PAGE, true);
+            sectionsPagerAdapter.updateSearchResults(result);
+        } else if (result.isComplete()) {
+            dismissSearchingDialog();
+            Toast.makeText(this, R.string.no_results_found, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Called from the query text listener with results while the user types. The
+     * results are shown without a dialog or a message so the typing is not disturbed.
+     *
+     * @param result what matched the text so far
+     */
+    @Override
+    public void onSearchUpdate(AndroidSpotifyMetadata.CombinedResult result) {
+        dismissSearchingDialog();
+        if (!result.isEmpty()) {
+            viewPager.setCurrentItem(SectionsPagerAdapter.FIRST_PAGE, true);
+            sectionsPagerAdapter.updateSearchResults(result);
+        }
+    }
+
+    /**
+     * Called from the query text listener with the tracks of an album or an artist
+     * that the user selected. They replace the result in the search list.
+     *
+     * @param title  the name of the album or the artist
+     * @param tracks the tracks
+     */
+    @Override
+    public void onBrowseResult(String title, ArrayList<Track> tracks) {
         if (!tracks.isEmpty()) {
             viewPager.setCurrentItem(SectionsPagerAdapter.FIRST_PAGE, true);
-            sectionsPagerAdapter.updateSearchResults(tracks);
+            sectionsPagerAdapter.showTracks(title, tracks);
         } else {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    Toast.makeText(MainActivity.this, getString(R.string.no_tracks_found), Toast.LENGTH_SHORT).show();
-                }
-            });
+            Toast.makeText(this, R.string.no_tracks_found, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void dismissSearchingDialog() {
+        if (searchingDialog != null) {
+            searchingDialog.dismiss();
+            searchingDialog = null;
         }
     }
 
@@ -202,7 +251,7 @@ public class MainActivity extends FragmentActivity implements FragmentCallback,
      */
     @Override
     public void onPlayerAction(Action action) {
-        controller.performAction(action);
+        controller.performAction(action, sectionsPagerAdapter.getCurrentId());
     }
 
     /**
@@ -213,6 +262,14 @@ public class MainActivity extends FragmentActivity implements FragmentCallback,
         controller.seek(position);
     }
 
+    /**
+     * {inheritDoc}
+     */
+    @Override
+    public void onLoadTracks(int offset, int count) {
+        controller.requestRange(offset, count);
+    }
+
     /**
      * {inheritDoc}
      */
@@ -220,7 +277,14 @@ public class MainActivity extends FragmentActivity implements FragmentCallback,
     public void onTrackSelected(Track track) {
         switch (viewPager.getCurrentItem()) {
             case SectionsPagerAdapter.FIRST_PAGE:
-                controller.addTrack(track);
+                if (sectionsPagerAdapter.isInPlaylist(track)) {
+                    Toast.makeText(this, R.string.track_already_added, Toast.LENGTH_SHORT).show();
+                } else {
+                    ElementId id = controller.addTrack(track, sectionsPagerAdapter.getLastId());
+                    if (id != null) {
+                        sectionsPagerAdapter.addPending(track, id);
+                    }
+                }
                 break;
             case SectionsPagerAdapter.SECOND_PAGE:
                 // TODO need to send uri data to be able to play selected track
@@ -228,4 +292,30 @@ public class MainActivity extends FragmentActivity implements FragmentCallback,
                 break;
         }
     }
+
+    /**
+     * Called when an album has been selected in the search list, its tracks are
+     * looked up and shown in the list.
+     *
+     * @param album the album selected
+     */
+    @Override
+    public void onAlbumSelected(Album album) {
+        if (queryTextListener != null) {
+            queryTextListener.browse(album);
+        }
+    }
+
+    /**
+     * Called when an artist has been selected in the search list, the tracks of
+     * the artist are searched and shown in the list.
+     *
+     * @param artist the artist selected
+     */
+    @Override
+    public void onArtistSelected(Artist artist) {
+        if (queryTextListener != null) {
+            queryTextListener.browse(artist);
+        }
+    }
 }
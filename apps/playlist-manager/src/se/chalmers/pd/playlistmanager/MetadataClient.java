@@ -0,0 +1,519 @@
+package se.chalmers.pd.playlistmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.HashSet;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mixtape.spotify.api.RequestType;
+import com.mixtape.spotify.api.Response;
+import com.mixtape.spotify.api.ResponseParser;
+
+/**
+ * Downloads search responses from the Spotify Metadata API for the
+ * AndroidSpotifyMetadata. The connections are kept alive and reused between
+ * requests, and the responses are asked for gzipped and decoded while they are
+ * parsed. The raw bytes are copied on the way so the response can be stored in
+ * the SearchCache without being read twice.
+ * <p/>
+ * All metadata work runs as Jobs on a pool of at most getMaxConnections()
+ * threads of its own, not on the serial executor that every AsyncTask of the
+ * application shares. Waiting jobs are taken by priority: the query the user
+ * waits for first, then prefetching, then background enrichment. A job does its
+ * work on the pool and is delivered on the main thread through one handler,
+ * unless it has been cancelled. The next page of a result can be prefetched
+ * while the user looks at the current one, but only while a thread is idle, so
+ * a prefetch never holds up a search.
+ * <p/>
+ * The depth of the queue and how long the jobs waited and ran are measured and
+ * logged by AndroidSpotifyMetadata together with the search latency, and a job
+ * that waited long is logged at once.
+ * <p/>
+ * The server can be changed with setBaseUrl, for example to a local server
+ * that plays back recorded responses with some latency while searching is
+ * measured.
+ */
+public class MetadataClient {
+
+    private final static String DEFAULT_BASE_URL = "http://ws.spotify.com";
+    private final static String QUERY_TEMPLATE = "%s/search/1/%s.json?q=%s&page=%d";
+    private final static String GZIP = "gzip";
+    private final static int DEFAULT_MAX_CONNECTIONS = 2;
+    private final static int CONNECT_TIMEOUT = 10000;
+    private final static int READ_TIMEOUT = 15000;
+    private final static int BUFFER_SIZE = 8192;
+    private final static long IDLE_SECONDS = 30;
+    private final static long SLOW_WAIT_MILLIS = 500;
+    private final static String TAG = "MetadataClient";
+
+    /**
+     * The order in which waiting jobs are run
+     */
+    public enum Priority {
+        /** A search the user waits for */
+        INTERACTIVE,
+        /** A page the user may look at next */
+        PREFETCH,
+        /** Details that are loaded in the background */
+        ENRICHMENT
+    }
+
+    private static MetadataClient instance;
+    private static volatile String baseUrl = DEFAULT_BASE_URL;
+
+    private final ThreadPoolExecutor executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final HashSet<String> prefetching = new HashSet<String>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong jobsRun = new AtomicLong();
+    private final AtomicLong totalWait = new AtomicLong();
+    private final AtomicLong totalRun = new AtomicLong();
+    private volatile long maxWait = 0;
+
+    private MetadataClient() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(DEFAULT_MAX_CONNECTIONS));
+        executor = new ThreadPoolExecutor(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS, IDLE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the client
+     */
+    public static synchronized MetadataClient getInstance() {
+        if (instance == null) {
+            instance = new MetadataClient();
+        }
+        return instance;
+    }
+
+    /**
+     * Sets how many requests may run at the same time, which also is how many
+     * connections are kept alive.
+     *
+     * @param maxConnections the maximum number of concurrent requests, at least 1
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        maxConnections = Math.max(maxConnections, 1);
+        System.setProperty("http.maxConnections", String.valueOf(maxConnections));
+        if (maxConnections > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(maxConnections);
+            executor.setCorePoolSize(maxConnections);
+        } else {
+            executor.setCorePoolSize(maxConnections);
+            executor.setMaximumPoolSize(maxConnections);
+        }
+    }
+
+    /**
+     * Sets the server that searches are sent to. Cached responses are keyed by
+     * the search and not by the server, so they are used whatever the server is.
+     *
+     * @param url the scheme, host and port of the server, without a trailing slash
+     */
+    public static void setBaseUrl(String url) {
+        baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    public static String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public int getMaxConnections() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Queues a job. Jobs with the same priority run in the order they were
+     * submitted.
+     *
+     * @param job the job to run
+     */
+    public void submit(Job job) {
+        job.sequence = sequence.getAndIncrement();
+        job.queued = SystemClock.uptimeMillis();
+        executor.execute(job);
+    }
+
+    /**
+     * Cancels a job and takes it out of the queue if it has not started
+     *
+     * @param job the job to cancel
+     */
+    public void cancel(Job job) {
+        job.cancel();
+        executor.remove(job);
+    }
+
+    /**
+     * @return the number of jobs waiting to run
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of jobs that have been taken from the queue
+     */
+    public long getJobsRun() {
+        return jobsRun.get();
+    }
+
+    /**
+     * @return the average time in milliseconds a job waited in the queue
+     */
+    public long getAverageWaitMillis() {
+        long run = jobsRun.get();
+        return run == 0 ? 0 : totalWait.get() / run;
+    }
+
+    /**
+     * @return the longest time in milliseconds a job waited in the queue
+     */
+    public long getMaxWaitMillis() {
+        return maxWait;
+    }
+
+    /**
+     * @return the average time in milliseconds a job worked
+     */
+    public long getAverageRunMillis() {
+        long run = jobsRun.get();
+        return run == 0 ? 0 : totalRun.get() / run;
+    }
+
+    /**
+     * Runs a job on a thread of the pool and posts its delivery to the main thread
+     */
+    private void run(final Job job) {
+        long start = SystemClock.uptimeMillis();
+        long wait = start - job.queued;
+        jobsRun.incrementAndGet();
+        totalWait.addAndGet(wait);
+        if (wait > maxWait) {
+            maxWait = wait;
+        }
+        if (wait > SLOW_WAIT_MILLIS) {
+            Log.d(TAG, job.priority + " job waited " + wait + " ms, " + getQueueDepth() + " jobs in the queue");
+        }
+        if (job.isCancelled()) {
+            return;
+        }
+        try {
+            job.work();
+        } finally {
+            totalRun.addAndGet(SystemClock.uptimeMillis() - start);
+        }
+        if (!job.isCancelled()) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!job.isCancelled()) {
+                        job.deliver();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Builds the url of a search
+     *
+     * @param query the string to search for
+     * @param type  the type of the search
+     * @param page  the page of the result set
+     * @return the url
+     * @throws UnsupportedEncodingException
+     */
+    public static String getUrl(String query, RequestType type, int page) throws UnsupportedEncodingException {
+        return String.format(QUERY_TEMPLATE, baseUrl, type.name(), URLEncoder.encode(query, "UTF-8"), page);
+    }
+
+    /**
+     * Gets a response from the disk cache if it is fresh, or else from the
+     * network. When the network fails a stale response from the disk cache is
+     * used. Should not be called on the main thread.
+     *
+     * @param call the request
+     * @return the response or null if there was none or the call was cancelled
+     */
+    public Response fetch(Call call) {
+        SearchCache cache = SearchCache.getInstance();
+        Response response = parse(cache.open(call.key, false));
+        if (response != null || call.isCancelled()) {
+            return response;
+        }
+        try {
+            response = download(call);
+        } catch (IOException e) {
+            if (call.isCancelled()) {
+                return null;
+            }
+            e.printStackTrace();
+            // Probably offline, an old result is better than none
+            response = parse(cache.open(call.key, true));
+        }
+        return call.isCancelled() ? null : response;
+    }
+
+    /**
+     * Fetches a page in the background and keeps it in the SearchCache, unless
+     * it is cached already, being prefetched or all connections are busy.
+     *
+     * @param query the string to search for
+     * @param type  the type of the search
+     * @param page  the page of the result set
+     */
+    public void prefetch(final String query, final RequestType type, final int page) {
+        final String key = SearchCache.key(query, type, page);
+        if (SearchCache.getInstance().get(key) != null) {
+            return;
+        }
+        synchronized (this) {
+            if (executor.getActiveCount() >= executor.getMaximumPoolSize() || !prefetching.add(key)) {
+                return;
+            }
+        }
+        submit(new Job(Priority.PREFETCH) {
+            @Override
+            protected void work() {
+                try {
+                    Response response = fetch(new Call(getUrl(query, type, page), key));
+                    if (response != null) {
+                        SearchCache.getInstance().put(key, AndroidSpotifyMetadata.toTracks(response));
+                    }
+                } catch (UnsupportedEncodingException e) {
+                    e.printStackTrace();
+                } finally {
+                    synchronized (MetadataClient.this) {
+                        prefetching.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Downloads and parses a response. The response is read to the end so that
+     * the connection can be reused and the whole response is stored.
+     */
+    private Response download(Call call) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(call.url).openConnection();
+        call.setConnection(connection);
+        InputStream body = null;
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestProperty("Accept-Encoding", GZIP);
+            connection.setRequestProperty("Connection", "keep-alive");
+            InputStream inputStream = connection.getInputStream();
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(BUFFER_SIZE);
+            boolean gzipped = GZIP.equalsIgnoreCase(connection.getContentEncoding());
+            body = new CopyingInputStream(inputStream, raw);
+            if (gzipped) {
+                body = new GZIPInputStream(body);
+            }
+            // The parser closes its source when it is done, but the rest of the body is still needed
+            Response response = ResponseParser.parse(new FilterInputStream(body) {
+                @Override
+                public void close() {
+                }
+            });
+            drain(body);
+            if (gzipped) {
+                SearchCache.getInstance().storeCompressed(call.key, raw.toByteArray());
+            } else {
+                SearchCache.getInstance().store(call.key, raw.toByteArray());
+            }
+            return response;
+        } finally {
+            call.setConnection(null);
+            if (body != null) {
+                body.close();
+            }
+        }
+    }
+
+    /**
+     * Parses and closes a stored response
+     *
+     * @param inputStream the response, may be null
+     * @return the response or null if there was none or it could not be parsed
+     */
+    private static Response parse(InputStream inputStream) {
+        if (inputStream == null) {
+            return null;
+        }
+        try {
+            return ResponseParser.parse(inputStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void drain(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (inputStream.read(buffer) != -1) {
+            // the bytes are copied by the CopyingInputStream
+        }
+    }
+
+    /**
+     * Work for the pool. The work is done on a thread of the pool and the
+     * result is delivered on the main thread, neither happens once the job has
+     * been cancelled.
+     */
+    public static abstract class Job implements Runnable, Comparable<Job> {
+
+        private final Priority priority;
+        private long sequence;
+        private long queued;
+        private volatile boolean cancelled = false;
+
+        /**
+         * @param priority the priority of the job
+         */
+        protected Job(Priority priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * Does the work, called on a thread of the pool
+         */
+        protected abstract void work();
+
+        /**
+         * Delivers the result, called on the main thread after work()
+         */
+        protected void deliver() {
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public final void run() {
+            getInstance().run(this);
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            return sequence < other.sequence ? -1 : sequence > other.sequence ? 1 : 0;
+        }
+    }
+
+    /**
+     * One request that can be cancelled from another thread. Cancelling closes
+     * the connection, which makes a blocked read fail at once.
+     */
+    public static class Call {
+
+        private final String url;
+        private final String key;
+        private volatile HttpURLConnection connection;
+        private volatile boolean cancelled = false;
+
+        /**
+         * @param url the url of the search
+         * @param key the key of the search in the SearchCache
+         */
+        public Call(String url, String key) {
+            this.url = url;
+            this.key = key;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            HttpURLConnection current = connection;
+            if (current != null) {
+                current.disconnect();
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void setConnection(HttpURLConnection connection) {
+            this.connection = connection;
+            if (connection != null && cancelled) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Copies every byte that is read to an output stream
+     */
+    private static class CopyingInputStream extends FilterInputStream {
+
+        private final ByteArrayOutputStream copy;
+
+        CopyingInputStream(InputStream in, ByteArrayOutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                copy.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must be copied too
+            byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
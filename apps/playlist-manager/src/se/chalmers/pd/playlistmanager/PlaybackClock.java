@@ -0,0 +1,47 @@
+package se.chalmers.pd.playlistmanager;
+
+/**
+ * Keeps track of the offset between the clock of this device and the clock of
+ * the primary device. The offset is estimated from clock requests in the same
+ * way NTP does it; the device time is assumed to be taken halfway through the
+ * round trip. The sample with the shortest round trip is the most accurate one
+ * and is the one that is kept.
+ */
+public class PlaybackClock {
+
+    private long offset = 0;
+    private long bestRoundTrip = Long.MAX_VALUE;
+
+    /**
+     * Adds a clock sample from a clock response.
+     *
+     * @param sent       the local time when the request was sent
+     * @param deviceTime the time of the primary device when the request was answered
+     * @param received   the local time when the response was received
+     */
+    public synchronized void addSample(long sent, long deviceTime, long received) {
+        long roundTrip = received - sent;
+        if (roundTrip >= 0 && roundTrip <= bestRoundTrip) {
+            bestRoundTrip = roundTrip;
+            offset = deviceTime - (sent + roundTrip / 2);
+        }
+    }
+
+    /**
+     * Converts a time from the primary device clock to the local clock.
+     *
+     * @param deviceTime the time on the primary device
+     * @return the corresponding local time
+     */
+    public synchronized long toLocalTime(long deviceTime) {
+        return deviceTime - offset;
+    }
+
+    /**
+     * Forgets all samples, used when connecting to a new broker.
+     */
+    public synchronized void reset() {
+        offset = 0;
+        bestRoundTrip = Long.MAX_VALUE;
+    }
+}
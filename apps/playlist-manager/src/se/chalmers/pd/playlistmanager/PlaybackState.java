@@ -0,0 +1,62 @@
+package se.chalmers.pd.playlistmanager;
+
+/**
+ * This class represents the playback state published by the primary device. It
+ * holds the position at a given point in time so that the position can be
+ * extrapolated locally instead of waiting for updates.
+ * <p/>
+ * Note that the timestamp is expressed in the local clock of this device. The
+ * conversion from the primary device clock is done by the PlaybackClock.
+ */
+public class PlaybackState {
+
+    private final String uri;
+    private final long position;
+    private final boolean playing;
+    private final long timestamp;
+    private final float rate;
+
+    /**
+     * Constructor with all required arguments
+     *
+     * @param uri       the uri of the current track
+     * @param position  the position in the track in milliseconds
+     * @param playing   true if the track is playing
+     * @param timestamp the local time in milliseconds when the position was taken
+     * @param rate      how fast the position advances, 1.0 is normal playback
+     */
+    public PlaybackState(String uri, long position, boolean playing, long timestamp, float rate) {
+        this.uri = uri;
+        this.position = position;
+        this.playing = playing;
+        this.timestamp = timestamp;
+        this.rate = rate;
+    }
+
+    /**
+     * Extrapolates the position at the given local time.
+     *
+     * @param now the local time in milliseconds (elapsed realtime)
+     * @return the position in milliseconds
+     */
+    public long getPositionAt(long now) {
+        if (!playing || now <= timestamp) {
+            return position;
+        }
+        return position + (long) ((now - timestamp) * rate);
+    }
+
+    /**
+     * @return the uri of the current track
+     */
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * @return true if the track is playing
+     */
+    public boolean isPlaying() {
+        return playing;
+    }
+}
@@ -3,6 +3,7 @@ package se.chalmers.pd.playlistmanager;
 import android.animation.ValueAnimator;
 import android.app.Activity;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -11,8 +12,6 @@ import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-
 /**
  * This fragment shows the player controls and track information.
  */
@@ -24,7 +23,7 @@ public class PlayerFragment extends Fragment implements View.OnClickListener, On
     private TextView trackInfo;
     private SeekBar seekbar;
     private FragmentCallback callback;
-    private ArrayList<Track> tracks;
+    private Playlist tracks;
     private ValueAnimator seekbarAnimator;
     private boolean playing = false;
 
@@ -49,8 +48,17 @@ public class PlayerFragment extends Fragment implements View.OnClickListener, On
     }
 
     /**
-     * Fetches the playlist from the arguments. The playlist is shared with the other
-     * fragment so we can't create a new instance. Have to reference the same.
+     * Sets the playlist. The playlist is shared with the other fragment so we can't
+     * create a new instance. Have to reference the same.
+     *
+     * @param playlist the shared playlist
+     */
+    public void setPlaylist(Playlist playlist) {
+        tracks = playlist;
+    }
+
+    /**
+     * Retains the instance so that the shared playlist is kept.
      *
      * @param savedInstanceState
      */
@@ -58,8 +66,9 @@ public class PlayerFragment extends Fragment implements View.OnClickListener, On
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setRetainInstance(true);
-        Bundle arguments = getArguments();
-        tracks = arguments.getParcelableArrayList("playlist");
+        if (tracks == null) {
+            tracks = new Playlist();
+        }
     }
 
     /**
@@ -167,16 +176,38 @@ public class PlayerFragment extends Fragment implements View.OnClickListener, On
                     startProgress();
                 }
                 break;
+            case state:
+                updatePlaybackState((PlaybackState) t);
+                break;
         }
     }
 
     /**
-     * Sets a new max on the seekbar from the first track in the
-     * current list of tracks.
+     * Resynchronizes the seek bar with the playback state of the primary device. The
+     * position is extrapolated from the state so it doesn't matter how old the state is.
+     *
+     * @param state the latest playback state
+     */
+    private void updatePlaybackState(PlaybackState state) {
+        stopProgress();
+        playing = state.isPlaying();
+        if (pause != null && play != null) {
+            pause.setVisibility(playing ? View.VISIBLE : View.GONE);
+            play.setVisibility(playing ? View.GONE : View.VISIBLE);
+        }
+        setProgress((int) (state.getPositionAt(SystemClock.elapsedRealtime()) / DELAY_MILLIS));
+        if (playing) {
+            startProgress();
+        }
+    }
+
+    /**
+     * Sets a new max on the seekbar from the current track in the
+     * playlist.
      */
     private void setSeekbarMax() {
         if(tracks.size() > 0) {
-            Track track = tracks.get(0);
+            Track track = tracks.getCurrentTrack();
             if (track != null && seekbar != null) {
                 seekbar.setMax(track.getLength());
             }
@@ -185,11 +216,11 @@ public class PlayerFragment extends Fragment implements View.OnClickListener, On
 
             /**
              * Updates the track information in the text view with
-             * the first track in the playlist.
+             * the current track in the playlist.
              */
     private void updateTrackInformation() {
         if(tracks.size() > 0) {
-            Track track = tracks.get(0);
+            Track track = tracks.getCurrentTrack();
             if (track != null && trackInfo != null) {
                 trackInfo.setText(track.getArtist() + " - " + track.getName());
             }
@@ -207,11 +238,16 @@ public class PlayerFragment extends Fragment implements View.OnClickListener, On
     }
 
     /**
-     * Starts the seek bar animation
+     * Starts the seek bar animation from the current progress. The duration is the
+     * time left of the track so that the animation runs at the pace of the track.
      */
     private void startProgress() {
+        if (seekbar == null) {
+            return;
+        }
+        int remaining = Math.max(seekbar.getMax() - seekbar.getProgress(), 0);
         seekbarAnimator = ValueAnimator.ofInt(seekbar.getProgress(), seekbar.getMax());
-        seekbarAnimator.setDuration(DELAY_MILLIS * seekbar.getMax());
+        seekbarAnimator.setDuration(DELAY_MILLIS * remaining);
         seekbarAnimator.setInterpolator(null);
         seekbarAnimator.addUpdateListener(new SeekbarAnimatorUpdateListener());
         seekbarAnimator.start();
@@ -0,0 +1,421 @@
+package se.chalmers.pd.playlistmanager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The playlist as it is shown in the application. The tracks stay where they are
+ * and a cursor points out the current track, so next and prev only move the cursor
+ * instead of moving tracks around in the list. Every track gets an id when it is
+ * added which stays the same for as long as the track is in the list.
+ *
+ * The primary device lists the tracks starting with the current track, that list
+ * corresponds to this list read from the cursor and wrapped around. The list only
+ * has the tracks that have been loaded, the rest are loaded in windows when they
+ * are needed. The version follows the version of the playlist on the primary device
+ * so that windows from an older version are not put in the wrong place.
+ *
+ * A track that the user adds is shown at once as a pending entry last in the list,
+ * before the primary device has confirmed it. Pending entries are kept last counted
+ * from the current track while the confirmed changes are applied, and an entry stops
+ * being pending when the primary device reports it with its id.
+ */
+public class Playlist {
+
+    private static final Track REQUESTED = new Track();
+    private static final long REQUEST_TIMEOUT_MILLIS = 10000;
+
+    private final ArrayList<Track> tracks = new ArrayList<Track>();
+    private final ArrayList<ElementId> elements = new ArrayList<ElementId>();
+    private final ArrayList<Track> pendingTracks = new ArrayList<Track>();
+    private final ArrayList<ElementId> pendingIds = new ArrayList<ElementId>();
+    private final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+    private long[] ids = new long[0];
+    private long nextId = 0;
+    private int cursor = 0;
+    private int version = -1;
+    private int requested = 0;
+    private long requestTime;
+
+    /**
+     * Creates an empty playlist
+     */
+    public Playlist() {
+    }
+
+    /**
+     * Creates a playlist with the tracks, the first track is the current one.
+     *
+     * @param tracks the tracks to add
+     */
+    public Playlist(List<Track> tracks) {
+        setTracks(tracks);
+    }
+
+    /**
+     * Replaces all tracks, the first track is the current one.
+     *
+     * @param newTracks the tracks starting with the current track
+     */
+    public void setTracks(List<Track> newTracks) {
+        int total = newTracks == null ? 0 : newTracks.size();
+        reset(new TrackRange(version, total, 0, newTracks));
+    }
+
+    /**
+     * Replaces all tracks with a window of a new version of the playlist. The tracks
+     * outside of the window are left to be loaded. Pending entries are dropped, those
+     * that the primary device has not added yet come back when it does.
+     *
+     * @param range the window with the current track first
+     */
+    public void reset(TrackRange range) {
+        int total = range.getTotal();
+        tracks.clear();
+        elements.clear();
+        pendingTracks.clear();
+        pendingIds.clear();
+        counts.clear();
+        tracks.ensureCapacity(total);
+        tracks.addAll(Collections.<Track>nCopies(total, null));
+        elements.addAll(Collections.<ElementId>nCopies(total, null));
+        ids = new long[Math.max(total, 16)];
+        for (int i = 0; i < total; i++) {
+            ids[i] = nextId++;
+        }
+        cursor = 0;
+        requested = 0;
+        version = range.getVersion();
+        setRange(range);
+    }
+
+    /**
+     * Puts a window of tracks in place if it was taken from this version of the
+     * playlist. If not, the tracks that have been requested are marked as not loaded
+     * again so that they are requested later. The pending entries are last counted
+     * from the current track, so the offsets of the primary device lead to the same
+     * positions with or without them, and the window only has to leave them alone.
+     *
+     * @param range the window with the offset counted from the current track
+     * @return true if the tracks were put in place
+     */
+    public boolean setRange(TrackRange range) {
+        int confirmed = tracks.size() - pendingIds.size();
+        if (range.getVersion() != version || range.getTotal() != confirmed) {
+            cancelRequests();
+            return false;
+        }
+        List<Track> newTracks = range.getTracks();
+        int size = tracks.size();
+        for (int i = 0; newTracks != null && i < newTracks.size() && range.getOffset() + i < confirmed; i++) {
+            int position = (cursor + range.getOffset() + i) % size;
+            Track old = tracks.get(position);
+            if (old == REQUESTED) {
+                requested--;
+            }
+            if (old == null || old == REQUESTED) {
+                tracks.set(position, newTracks.get(i));
+                count(newTracks.get(i));
+            }
+            if (elements.get(position) == null) {
+                elements.set(position, range.getId(i));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a track that the user has added but the primary device has not confirmed
+     * yet. It is added last counted from the current track, which is right before the
+     * current track in the list unless the current track is the first one.
+     *
+     * @param track the track to add
+     * @param id    the id that the track was sent with
+     */
+    public void addPending(Track track, ElementId id) {
+        insertAt(getTailPosition(), track, id, nextId++);
+        pendingTracks.add(track);
+        pendingIds.add(id);
+    }
+
+    /**
+     * Adds a track that the primary device has added. If the track is one of the
+     * pending entries it is moved to where the primary device put it instead of being
+     * added again.
+     *
+     * @param range a window with the added track, the offset is where it was added
+     *              counted from the current track or -1 to add it last
+     * @return true if the track was a pending entry
+     */
+    public boolean insert(TrackRange range) {
+        Track track = range.getTracks().get(0);
+        ElementId id = range.getId(0);
+        int pending = id == null ? -1 : pendingIds.indexOf(id);
+        ArrayList<Long> rowIds = detachPending();
+        long rowId = nextId++;
+        if (pending >= 0) {
+            pendingTracks.remove(pending);
+            pendingIds.remove(pending);
+            rowId = rowIds.remove(pending);
+        }
+        int size = tracks.size();
+        int offset = range.getOffset();
+        int position;
+        if (offset < 0 || offset > size) {
+            position = getTailPosition();
+        } else if (cursor + offset <= size) {
+            position = cursor + offset;
+        } else {
+            position = cursor + offset - size;
+        }
+        insertAt(position, track, id, rowId);
+        attachPending(rowIds);
+        version++;
+        return pending >= 0;
+    }
+
+    /**
+     * @param spotifyUri the uri of the track
+     * @return true if the track is among the loaded tracks of the playlist
+     */
+    public boolean contains(String spotifyUri) {
+        return counts.containsKey(spotifyUri);
+    }
+
+    /**
+     * Moves the cursor to the next track, wrapping around at the end.
+     */
+    public void next() {
+        next(1);
+    }
+
+    /**
+     * Moves the cursor several tracks forward at once, wrapping around at the end.
+     *
+     * @param count the number of tracks to skip
+     */
+    public void next(int count) {
+        ArrayList<Long> rowIds = detachPending();
+        if (!tracks.isEmpty()) {
+            cursor = (cursor + count % tracks.size()) % tracks.size();
+        }
+        attachPending(rowIds);
+        version++;
+    }
+
+    /**
+     * Moves the cursor to the previous track, wrapping around at the start.
+     */
+    public void previous() {
+        previous(1);
+    }
+
+    /**
+     * Moves the cursor several tracks back at once, wrapping around at the start.
+     *
+     * @param count the number of tracks to skip
+     */
+    public void previous(int count) {
+        ArrayList<Long> rowIds = detachPending();
+        if (!tracks.isEmpty()) {
+            cursor = (cursor - count % tracks.size() + tracks.size()) % tracks.size();
+        }
+        attachPending(rowIds);
+        version++;
+    }
+
+    /**
+     * @return the current track or null if the playlist is empty or the track has not
+     *         been loaded
+     */
+    public Track getCurrentTrack() {
+        return tracks.isEmpty() ? null : get(cursor);
+    }
+
+    /**
+     * @return the id of the current entry or null if it is not known
+     */
+    public ElementId getCurrentId() {
+        return tracks.isEmpty() ? null : elements.get(cursor);
+    }
+
+    /**
+     * @return the id of the last entry counted from the current track or null if it
+     *         is not known
+     */
+    public ElementId getLastId() {
+        return tracks.isEmpty() ? null : elements.get((cursor - 1 + tracks.size()) % tracks.size());
+    }
+
+    /**
+     * @return the position of the current track in the list
+     */
+    public int getCursor() {
+        return cursor;
+    }
+
+    /**
+     * @param position the position in the list
+     * @return the track at the position or null if it has not been loaded
+     */
+    public Track get(int position) {
+        Track track = tracks.get(position);
+        return track == REQUESTED ? null : track;
+    }
+
+    /**
+     * @param position the position in the list
+     * @return the id of the track at the position
+     */
+    public long getId(int position) {
+        return ids[position];
+    }
+
+    /**
+     * A request or its answer can be lost, so if the requested tracks have not all
+     * arrived within a timeout of the oldest request they are all marked as not
+     * loaded again, and the tracks that are needed are requested once more.
+     *
+     * @param position the position in the list
+     * @return true if the track at the position is neither loaded nor requested
+     */
+    public boolean needsLoading(int position) {
+        if (requested > 0 && System.currentTimeMillis() - requestTime > REQUEST_TIMEOUT_MILLIS) {
+            cancelRequests();
+        }
+        return tracks.get(position) == null;
+    }
+
+    /**
+     * Marks the tracks that are not loaded between the positions as requested.
+     *
+     * @param from the first position
+     * @param to   the position after the last one
+     */
+    public void setRequested(int from, int to) {
+        if (requested == 0) {
+            requestTime = System.currentTimeMillis();
+        }
+        for (int i = from; i < to; i++) {
+            if (tracks.get(i) == null) {
+                tracks.set(i, REQUESTED);
+                requested++;
+            }
+        }
+    }
+
+    /**
+     * Converts a position in the list to the offset from the current track that the
+     * primary device uses.
+     *
+     * @param position the position in the list
+     * @return the offset from the current track
+     */
+    public int toOffset(int position) {
+        return (position - cursor + tracks.size()) % tracks.size();
+    }
+
+    public int size() {
+        return tracks.size();
+    }
+
+    public boolean isEmpty() {
+        return tracks.isEmpty();
+    }
+
+    /**
+     * @return the position where a track is added last counted from the current track
+     */
+    private int getTailPosition() {
+        return cursor == 0 ? tracks.size() : cursor;
+    }
+
+    /**
+     * Inserts a track at the position and moves the cursor if the track ends up
+     * before the current track.
+     */
+    private void insertAt(int position, Track track, ElementId id, long rowId) {
+        int size = tracks.size();
+        tracks.add(position, track);
+        elements.add(position, id);
+        if (size + 1 > ids.length) {
+            long[] newIds = new long[Math.max(16, ids.length * 2)];
+            System.arraycopy(ids, 0, newIds, 0, size);
+            ids = newIds;
+        }
+        System.arraycopy(ids, position, ids, position + 1, size - position);
+        ids[position] = rowId;
+        count(track);
+        if (size > 0 && position <= cursor) {
+            cursor++;
+        }
+    }
+
+    /**
+     * Removes the pending entries from the list so that the positions are the ones
+     * of the primary device.
+     *
+     * @return the row ids of the pending entries
+     */
+    private ArrayList<Long> detachPending() {
+        ArrayList<Long> rowIds = new ArrayList<Long>(pendingIds.size());
+        for (ElementId id : pendingIds) {
+            int position = elements.indexOf(id);
+            rowIds.add(position < 0 ? nextId++ : ids[position]);
+            if (position >= 0) {
+                removeAt(position);
+            }
+        }
+        return rowIds;
+    }
+
+    /**
+     * Adds the pending entries last again, with the row ids they had before
+     */
+    private void attachPending(ArrayList<Long> rowIds) {
+        for (int i = 0; i < pendingIds.size(); i++) {
+            insertAt(getTailPosition(), pendingTracks.get(i), pendingIds.get(i), rowIds.get(i));
+        }
+    }
+
+    /**
+     * Removes a loaded track and keeps the cursor on the current track
+     */
+    private void removeAt(int position) {
+        Track track = tracks.remove(position);
+        elements.remove(position);
+        System.arraycopy(ids, position + 1, ids, position, tracks.size() - position);
+        Integer count = counts.get(track.getUri());
+        if (count != null && count > 1) {
+            counts.put(track.getUri(), count - 1);
+        } else {
+            counts.remove(track.getUri());
+        }
+        if (position < cursor || (cursor > 0 && cursor == tracks.size())) {
+            cursor--;
+        }
+    }
+
+    /**
+     * Marks all requested tracks as not loaded
+     */
+    private void cancelRequests() {
+        for (int i = 0; requested > 0 && i < tracks.size(); i++) {
+            if (tracks.get(i) == REQUESTED) {
+                tracks.set(i, null);
+                requested--;
+            }
+        }
+        requested = 0;
+    }
+
+    /**
+     * Keeps count of how many times each uri is in the list
+     */
+    private void count(Track track) {
+        Integer count = counts.get(track.getUri());
+        counts.put(track.getUri(), count == null ? 1 : count + 1);
+    }
+}
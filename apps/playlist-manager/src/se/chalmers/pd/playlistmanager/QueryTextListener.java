@@ -2,25 +2,81 @@ package se.chalmers.pd.playlistmanager;
 
 import java.util.ArrayList;
 
+import android.os.Handler;
 import android.widget.SearchView;
 
+import com.mixtape.spotify.api.Album;
+import com.mixtape.spotify.api.Artist;
 import com.mixtape.spotify.api.RequestType;
 
 
 /**
  * This listener listens for changes in the text in the search box and also
  * for the submission of a query.
+ * <p/>
+ * Every search is a combined search for tracks, albums and artists, and the
+ * result is passed on each time one of them is finished. The tracks of an album
+ * or an artist from the result are looked up when the user selects it.
+ * <p/>
+ * The search starts while the user types. Keystrokes are debounced so that the
+ * network is only asked when the user pauses, and every keystroke cancels the
+ * search that is running since its result is already out of date. What the
+ * cache knows about the new text, from the same or a shorter query, is shown at
+ * once while the network result is pending.
  */
 
-public class QueryTextListener implements SearchView.OnQueryTextListener, AndroidSpotifyMetadata.Callback {
+public class QueryTextListener implements SearchView.OnQueryTextListener, AndroidSpotifyMetadata.CombinedCallback {
 
     public interface Callback {
+        /**
+         * A submitted search has begun
+         */
         public void onSearchBegin();
 
-        public void onSearchResult(ArrayList<Track> tracks);
+        /**
+         * The result of a submitted search, called each time one of the
+         * searches is finished
+         *
+         * @param result what has been found so far
+         */
+        public void onSearchResult(AndroidSpotifyMetadata.CombinedResult result);
+
+        /**
+         * A result while the user types, either from the cache or from the
+         * network. It may be replaced by a new one at any time. It also ends
+         * a submitted search that was superseded, then the result is empty.
+         *
+         * @param result what matches the text so far
+         */
+        public void onSearchUpdate(AndroidSpotifyMetadata.CombinedResult result);
+
+        /**
+         * The tracks of an album or an artist that the user has selected
+         *
+         * @param title  the name of the album or the artist
+         * @param tracks the tracks, empty if none were found
+         */
+        public void onBrowseResult(String title, ArrayList<Track> tracks);
     }
 
+    private static final long DEBOUNCE_MILLIS = 300;
+    private static final int MIN_QUERY_LENGTH = 2;
+
     private Callback callback;
+    private final AndroidSpotifyMetadata spotify = new AndroidSpotifyMetadata();
+    private final Handler handler = new Handler();
+    private String pendingQuery;
+    private String submittedQuery;
+    private boolean submitted;
+    private AndroidSpotifyMetadata.Callback browseCallback;
+
+    private final Runnable debouncedSearch = new Runnable() {
+        @Override
+        public void run() {
+            submitted = false;
+            spotify.searchAll(pendingQuery, QueryTextListener.this);
+        }
+    };
 
     /**
      * Instantiates the class with the callback that should be called when the search
@@ -51,24 +107,94 @@ public class QueryTextListener implements SearchView.OnQueryTextListener, Androi
      * @param query the query to search for
      */
     public void search(String query) {
+        handler.removeCallbacks(debouncedSearch);
+        browseCallback = null;
+        submitted = true;
+        submittedQuery = query;
         callback.onSearchBegin();
-        AndroidSpotifyMetadata spotify = new AndroidSpotifyMetadata();
-        spotify.search(query, RequestType.track, this);
+        spotify.searchAll(query, this);
+    }
+
+    /**
+     * Looks up the tracks of an album from a result.
+     *
+     * @param album the selected album
+     */
+    public void browse(Album album) {
+        spotify.getAlbumTracks(album, createBrowseCallback(album.getName()));
+    }
+
+    /**
+     * Searches the tracks of an artist from a result. This cancels the search
+     * that is running.
+     *
+     * @param artist the selected artist
+     */
+    public void browse(Artist artist) {
+        handler.removeCallbacks(debouncedSearch);
+        spotify.search("artist:\"" + artist.getName() + "\"", RequestType.track, createBrowseCallback(artist.getName()));
+    }
+
+    /**
+     * The searches only keep weak references to their callbacks, so the callback of
+     * the latest lookup is kept here. Earlier lookups are not passed on.
+     */
+    private AndroidSpotifyMetadata.Callback createBrowseCallback(final String title) {
+        browseCallback = new AndroidSpotifyMetadata.Callback() {
+            @Override
+            public void onSearchResult(ArrayList<Track> tracks) {
+                if (browseCallback == this) {
+                    browseCallback = null;
+                    callback.onBrowseResult(title, tracks);
+                }
+            }
+        };
+        return browseCallback;
     }
 
     /**
      * When a result has been receive this calls back to the searcher with the result.
      *
-     * @param tracks the result from the search
+     * @param result the result of the search so far
      */
     @Override
-    public void onSearchResult(ArrayList<Track> tracks) {
-        callback.onSearchResult(tracks);
+    public void onCombinedResult(AndroidSpotifyMetadata.CombinedResult result) {
+        if (submitted) {
+            callback.onSearchResult(result);
+        } else {
+            callback.onSearchUpdate(result);
+        }
     }
 
+    /**
+     * Cancels the running search, shows what the cache knows about the new
+     * text and searches when the user has stopped typing for a moment.
+     *
+     * @param newText the text in the search box
+     * @return always true
+     */
     @Override
     public boolean onQueryTextChange(String newText) {
-        // Don't care about text changes
+        if (submitted && newText.equals(submittedQuery)) {
+            return true;
+        }
+        handler.removeCallbacks(debouncedSearch);
+        spotify.cancel();
+        browseCallback = null;
+        if (submitted) {
+            // The submitted search is superseded, let the searcher know that it will not get a result
+            submitted = false;
+            callback.onSearchUpdate(new AndroidSpotifyMetadata.CombinedResult());
+        }
+        if (newText.trim().length() < MIN_QUERY_LENGTH) {
+            return true;
+        }
+        ArrayList<Track> cached = spotify.getCachedResult(newText, RequestType.track);
+        if (cached != null && !cached.isEmpty()) {
+            callback.onSearchUpdate(new AndroidSpotifyMetadata.CombinedResult(cached));
+        }
+        pendingQuery = newText;
+        handler.postDelayed(debouncedSearch, DEBOUNCE_MILLIS);
         return true;
     }
 }
@@ -0,0 +1,165 @@
+package se.chalmers.pd.playlistmanager;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import android.app.Activity;
+import android.content.pm.ApplicationInfo;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.TextView;
+
+import com.mixtape.spotify.api.RequestType;
+
+/**
+ * Measures the time from a query until its result is delivered, through the AndroidSpotifyMetadata, the
+ * MetadataClient and the ResponseParser just like a search in the app. It is meant to run against the
+ * MetadataStubServer replaying recorded responses with a given latency, jitter and bandwidth, so that searching can
+ * be measured without ws.spotify.com and compared between changes. It is started from adb, and only runs in a
+ * debuggable build:
+ *
+ * <pre>
+ * adb shell am start -n se.chalmers.pd.playlistmanager/.SearchBenchmarkActivity -e url http://10.0.2.2:8080 \
+ *     --esa queries abba,queen,beatles --ei rounds 20 [--ez combined true] [--ez cached true]
+ * adb logcat -s SearchBenchmark
+ * </pre>
+ *
+ * The queries are searched one at a time, taking turns, until each has been searched rounds times. A track search is
+ * measured until onSearchResult, a combined search until its result is complete. Unless cached is set the memory tier
+ * of the SearchCache is emptied before every search and the disk tier is turned off, so every search goes to the
+ * server. When all searches are done the p50, p95 and p99 latencies are logged and shown, together with the number of
+ * empty results since a failed search is delivered as an empty result. The server and the cache are restored when
+ * the activity is destroyed.
+ */
+public class SearchBenchmarkActivity extends Activity implements AndroidSpotifyMetadata.Callback,
+        AndroidSpotifyMetadata.CombinedCallback {
+
+    private static final String TAG = "SearchBenchmark";
+    private static final String[] DEFAULT_QUERIES = {"abba", "queen", "daft punk", "the beatles", "miles davis"};
+    private static final int DEFAULT_ROUNDS = 10;
+
+    private final AndroidSpotifyMetadata spotify = new AndroidSpotifyMetadata();
+    private final Handler handler = new Handler();
+    private TextView output;
+    private String[] queries;
+    private boolean combined;
+    private boolean cached;
+    private int total;
+    private int searched = 0;
+    private int empty = 0;
+    private long started;
+    private LatencySamples samples;
+    private String previousUrl;
+    private File previousDirectory;
+
+    private final Runnable nextSearch = new Runnable() {
+        @Override
+        public void run() {
+            searchNext();
+        }
+    };
+
+    /**
+     * Reads the options from the intent, points the MetadataClient at the server and starts the first search.
+     *
+     * @param savedInstanceState
+     */
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        output = new TextView(this);
+        setContentView(output);
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+            finish();
+            return;
+        }
+        queries = getIntent().getStringArrayExtra("queries");
+        if (queries == null || queries.length == 0) {
+            queries = DEFAULT_QUERIES;
+        }
+        combined = getIntent().getBooleanExtra("combined", false);
+        cached = getIntent().getBooleanExtra("cached", false);
+        total = queries.length * Math.max(1, getIntent().getIntExtra("rounds", DEFAULT_ROUNDS));
+        samples = new LatencySamples(total);
+
+        previousUrl = MetadataClient.getBaseUrl();
+        previousDirectory = SearchCache.getInstance().getDirectory();
+        String url = getIntent().getStringExtra("url");
+        if (url != null) {
+            MetadataClient.setBaseUrl(url);
+        }
+        if (!cached) {
+            SearchCache.getInstance().setDirectory(null);
+        }
+        report("Searching " + total + (combined ? " combined" : " track") + " searches on " + MetadataClient.getBaseUrl()
+                + (cached ? " with" : " without") + " the cache");
+        handler.post(nextSearch);
+    }
+
+    /**
+     * Stops the benchmark and restores the server and the cache
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(nextSearch);
+        spotify.cancel();
+        if (previousUrl != null) {
+            MetadataClient.setBaseUrl(previousUrl);
+            SearchCache.getInstance().setDirectory(previousDirectory);
+        }
+    }
+
+    private void searchNext() {
+        if (searched == total) {
+            long[] percentiles = samples.getPercentiles(50, 95, 99, 100);
+            report(total + " searches, " + empty + " empty results; latency p50 " + percentiles[0] + " ms, p95 "
+                    + percentiles[1] + " ms, p99 " + percentiles[2] + " ms, max " + percentiles[3] + " ms");
+            return;
+        }
+        String query = queries[searched % queries.length];
+        if (!cached) {
+            SearchCache.getInstance().clearMemory();
+        }
+        started = SystemClock.uptimeMillis();
+        if (combined) {
+            spotify.searchAll(query, this);
+        } else {
+            spotify.search(query, RequestType.track, this);
+        }
+    }
+
+    @Override
+    public void onSearchResult(ArrayList<Track> tracks) {
+        measured(tracks.isEmpty());
+    }
+
+    @Override
+    public void onCombinedResult(AndroidSpotifyMetadata.CombinedResult result) {
+        if (result.isComplete()) {
+            measured(result.isEmpty());
+        }
+    }
+
+    /**
+     * Adds the latency of the search that was delivered now and starts the next one. The next search is posted,
+     * since a result from the cache is delivered before the search returns.
+     *
+     * @param emptyResult true if nothing was found
+     */
+    private void measured(boolean emptyResult) {
+        samples.add(SystemClock.uptimeMillis() - started);
+        searched++;
+        if (emptyResult) {
+            empty++;
+        }
+        handler.post(nextSearch);
+    }
+
+    private void report(String message) {
+        Log.i(TAG, message);
+        output.append(message + "\n");
+    }
+}
@@ -0,0 +1,323 @@
+package se.chalmers.pd.playlistmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.mixtape.spotify.api.RequestType;
+
+/**
+ * Caches search results in two tiers. The first tier keeps the parsed tracks
+ * of the latest searches in memory for a few minutes. The second tier keeps the
+ * raw responses compressed on disk, so they survive restarts. A fresh disk entry
+ * is used instead of the network. A stale one is only used when the network
+ * cannot be reached, which is common in a car. The disk tier is bounded by
+ * size, and the oldest responses are deleted first.
+ */
+public class SearchCache {
+
+    private static final int MEMORY_ENTRIES = 32;
+    private static final long MEMORY_TTL = 5 * 60 * 1000;
+    private static final long DISK_TTL = 24 * 60 * 60 * 1000;
+    private static final long DISK_MAX_BYTES = 2 * 1024 * 1024;
+    private static final String SUFFIX = ".json.gz";
+
+    private static SearchCache instance;
+
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(MEMORY_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+    private File directory;
+
+    private SearchCache() {
+    }
+
+    /**
+     * @return the cache
+     */
+    public static synchronized SearchCache getInstance() {
+        if (instance == null) {
+            instance = new SearchCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Sets the directory of the disk tier, without one only the memory tier is used.
+     *
+     * @param directory the directory to keep the responses in, created if it does not exist
+     */
+    public synchronized void setDirectory(File directory) {
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            directory = null;
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * @return the directory of the disk tier, null if only the memory tier is used
+     */
+    public synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Empties the memory tier, the responses on disk are kept
+     */
+    public synchronized void clearMemory() {
+        memory.clear();
+    }
+
+    /**
+     * Creates the key of a search. Searches are not case sensitive, so the
+     * query is trimmed and lower cased.
+     *
+     * @param query the string that was searched for
+     * @param type  the type of the search
+     * @param page  the page of the result set
+     * @return the key
+     */
+    public static String key(String query, RequestType type, int page) {
+        return type.name() + '/' + page + '/' + query.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Creates the key of the tracks of an album
+     *
+     * @param album the href of the album
+     * @return the key
+     */
+    public static String albumKey(String album) {
+        return RequestType.album.name() + "/tracks/" + album;
+    }
+
+    /**
+     * @param key the key of the search
+     * @return a copy of the tracks or null if there is no entry younger than the memory ttl
+     */
+    public synchronized ArrayList<Track> get(String key) {
+        Entry entry = memory.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.time > MEMORY_TTL) {
+            memory.remove(key);
+            return null;
+        }
+        return new ArrayList<Track>(entry.tracks);
+    }
+
+    /**
+     * Finds the longest query in memory that is a prefix of the given query,
+     * among searches of the same type for the first page, and keeps the tracks
+     * that match every word of the given query. The network may find more, but
+     * these can be shown while waiting for it.
+     *
+     * @param query the string that is searched for
+     * @param type  the type of the search
+     * @return the matching tracks or null if no prefix is in memory
+     */
+    public synchronized ArrayList<Track> getPrefixMatch(String query, RequestType type) {
+        String key = key(query, type, 1);
+        String start = type.name() + "/1/";
+        Entry best = null;
+        int bestLength = start.length();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Entry> entry : memory.entrySet()) {
+            String cached = entry.getKey();
+            if (cached.length() > bestLength && cached.length() < key.length() && key.startsWith(cached)
+                    && now - entry.getValue().time <= MEMORY_TTL) {
+                best = entry.getValue();
+                bestLength = cached.length();
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        String[] words = key.substring(start.length()).split("\\s+");
+        ArrayList<Track> tracks = new ArrayList<Track>();
+        for (Track track : best.tracks) {
+            String text = (track.getName() + " " + track.getArtist()).toLowerCase(Locale.US);
+            boolean matches = true;
+            for (String word : words) {
+                if (!text.contains(word)) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                tracks.add(track);
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * @param key    the key of the search
+     * @param tracks the parsed result, the list is copied
+     */
+    public synchronized void put(String key, ArrayList<Track> tracks) {
+        memory.put(key, new Entry(new ArrayList<Track>(tracks), System.currentTimeMillis()));
+    }
+
+    /**
+     * Opens the stored response of a search.
+     *
+     * @param key        the key of the search
+     * @param allowStale true to also open responses older than the disk ttl
+     * @return the uncompressed response or null if there is none
+     */
+    public InputStream open(String key, boolean allowStale) {
+        File file = getFile(key);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (!allowStale && now - file.lastModified() > DISK_TTL) {
+            return null;
+        }
+        try {
+            return new GZIPInputStream(new FileInputStream(file));
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Stores a response compressed on disk and deletes the oldest responses
+     * if the disk tier has grown too big.
+     *
+     * @param key      the key of the search
+     * @param response the raw response
+     */
+    public void store(String key, byte[] response) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(response.length / 4);
+        try {
+            GZIPOutputStream stream = new GZIPOutputStream(compressed);
+            stream.write(response);
+            stream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        storeCompressed(key, compressed.toByteArray());
+    }
+
+    /**
+     * Stores a response that already is gzipped, as it came from the server
+     *
+     * @param key      the key of the search
+     * @param response the gzipped response
+     */
+    public void storeCompressed(String key, byte[] response) {
+        File file = getFile(key);
+        if (file == null) {
+            return;
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(temporary);
+            stream.write(response);
+            stream.close();
+            stream = null;
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temporary.delete();
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        trim();
+    }
+
+    /**
+     * Deletes the oldest files until the disk tier fits its size
+     */
+    private synchronized void trim() {
+        File[] files = directory == null ? null : directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= DISK_MAX_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < files.length && total > DISK_MAX_BYTES; i++) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    /**
+     * The file of a key is named by the SHA-1 of the key, since the query may
+     * contain any character
+     */
+    private synchronized File getFile(String key) {
+        if (directory == null) {
+            return null;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2 + SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(directory, name.append(SUFFIX).toString());
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * The parsed tracks of a search and when they were parsed
+     */
+    private static class Entry {
+        final ArrayList<Track> tracks;
+        final long time;
+
+        Entry(ArrayList<Track> tracks, long time) {
+            this.tracks = tracks;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package se.chalmers.pd.playlistmanager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.content.res.ColorStateList;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.mixtape.spotify.api.Album;
+import com.mixtape.spotify.api.Artist;
+
+/**
+ * This adapter is used by the search list of the TrackListFragment to show the result
+ * of a combined search. The best matching albums and artists come first and then the
+ * tracks, so the items of the list are Album, Artist and Track objects.
+ */
+public class SearchResultAdapter extends BaseAdapter {
+
+    private static final int MAX_ALBUMS = 3;
+    private static final int MAX_ARTISTS = 3;
+
+    private final ArrayList<Object> items = new ArrayList<Object>();
+    private LayoutInflater inflater;
+    private ColorStateList artistColor;
+    private ColorStateList browseColor;
+    private String albumText;
+    private String artistText;
+
+    /**
+     * Default constructor which looks up the resources that are used by every row.
+     *
+     * @param context the context to operate in
+     * @param tracks  the tracks to show at first
+     */
+    public SearchResultAdapter(Context context, List<Track> tracks) {
+        inflater = (LayoutInflater) context.getApplicationContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        artistColor = context.getResources().getColorStateList(android.R.color.holo_blue_dark);
+        browseColor = context.getResources().getColorStateList(android.R.color.holo_green_dark);
+        albumText = context.getString(R.string.album_row);
+        artistText = context.getString(R.string.artist_row);
+        if (tracks != null) {
+            items.addAll(tracks);
+        }
+    }
+
+    /**
+     * Replaces the items of the list
+     *
+     * @param tracks  the tracks
+     * @param albums  the albums, the best match first
+     * @param artists the artists, the best match first
+     */
+    public void setResult(List<Track> tracks, List<Album> albums, List<Artist> artists) {
+        items.clear();
+        items.addAll(albums.subList(0, Math.min(MAX_ALBUMS, albums.size())));
+        items.addAll(artists.subList(0, Math.min(MAX_ARTISTS, artists.size())));
+        items.addAll(tracks);
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return items.size();
+    }
+
+    /**
+     * @return an Album, an Artist or a Track
+     */
+    @Override
+    public Object getItem(int position) {
+        return items.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View row;
+        ViewHolder holder;
+
+        // Recycle the view if possible
+        if (convertView == null) {
+            row = inflater.inflate(android.R.layout.simple_list_item_2, null);
+            holder = new ViewHolder();
+            holder.title = (TextView) row.findViewById(android.R.id.text1);
+            holder.subtitle = (TextView) row.findViewById(android.R.id.text2);
+            row.setTag(holder);
+        } else {
+            row = convertView;
+            holder = (ViewHolder) row.getTag();
+        }
+
+        Object item = items.get(position);
+        if (item instanceof Album) {
+            Album album = (Album) item;
+            holder.title.setText(album.getName());
+            holder.title.setTextColor(browseColor);
+            holder.subtitle.setText(String.format(albumText, getArtistName(album)));
+        } else if (item instanceof Artist) {
+            holder.title.setText(((Artist) item).getName());
+            holder.title.setTextColor(browseColor);
+            holder.subtitle.setText(artistText);
+        } else {
+            Track track = (Track) item;
+            holder.title.setText(track.getArtist());
+            holder.title.setTextColor(artistColor);
+            holder.subtitle.setText(track.getName() + ", " + track.getUri());
+        }
+        return row;
+    }
+
+    /**
+     * @return the name of the first artist of the album, empty if there is none
+     */
+    private static String getArtistName(Album album) {
+        if (album.getArtists() != null) {
+            for (Artist artist : album.getArtists()) {
+                return artist.getName();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Keeps the views of a row
+     */
+    private static class ViewHolder {
+        TextView title;
+        TextView subtitle;
+    }
+}
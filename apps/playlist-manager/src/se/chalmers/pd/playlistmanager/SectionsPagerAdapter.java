@@ -23,7 +23,7 @@ public class SectionsPagerAdapter extends FragmentPagerAdapter {
     private TrackListFragment searchFragment;
     private Context context;
     private PlayerFragment playerFragment;
-    private ArrayList<Track> playlist = new ArrayList<Track>();
+    private Playlist playlist = new Playlist();
 
     /**
      * Constructor which calls super with the fragment manager and saves the context for
@@ -56,13 +56,13 @@ public class SectionsPagerAdapter extends FragmentPagerAdapter {
             case SECOND_PAGE:
                 playlistFragment = new TrackListFragment();
                 args.putString("title", context.getString(R.string.playlist_title));
-                args.putParcelableArrayList("playlist", playlist);
                 playlistFragment.setArguments(args);
+                playlistFragment.setPlaylist(playlist);
                 return playlistFragment;
             case THIRD_PAGE:
                 playerFragment = new PlayerFragment();
-                args.putParcelableArrayList("playlist", playlist);
                 playerFragment.setArguments(args);
+                playerFragment.setPlaylist(playlist);
                 return playerFragment;
         }
         return null;
@@ -92,13 +92,62 @@ public class SectionsPagerAdapter extends FragmentPagerAdapter {
         return null;
     }
 
+    /**
+     * @param track the track to look for
+     * @return true if the track already is in the playlist
+     */
+    public boolean isInPlaylist(Track track) {
+        return playlist.contains(track.getUri());
+    }
+
+    /**
+     * Shows a track that the user has added in the playlist at once, before the
+     * primary device has confirmed it.
+     *
+     * @param track the added track
+     * @param id    the id that the track was sent with
+     */
+    public void addPending(Track track, ElementId id) {
+        playlist.addPending(track, id);
+        if (playlistFragment != null) {
+            playlistFragment.updateAction(Action.add, track);
+        }
+        if (playerFragment != null) {
+            playerFragment.updateAction(Action.add, track);
+        }
+    }
+
+    /**
+     * @return the id of the current entry of the playlist, null if not known
+     */
+    public ElementId getCurrentId() {
+        return playlist.getCurrentId();
+    }
+
+    /**
+     * @return the id of the last entry of the playlist, null if not known
+     */
+    public ElementId getLastId() {
+        return playlist.getLastId();
+    }
+
     /**
      * Called when the search results need to update in the search fragment.
      *
-     * @param newTracksResult the new results
+     * @param result the new result
      */
-    public void updateSearchResults(ArrayList<Track> newTracksResult) {
-        searchFragment.updateTracks(newTracksResult);
+    public void updateSearchResults(AndroidSpotifyMetadata.CombinedResult result) {
+        searchFragment.updateResult(result);
+    }
+
+    /**
+     * Shows the tracks of an album or an artist in the search fragment.
+     *
+     * @param title  the name of the album or the artist
+     * @param tracks the tracks
+     */
+    public void showTracks(String title, ArrayList<Track> tracks) {
+        searchFragment.showTracks(title, tracks);
     }
 
     /**
@@ -113,12 +162,32 @@ public class SectionsPagerAdapter extends FragmentPagerAdapter {
     }
 
     /**
-     * Calls the fragments with actions and the extra data they might need.
+     * Updates the shared playlist and then calls the fragments with actions and the
+     * extra data they might need.
      *
      * @param action the action to perform
      * @param t      the extra data, null if not needed
      */
     public <T extends Object> void performAction(Action action, T t) {
+        switch (action) {
+            case add:
+                playlist.insert((TrackRange) t);
+                break;
+            case snapshot:
+                playlist.reset((TrackRange) t);
+                break;
+            case range:
+                playlist.setRange((TrackRange) t);
+                break;
+            case next:
+                playlist.next(t == null ? 1 : (Integer) t);
+                break;
+            case prev:
+                playlist.previous(t == null ? 1 : (Integer) t);
+                break;
+            default:
+                break;
+        }
         if (playlistFragment != null) {
             playlistFragment.updateAction(action, t);
         }
@@ -90,15 +90,32 @@ public class Track implements Parcelable {
 
     @Override
     public boolean equals(Object object) {
+        if (object == this) {
+            return true;
+        }
         if (object instanceof Track) {
             Track track = (Track) object;
-            if (track.name.equals(this.name) && track.artist.equals(this.artist)
-                    && track.spotifyUri.equals(this.spotifyUri))
+            if (equals(track.spotifyUri, this.spotifyUri) && equals(track.name, this.name)
+                    && equals(track.artist, this.artist))
                 return true;
         }
         return false;
     }
 
+    /**
+     * The hash code is based on the uri only, tracks that are equal always have the same uri.
+     *
+     * @return the hash code
+     */
+    @Override
+    public int hashCode() {
+        return spotifyUri == null ? 0 : spotifyUri.hashCode();
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
     public int describeContents() {
         return 0;
     }
@@ -132,7 +149,7 @@ public class Track implements Parcelable {
      */
     public static final Parcelable.Creator CREATOR = new Parcelable.Creator() {
         public Track createFromParcel(Parcel in) {
-            return new Track(in);
+            return TrackRegistry.getInstance().intern(new Track(in));
         }
 
         public Track[] newArray(int size) {
@@ -1,60 +1,111 @@
 package se.chalmers.pd.playlistmanager;
 
-import java.util.List;
-
 import android.content.Context;
+import android.content.res.ColorStateList;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 /**
- * This adapter is used by the TrackListFragment to show a list of tracks.
+ * This adapter is used by the TrackListFragment to show a list of tracks. The ids
+ * of the tracks are stable so the list keeps its position when tracks are added, and
+ * rows that already show the right track are not bound again.
  */
-public class TrackAdapter extends ArrayAdapter<Track> {
+public class TrackAdapter extends BaseAdapter {
 
-    private List<Track> tracks;
-    private Context context;
+    private Playlist playlist;
+    private boolean showCurrent;
+    private LayoutInflater inflater;
+    private ColorStateList artistColor;
+    private ColorStateList currentColor;
+    private String loadingText;
 
     /**
-     * Default constructor which saves the tracks and context
+     * Default constructor which saves the playlist and looks up the resources
+     * that are used by every row.
      *
-     * @param context            the context to operate in
-     * @param textViewResourceId the text view to use
-     * @param tracks             the tracks to show
+     * @param context     the context to operate in
+     * @param playlist    the tracks to show
+     * @param showCurrent true if the current track should be highlighted
      */
-    public TrackAdapter(Context context, int textViewResourceId, List<Track> tracks) {
-        super(context, textViewResourceId, tracks);
-        this.tracks = tracks;
-        this.context = context;
+    public TrackAdapter(Context context, Playlist playlist, boolean showCurrent) {
+        this.playlist = playlist;
+        this.showCurrent = showCurrent;
+        inflater = (LayoutInflater) context.getApplicationContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        artistColor = context.getResources().getColorStateList(android.R.color.holo_blue_dark);
+        currentColor = context.getResources().getColorStateList(android.R.color.holo_orange_dark);
+        loadingText = context.getString(R.string.loading_track);
+    }
+
+    @Override
+    public int getCount() {
+        return playlist.size();
+    }
+
+    @Override
+    public Track getItem(int position) {
+        return playlist.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return playlist.getId(position);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         View row;
+        ViewHolder holder;
 
         // Recycle the view if possible
         if (convertView == null) {
-            LayoutInflater inflater = (LayoutInflater) context.getApplicationContext().getSystemService(
-                    Context.LAYOUT_INFLATER_SERVICE);
-            row = (View) inflater.inflate(android.R.layout.simple_list_item_2, null);
+            row = inflater.inflate(android.R.layout.simple_list_item_2, null);
+            holder = new ViewHolder();
+            holder.artist = (TextView) row.findViewById(android.R.id.text1);
+            holder.name = (TextView) row.findViewById(android.R.id.text2);
+            row.setTag(holder);
         } else {
-            row = (View) convertView;
+            row = convertView;
+            holder = (ViewHolder) row.getTag();
         }
 
-        // Build each row layout
-        final Track track = tracks.get(position);
-        TextView v = (TextView) row.findViewById(android.R.id.text1);
-        v.setText(track.getArtist());
-        v.setTextColor(context.getResources().getColorStateList(android.R.color.holo_blue_dark));
-        v = (TextView) row.findViewById(android.R.id.text2);
-        StringBuilder sb = new StringBuilder();
-        sb.append(track.getName());
-        sb.append(", ");
-        sb.append(track.getUri());
-        v.setText(sb.toString());
+        // Only bind what has changed since the row was bound last time, rows
+        // of tracks that have not been loaded yet are bound again when they are
+        long id = playlist.getId(position);
+        if (holder.id != id) {
+            Track track = playlist.get(position);
+            if (track != null) {
+                holder.artist.setText(track.getArtist());
+                holder.name.setText(track.getName() + ", " + track.getUri());
+                holder.id = id;
+            } else {
+                holder.artist.setText(loadingText);
+                holder.name.setText("");
+                holder.id = -1;
+            }
+        }
+        boolean current = showCurrent && position == playlist.getCursor();
+        if (holder.current == null || holder.current != current) {
+            holder.artist.setTextColor(current ? currentColor : artistColor);
+            holder.current = current;
+        }
         return row;
     }
 
+    /**
+     * Keeps the views of a row and what they show
+     */
+    private static class ViewHolder {
+        TextView artist;
+        TextView name;
+        long id = -1;
+        Boolean current;
+    }
 }
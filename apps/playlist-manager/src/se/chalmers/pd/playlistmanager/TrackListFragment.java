@@ -8,18 +8,29 @@ import android.support.v4.app.ListFragment;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.mixtape.spotify.api.Album;
+import com.mixtape.spotify.api.Artist;
+
 /**
  * This fragment is used to show list of tracks. Both the playlist and the search
- * result list make use of this fragment.
+ * result list make use of this fragment. The search result list also shows albums and
+ * artists, which show their tracks in the list when they are selected.
  */
-public class TrackListFragment extends ListFragment {
+public class TrackListFragment extends ListFragment implements AbsListView.OnScrollListener {
 
+    private static final int PREFETCH = 25;
     private String title;
+    private Playlist playlist;
+    private boolean showCurrent = false;
+    private int shownCursor = 0;
     private TrackAdapter adapter;
+    private SearchResultAdapter resultAdapter;
+    private TextView titleView;
     private FragmentCallback callback;
 
     /**
@@ -45,7 +56,19 @@ public class TrackListFragment extends ListFragment {
     }
 
     /**
-     * Gets the tracks from the passed in arguments and sets the list to the adapter.
+     * Sets the playlist to show. The playlist is shared with the other fragments and
+     * the current track is highlighted. Has to be called before the fragment is created.
+     *
+     * @param playlist the shared playlist
+     */
+    public void setPlaylist(Playlist playlist) {
+        this.playlist = playlist;
+        showCurrent = true;
+    }
+
+    /**
+     * Sets up the adapter of the shared playlist or, if no playlist has been set, of
+     * the search result with the tracks from the passed in arguments.
      *
      * @param savedInstanceState
      */
@@ -53,8 +76,13 @@ public class TrackListFragment extends ListFragment {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         title = getArguments().getString("title", "");
-        ArrayList<Track> tracks = getArguments().getParcelableArrayList("playlist");
-        setupAdapter(tracks);
+        if (playlist == null) {
+            ArrayList<Track> tracks = getArguments().getParcelableArrayList("playlist");
+            resultAdapter = new SearchResultAdapter(getActivity(), tracks);
+            setListAdapter(resultAdapter);
+        } else {
+            setupAdapter();
+        }
     }
 
     /**
@@ -68,13 +96,41 @@ public class TrackListFragment extends ListFragment {
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_tracklist, null);
-        TextView titleView = (TextView) view.findViewById(R.id.title);
+        titleView = (TextView) view.findViewById(R.id.title);
         titleView.setText(title);
         return view;
     }
 
     /**
-     * When a list item has been clicked the track is passed on to the callback
+     * Listens to the scrolling of the shared playlist so that tracks can be loaded
+     * when they come into view.
+     *
+     * @param savedInstanceState
+     */
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        if (showCurrent) {
+            getListView().setOnScrollListener(this);
+        }
+    }
+
+    /**
+     * Loads the tracks that are visible and a window around them.
+     */
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        loadTracks(firstVisibleItem, firstVisibleItem + visibleItemCount);
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        // Not used
+    }
+
+    /**
+     * When a list item has been clicked the track, album or artist is passed on to the
+     * callback
      *
      * @param l        listview
      * @param v        view
@@ -83,32 +139,60 @@ public class TrackListFragment extends ListFragment {
      */
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
-        Track track = (Track) getListAdapter().getItem(position);
-        callback.onTrackSelected(track);
+        Object item = getListAdapter().getItem(position);
+        if (item instanceof Track) {
+            callback.onTrackSelected((Track) item);
+        } else if (item instanceof Album) {
+            callback.onAlbumSelected((Album) item);
+        } else if (item instanceof Artist) {
+            callback.onArtistSelected((Artist) item);
+        }
     }
 
     /**
-     * Updates the tracks in the list
+     * Shows the result of a combined search in the search result list
      *
-     * @param tracks the tracks to use
+     * @param result the result to show
      */
-    public void updateTracks(ArrayList<Track> tracks) {
-        setupAdapter(tracks);
+    public void updateResult(AndroidSpotifyMetadata.CombinedResult result) {
+        setTitle(title);
+        resultAdapter.setResult(result.getTracks(), result.getAlbums(), result.getArtists());
     }
 
     /**
-     * Sets up the adapter with the tracks and the system provided layout.
+     * Shows the tracks of an album or an artist in the search result list, with the
+     * name of the album or the artist as the title
      *
-     * @param tracks the tracks to add to the list
+     * @param title  the name of the album or the artist
+     * @param tracks the tracks to show
      */
-    private void setupAdapter(final ArrayList<Track> tracks) {
-        adapter = new TrackAdapter(getActivity(), android.R.layout.simple_list_item_2, tracks);
+    public void showTracks(String title, ArrayList<Track> tracks) {
+        setTitle(title);
+        resultAdapter.setResult(tracks, new ArrayList<Album>(), new ArrayList<Artist>());
+        if (getView() != null) {
+            getListView().setSelection(0);
+        }
+    }
+
+    private void setTitle(String title) {
+        if (titleView != null) {
+            titleView.setText(title);
+        }
+    }
+
+    /**
+     * Sets up the adapter with the playlist and the system provided layout.
+     */
+    private void setupAdapter() {
+        adapter = new TrackAdapter(getActivity(), playlist, showCurrent);
+        shownCursor = playlist.getCursor();
         setListAdapter(adapter);
     }
 
     /**
      * Called when a message has been received or an action needs to be performed to
-     * update the UI.
+     * update the UI. The playlist itself has already been updated, this only updates
+     * the list.
      *
      * @param action the action to perform
      * @param t      the data to use with the action (null if none)
@@ -116,57 +200,87 @@ public class TrackListFragment extends ListFragment {
     public <T extends Object> void updateAction(Action action, T t) {
         switch (action) {
             case add:
-                addTrack((Track) t);
-                Toast.makeText(getActivity(), getActivity().getString(R.string.track_added), Toast.LENGTH_SHORT).show();
+                refreshList();
+                // Tracks added by the user come as tracks, confirmed ones as ranges
+                if (t instanceof Track) {
+                    Toast.makeText(getActivity(), getActivity().getString(R.string.track_added), Toast.LENGTH_SHORT).show();
+                }
                 break;
-            case add_all:
-                addAllTracks((ArrayList<Track>) t);
+            case snapshot:
+            case range:
+                refreshList();
+                loadTracks(playlist.getCursor(), playlist.getCursor() + 1);
                 break;
             case next:
-                shiftNext();
-                break;
             case prev:
-                shiftPrev();
+                updateCurrentRows();
+                loadTracks(playlist.getCursor(), playlist.getCursor() + 1);
                 break;
         }
     }
 
     /**
-     * Adds a single track to the list
-     * @param track the track to add
+     * Asks for the tracks of the shared playlist that are not loaded between the
+     * positions, and a window before and after them, in as few requests as possible.
+     *
+     * @param from the first position
+     * @param to   the position after the last one
      */
-    private void addTrack(Track track) {
-        adapter.add(track);
+    private void loadTracks(int from, int to) {
+        if (!showCurrent || playlist.isEmpty()) {
+            return;
+        }
+        from = Math.max(0, from - PREFETCH);
+        to = Math.min(playlist.size(), to + PREFETCH);
+        int start = -1;
+        for (int position = from; position <= to; position++) {
+            boolean missing = position < to && playlist.needsLoading(position);
+            if (missing && start == -1) {
+                start = position;
+            } else if (!missing && start != -1) {
+                playlist.setRequested(start, position);
+                callback.onLoadTracks(playlist.toOffset(start), position - start);
+                start = -1;
+            }
+        }
     }
 
     /**
-     * Clears the adapter and adds all tracks to it
-     * @param list
+     * Tells the list that tracks have been added or replaced. Since the ids are stable
+     * the list only binds the rows that show something new.
      */
-    private void addAllTracks(ArrayList<Track> list) {
-        adapter.clear();
-        for (Track track : list) {
-            addTrack(track);
-        }
+    private void refreshList() {
+        shownCursor = playlist.getCursor();
+        adapter.notifyDataSetChanged();
     }
 
     /**
-     * Shifts the list forward taking the first element and putting it last.
+     * Moves the highlight from the previous current track to the new one. Only these
+     * two rows are bound again, the rest of the list is left as it is.
      */
-    private void shiftNext() {
-        Track originalTrack = adapter.getItem(0);
-        adapter.remove(originalTrack);
-        adapter.add(originalTrack);
-        adapter.notifyDataSetChanged();
+    private void updateCurrentRows() {
+        int previousCursor = shownCursor;
+        shownCursor = playlist.getCursor();
+        updateRow(previousCursor);
+        updateRow(shownCursor);
     }
 
     /**
-     * Shifts the list backward, taking the last element and placing it first.
+     * Binds the row at the position again if it is visible.
+     *
+     * @param position the position in the list
      */
-    private void shiftPrev() {
-        Track originalTrack = adapter.getItem(adapter.getCount() - 1);
-        adapter.remove(originalTrack);
-        adapter.insert(originalTrack, 0);
-        adapter.notifyDataSetChanged();
+    private void updateRow(int position) {
+        if (getView() == null) {
+            return;
+        }
+        ListView list = getListView();
+        int first = list.getFirstVisiblePosition();
+        if (position >= first && position <= list.getLastVisiblePosition()) {
+            View row = list.getChildAt(position - first);
+            if (row != null) {
+                adapter.getView(position, row, list);
+            }
+        }
     }
 }
@@ -0,0 +1,66 @@
+package se.chalmers.pd.playlistmanager;
+
+import java.util.List;
+
+/**
+ * A window of the playlist of the primary device. The offset is counted from the
+ * current track and the window is only valid for the version of the playlist it
+ * was taken from. The ids of the entries are listed in the same order as the tracks.
+ */
+public class TrackRange {
+
+    private final int version;
+    private final int total;
+    private final int offset;
+    private final List<Track> tracks;
+    private final List<ElementId> ids;
+
+    /**
+     * @param version the version of the playlist
+     * @param total   the total number of tracks in the playlist
+     * @param offset  the position of the first track counted from the current track
+     * @param tracks  the tracks of the window
+     */
+    public TrackRange(int version, int total, int offset, List<Track> tracks) {
+        this(version, total, offset, tracks, null);
+    }
+
+    /**
+     * @param version the version of the playlist
+     * @param total   the total number of tracks in the playlist
+     * @param offset  the position of the first track counted from the current track
+     * @param tracks  the tracks of the window
+     * @param ids     the ids of the entries of the window, null if not known
+     */
+    public TrackRange(int version, int total, int offset, List<Track> tracks, List<ElementId> ids) {
+        this.version = version;
+        this.total = total;
+        this.offset = offset;
+        this.tracks = tracks;
+        this.ids = ids;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public List<Track> getTracks() {
+        return tracks;
+    }
+
+    /**
+     * @param index the index of the track in the window
+     * @return the id of the entry or null if it is not known
+     */
+    public ElementId getId(int index) {
+        return ids == null || index >= ids.size() ? null : ids.get(index);
+    }
+}
@@ -0,0 +1,129 @@
+package se.chalmers.pd.playlistmanager;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps one canonical Track instance per spotify uri so that the same track
+ * added several times, or sent in several messages, shares one object and one
+ * set of strings. The registry only holds weak references, a track is dropped
+ * from it when nothing else refers to it anymore.
+ * <p/>
+ * The latest metadata of a uri wins. When a track arrives with another name,
+ * artist or length than the canonical track, e.g. because the name has been
+ * corrected, it replaces the canonical track. Tracks are not changed in place
+ * since they may be shared by snapshots. Tracks without a uri are never
+ * interned, they would all collapse into one track.
+ * <p/>
+ * Every track that is registered is also added to the LocalTrackIndex, so that
+ * the tracks seen in playlist messages and search results can be searched
+ * offline.
+ */
+public class TrackRegistry {
+
+    private static TrackRegistry instance;
+
+    private final WeakHashMap<String, WeakReference<Track>> tracks = new WeakHashMap<String, WeakReference<Track>>();
+
+    private TrackRegistry() {
+    }
+
+    /**
+     * @return the registry
+     */
+    public static synchronized TrackRegistry getInstance() {
+        if (instance == null) {
+            instance = new TrackRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the canonical track for the uri, a new track is registered if
+     * there is none.
+     *
+     * @param name       name of track
+     * @param artist     artist who performs track
+     * @param spotifyUri uri to the track
+     * @param length     length of track in seconds
+     * @return the canonical track
+     */
+    public synchronized Track obtain(String name, String artist, String spotifyUri, int length) {
+        Track track = get(spotifyUri);
+        if (track == null || !hasMetadata(track, name, artist, length)) {
+            track = new Track(name, artist, spotifyUri, length);
+            register(track);
+        }
+        return track;
+    }
+
+    /**
+     * Returns the canonical track with the same uri as the given track. The
+     * given track becomes the canonical one if there is none.
+     *
+     * @param track the track to look up
+     * @return the canonical track
+     */
+    public synchronized Track intern(Track track) {
+        Track canonical = get(track.getUri());
+        if (canonical == null || !hasMetadata(canonical, track.getName(), track.getArtist(), track.getLength())) {
+            register(track);
+            canonical = track;
+        }
+        return canonical;
+    }
+
+    /**
+     * @param spotifyUri the uri of the track
+     * @return the canonical track or null if there is none
+     */
+    public synchronized Track get(String spotifyUri) {
+        if (spotifyUri == null || spotifyUri.length() == 0) {
+            return null;
+        }
+        WeakReference<Track> reference = tracks.get(spotifyUri);
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * @param spotifyUri the uri of the track
+     * @return true if there is a canonical track for the uri
+     */
+    public synchronized boolean contains(String spotifyUri) {
+        return get(spotifyUri) != null;
+    }
+
+    /**
+     * Removes the canonical track for the uri
+     *
+     * @param spotifyUri the uri of the track
+     * @return the track that was removed or null if there was none
+     */
+    public synchronized Track remove(String spotifyUri) {
+        WeakReference<Track> reference = tracks.remove(spotifyUri);
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * @return true if the track has the given metadata
+     */
+    private static boolean hasMetadata(Track track, String name, String artist, int length) {
+        return (name == null ? track.getName() == null : name.equals(track.getName()))
+                && (artist == null ? track.getArtist() == null : artist.equals(track.getArtist()))
+                && length == track.getLength();
+    }
+
+    /**
+     * The uri of the track itself is used as the key so that the entry lives
+     * exactly as long as the track. A replaced entry is removed first, since
+     * the map would keep the key of the old track otherwise and drop the entry
+     * when the old track is collected.
+     */
+    private void register(Track track) {
+        if (track.getUri() != null && track.getUri().length() > 0) {
+            tracks.remove(track.getUri());
+            tracks.put(track.getUri(), new WeakReference<Track>(track));
+            LocalTrackIndex.getInstance().add(track);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package se.chalmers.pd.playlistmanager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import se.chalmers.pd.device.PlaylistEngine;
+import se.chalmers.pd.device.PlaylistSnapshot;
+
+/**
+ * Simulates several playlist managers that edit the playlist of one primary device
+ * at the same time and checks that they all end up with the playlist of the device.
+ * The device is the real PlaylistEngine and every editor has a real Playlist, only
+ * the broker is simulated:
+ *
+ * - an editor adds a track as a pending entry at once and sends the add with a new id
+ * and the id of its last entry, or sends next or prev with its current entry.
+ *
+ * - the messages of each editor reach the device in the order they were sent, but the
+ * editors are interleaved at random and some adds are lost on the way.
+ *
+ * - the operations of the device reach every editor in order, each editor at its own
+ * pace, but some are lost. An editor fetches the operations it missed from the
+ * operation log of the device, the way ApplicationController does when it sees a gap
+ * in the versions, and once more at the end as if it had reconnected.
+ *
+ * - editors load windows of the playlist while they have pending entries, and some
+ * editors join late and start from a snapshot of the first window only.
+ *
+ * When the messages have settled every editor must list the same confirmed entries as
+ * the device, from the current one, with every entry loaded and only the lost adds
+ * still pending. The harness runs on a desktop JVM with the sources of the device and
+ * android.jar on the classpath:
+ *
+ * <pre>
+ * javac -cp android.jar -d out ../src/se/chalmers/pd/playlistmanager/*.java \
+ *     ../../device/src/se/chalmers/pd/device/*.java src/se/chalmers/pd/playlistmanager/*.java
+ * java -cp out:android.jar se.chalmers.pd.playlistmanager.ConvergenceHarness [editors] [steps] [runs] [seed]
+ * </pre>
+ */
+public class ConvergenceHarness {
+
+    private static final int SNAPSHOT_WINDOW = 10;
+    private static final int RANGE_WINDOW = 15;
+    private static final double LOST_ADD = 0.05;
+    private static final double LOST_OP = 0.05;
+    private static final double LATE_JOIN = 0.3;
+    private static final double JOIN = 0.01;
+
+    private final Random random;
+    private final PlaylistEngine device = new PlaylistEngine();
+    private final List<Op> log = new ArrayList<Op>();
+    private final List<Editor> editors = new ArrayList<Editor>();
+    private int tracks = 0;
+
+    /**
+     * @param editors the number of editors
+     * @param seed    the seed of the run, the same seed gives the same run
+     */
+    public ConvergenceHarness(int editors, long seed) {
+        random = new Random(seed);
+        for (int i = 0; i < editors; i++) {
+            this.editors.add(new Editor("editor-" + i));
+        }
+    }
+
+    public static void main(String[] args) {
+        int editors = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime();
+        int failed = 0;
+        for (int i = 0; i < runs; i++) {
+            String error = new ConvergenceHarness(editors, seed + i).run(steps);
+            if (error != null) {
+                System.out.println("Seed " + (seed + i) + " did not converge: " + error);
+                failed++;
+            }
+        }
+        System.out.println(runs + " runs with " + editors + " editors and " + steps + " steps from seed " + seed
+                + ", " + failed + " did not converge");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Makes random edits and deliveries, lets the messages settle and compares the
+     * playlists.
+     *
+     * @param steps the number of random steps
+     * @return a description of the first difference, or null if all editors converged
+     */
+    public String run(int steps) {
+        for (Editor editor : editors) {
+            if (random.nextDouble() >= LATE_JOIN) {
+                editor.join();
+            }
+        }
+        for (int i = 0; i < steps; i++) {
+            Editor editor = editors.get(random.nextInt(editors.size()));
+            int choice = random.nextInt(10);
+            if (!editor.joined) {
+                if (random.nextDouble() < JOIN) {
+                    editor.join();
+                }
+            } else if (choice < 4) {
+                editor.add();
+            } else if (choice < 5) {
+                editor.skip(random.nextBoolean());
+            } else if (choice < 7) {
+                editor.deliverToDevice();
+            } else if (choice < 9) {
+                editor.receive();
+            } else {
+                editor.loadWindow();
+            }
+        }
+        for (Editor editor : editors) {
+            if (!editor.joined) {
+                editor.join();
+            }
+            while (!editor.outbox.isEmpty()) {
+                editor.deliverToDevice();
+            }
+        }
+        for (Editor editor : editors) {
+            editor.inbox.addAll(log.subList(editor.version, log.size()));
+            while (!editor.inbox.isEmpty()) {
+                editor.receive();
+            }
+            editor.loadAll();
+            String error = editor.compare();
+            if (error != null) {
+                return error;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Applies a message on the device the way the device ApplicationController does
+     * and sends the resulting operation to every editor
+     */
+    private void apply(Message message) {
+        Op op;
+        if (message.action == Action.add) {
+            se.chalmers.pd.device.Track track = new se.chalmers.pd.device.Track(message.uri, "", message.uri, 1);
+            int offset = device.add(track, toDevice(message.id), toDevice(message.after));
+            if (offset < 0) {
+                return;
+            }
+            op = new Op(log.size() + 1, Action.add, message.uri, message.id, offset);
+        } else {
+            if (message.from != null && !message.from.toString().equals(String.valueOf(device.getCurrentId()))) {
+                return;
+            }
+            if (!(message.action == Action.next ? device.next() : device.previous())) {
+                return;
+            }
+            op = new Op(log.size() + 1, message.action, null, null, 0);
+        }
+        log.add(op);
+        for (Editor editor : editors) {
+            if (editor.joined && random.nextDouble() >= LOST_OP) {
+                editor.inbox.add(op);
+            }
+        }
+    }
+
+    /**
+     * @return a window of the playlist of the device as the device sends it
+     */
+    private TrackRange window(int offset, int count) {
+        PlaylistSnapshot snapshot = device.snapshot(log.size());
+        List<Track> tracks = new ArrayList<Track>();
+        List<ElementId> ids = new ArrayList<ElementId>();
+        List<se.chalmers.pd.device.Track> deviceTracks = snapshot.getTracks(offset, count);
+        List<se.chalmers.pd.device.ElementId> deviceIds = snapshot.getIds(offset, count);
+        for (int i = 0; i < deviceTracks.size(); i++) {
+            tracks.add(new Track(deviceTracks.get(i).getUri(), "", deviceTracks.get(i).getUri(), 1));
+            ids.add(ElementId.parse(deviceIds.get(i).toString()));
+        }
+        return new TrackRange(snapshot.getVersion(), snapshot.size(), offset, tracks, ids);
+    }
+
+    private static se.chalmers.pd.device.ElementId toDevice(ElementId id) {
+        return id == null ? null : se.chalmers.pd.device.ElementId.parse(id.toString());
+    }
+
+    /**
+     * A message from an editor to the device
+     */
+    private static class Message {
+        final Action action;
+        final String uri;
+        final ElementId id;
+        final ElementId after;
+        final ElementId from;
+
+        Message(Action action, String uri, ElementId id, ElementId after, ElementId from) {
+            this.action = action;
+            this.uri = uri;
+            this.id = id;
+            this.after = after;
+            this.from = from;
+        }
+    }
+
+    /**
+     * An operation of the device, the same fields as its json form
+     */
+    private static class Op {
+        final int version;
+        final Action type;
+        final String uri;
+        final ElementId id;
+        final int offset;
+
+        Op(int version, Action type, String uri, ElementId id, int offset) {
+            this.version = version;
+            this.type = type;
+            this.uri = uri;
+            this.id = id;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * One playlist manager with its playlist, the messages it has sent that have not
+     * reached the device and the operations that have not reached it
+     */
+    private class Editor {
+        final String client;
+        final Playlist playlist = new Playlist();
+        final LinkedList<Message> outbox = new LinkedList<Message>();
+        final LinkedList<Op> inbox = new LinkedList<Op>();
+        final HashSet<String> lost = new HashSet<String>();
+        boolean joined = false;
+        int version = -1;
+        long clock = 0;
+
+        Editor(String client) {
+            this.client = client;
+        }
+
+        /**
+         * Starts from the retained snapshot, which only has the first window
+         */
+        void join() {
+            joined = true;
+            TrackRange snapshot = window(0, SNAPSHOT_WINDOW);
+            version = snapshot.getVersion();
+            playlist.reset(snapshot);
+            for (int i = 0; i < snapshot.getTracks().size(); i++) {
+                clock = Math.max(clock, snapshot.getId(i).getClock());
+            }
+        }
+
+        void add() {
+            String uri = "spotify:track:" + tracks++;
+            ElementId id = new ElementId(++clock, client);
+            ElementId after = playlist.getLastId();
+            playlist.addPending(new Track(uri, "", uri, 1), id);
+            if (random.nextDouble() < LOST_ADD) {
+                lost.add(uri);
+            } else {
+                outbox.add(new Message(Action.add, uri, id, after, null));
+            }
+        }
+
+        void skip(boolean next) {
+            outbox.add(new Message(next ? Action.next : Action.prev, null, null, null, playlist.getCurrentId()));
+        }
+
+        void deliverToDevice() {
+            if (!outbox.isEmpty()) {
+                apply(outbox.removeFirst());
+            }
+        }
+
+        /**
+         * Applies the next operation the way ApplicationController and
+         * SectionsPagerAdapter do, fetching the missed ones on a gap
+         */
+        void receive() {
+            if (inbox.isEmpty()) {
+                return;
+            }
+            Op op = inbox.removeFirst();
+            if (op.version <= version) {
+                return;
+            }
+            if (op.version != version + 1) {
+                inbox.addFirst(op);
+                inbox.addAll(0, log.subList(version, op.version - 1));
+                return;
+            }
+            version = op.version;
+            switch (op.type) {
+                case add:
+                    List<Track> tracks = new ArrayList<Track>(1);
+                    List<ElementId> ids = new ArrayList<ElementId>(1);
+                    tracks.add(new Track(op.uri, "", op.uri, 1));
+                    ids.add(op.id);
+                    playlist.insert(new TrackRange(op.version, 0, op.offset, tracks, ids));
+                    clock = Math.max(clock, op.id.getClock());
+                    break;
+                case next:
+                    playlist.next();
+                    break;
+                case prev:
+                    playlist.previous();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Loads a random window the way TrackListFragment does when the user scrolls.
+         * The answer comes right away, so it is from a newer version than the playlist
+         * if operations are on the way and the requested entries are loaded later.
+         */
+        void loadWindow() {
+            if (playlist.isEmpty()) {
+                return;
+            }
+            int position = random.nextInt(playlist.size());
+            if (!playlist.needsLoading(position)) {
+                return;
+            }
+            int offset = playlist.toOffset(position);
+            playlist.setRequested(position, Math.min(position + RANGE_WINDOW, playlist.size()));
+            playlist.setRange(window(offset, RANGE_WINDOW));
+        }
+
+        void loadAll() {
+            for (int position = 0; position < playlist.size(); position++) {
+                if (playlist.needsLoading(position)) {
+                    int offset = playlist.toOffset(position);
+                    playlist.setRequested(position, Math.min(position + RANGE_WINDOW, playlist.size()));
+                    playlist.setRange(window(offset, RANGE_WINDOW));
+                }
+            }
+        }
+
+        /**
+         * @return the first difference from the device, or null if there is none
+         */
+        String compare() {
+            PlaylistSnapshot expected = device.snapshot(log.size());
+            int size = playlist.size();
+            int confirmed = size - lost.size();
+            if (confirmed != expected.size()) {
+                return client + " has " + confirmed + " confirmed entries, the device has " + expected.size();
+            }
+            List<se.chalmers.pd.device.Track> deviceTracks = expected.getTracks();
+            for (int offset = 0; offset < size; offset++) {
+                Track track = playlist.get((playlist.getCursor() + offset) % size);
+                if (track == null) {
+                    return client + " has not loaded the entry at offset " + offset;
+                }
+                if (offset < confirmed && !track.getUri().equals(deviceTracks.get(offset).getUri())) {
+                    return client + " has " + track.getUri() + " at offset " + offset + ", the device has "
+                            + deviceTracks.get(offset).getUri();
+                }
+                if (offset >= confirmed && !lost.contains(track.getUri())) {
+                    return client + " has " + track.getUri() + " pending at offset " + offset;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package se.chalmers.pd.playlistmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Spotify Metadata API, so that the MetadataClient can be
+ * tried without the network. It answers /search/1/{track,album,artist}.json?q=...&page=N
+ * with made up results in the format of the API, a fixed number of results per query
+ * split in pages of 100 like the API does. The same query always gives the same
+ * result.
+ * <p/>
+ * With a recording directory it replays the responses of the real API from a
+ * ResponseRecording instead, and answers 404 to searches that are not recorded.
+ * With an upstream server as well, searches that are not recorded are downloaded
+ * from it and recorded, so the first run against the real API records what the
+ * next runs replay.
+ * <p/>
+ * The network can be made slower: every response waits the latency plus a random
+ * part of the jitter before it is sent, and the body is sent no faster than the
+ * bandwidth. Together with the SearchBenchmarkActivity of the app this measures
+ * searching on a given network without ws.spotify.com.
+ * <p/>
+ * Responses are gzipped when the request accepts it and connections are kept alive.
+ * Every request is printed with the connection it came on and how many requests were
+ * being served at the same time, which shows whether the client reuses its
+ * connections and keeps to its concurrency limit.
+ * <p/>
+ * The server runs on a desktop JVM. Point the app at it with the metadata_url string,
+ * for example http://10.0.2.2:8080 from the emulator:
+ *
+ * <pre>
+ * javac -d out src/se/chalmers/pd/playlistmanager/MetadataStubServer.java \
+ *     src/se/chalmers/pd/playlistmanager/ResponseRecording.java
+ * java -cp out se.chalmers.pd.playlistmanager.MetadataStubServer [-port 8080] [-results 230]
+ *     [-recording dir [-upstream http://ws.spotify.com]] [-latency ms] [-jitter ms] [-bandwidth kbit/s]
+ * </pre>
+ */
+public class MetadataStubServer implements HttpHandler {
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_RESULTS = 230;
+    private static final int PAGE_SIZE = 100;
+    private static final String PATH = "/search/1/";
+    private static final String SUFFIX = ".json";
+    private static final String GZIP = "gzip";
+    private static final int CHUNK_SIZE = 1024;
+
+    private final int results;
+    private final Random random = new Random();
+    private ResponseRecording recording;
+    private String upstream;
+    private long latencyMillis = 0;
+    private long jitterMillis = 0;
+    private long bytesPerSecond = 0;
+    private final HashSet<String> connections = new HashSet<String>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile int maxActive = 0;
+
+    /**
+     * @param results the number of results of every query
+     */
+    public MetadataStubServer(int results) {
+        this.results = results;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int results = DEFAULT_RESULTS;
+        String directory = null;
+        String upstream = null;
+        long latency = 0;
+        long jitter = 0;
+        int bandwidth = 0;
+        for (int i = 0; i < args.length; i += 2) {
+            String value = i + 1 < args.length ? args[i + 1] : "";
+            if (args[i].equals("-port")) {
+                port = Integer.parseInt(value);
+            } else if (args[i].equals("-results")) {
+                results = Integer.parseInt(value);
+            } else if (args[i].equals("-recording")) {
+                directory = value;
+            } else if (args[i].equals("-upstream")) {
+                upstream = value;
+            } else if (args[i].equals("-latency")) {
+                latency = Long.parseLong(value);
+            } else if (args[i].equals("-jitter")) {
+                jitter = Long.parseLong(value);
+            } else if (args[i].equals("-bandwidth")) {
+                bandwidth = Integer.parseInt(value);
+            } else {
+                System.out.println("Unknown option " + args[i] + ", see the class comment of MetadataStubServer");
+                System.exit(1);
+            }
+        }
+        MetadataStubServer server = new MetadataStubServer(results);
+        if (directory != null) {
+            server.setRecording(new ResponseRecording(new File(directory)), upstream);
+        }
+        server.setNetwork(latency, jitter, bandwidth);
+        start(port, server);
+        System.out.println("Serving " + (directory == null ? results + " results per query" : "the recording in "
+                + directory + (upstream == null ? "" : ", recording from " + upstream)) + " on port " + port
+                + " with a latency of " + latency + " ms, a jitter of " + jitter + " ms and "
+                + (bandwidth > 0 ? "a bandwidth of " + bandwidth + " kbit/s" : "no bandwidth limit"));
+    }
+
+    /**
+     * Replays recorded responses instead of making them up
+     *
+     * @param recording the recorded responses
+     * @param upstream  the server to record the searches that are not recorded from,
+     *                  null to answer 404 to them
+     */
+    public void setRecording(ResponseRecording recording, String upstream) {
+        this.recording = recording;
+        this.upstream = upstream;
+    }
+
+    /**
+     * Makes the responses as slow as on a real network
+     *
+     * @param latencyMillis     the time every response waits before it is sent
+     * @param jitterMillis      the most time a response waits on top of the latency,
+     *                          a random part of it is added to every response
+     * @param kilobitsPerSecond the bandwidth the body is sent with, 0 for no limit
+     */
+    public void setNetwork(long latencyMillis, long jitterMillis, int kilobitsPerSecond) {
+        this.latencyMillis = Math.max(0, latencyMillis);
+        this.jitterMillis = Math.max(0, jitterMillis);
+        bytesPerSecond = Math.max(0, kilobitsPerSecond) * 1000L / 8;
+    }
+
+    /**
+     * Starts a server with a thread per request, so that concurrent requests are
+     * served concurrently.
+     *
+     * @param port    the port to listen on
+     * @param handler the handler of the requests
+     * @return the started server
+     * @throws IOException if the port cannot be used
+     */
+    public static HttpServer start(int port, HttpHandler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, handler);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        int now = active.incrementAndGet();
+        try {
+            synchronized (this) {
+                maxActive = Math.max(maxActive, now);
+                connections.add(exchange.getRemoteAddress().toString());
+            }
+            String path = exchange.getRequestURI().getPath();
+            String type = path.substring(PATH.length(), Math.max(PATH.length(), path.length() - SUFFIX.length()));
+            String query = getParameter(exchange, "q", "");
+            int page = Math.max(1, Integer.parseInt(getParameter(exchange, "page", "1")));
+            byte[] body;
+            int status = 200;
+            String source = "";
+            if (recording == null) {
+                body = createResponse(type, query, page);
+                status = body == null ? 400 : status;
+            } else {
+                body = recording.get(type, query, page);
+                if (body == null && upstream != null) {
+                    body = recording.record(upstream, type, query, page);
+                    source = " recorded";
+                }
+                status = body == null ? 404 : status;
+                source = body == null ? " not recorded" : source;
+            }
+            long delay = latencyMillis + (long) (random.nextDouble() * jitterMillis);
+            sleep(delay);
+            boolean gzip = send(exchange, status, body == null ? new byte[0] : body, bytesPerSecond);
+            System.out.println(exchange.getRequestMethod() + " " + exchange.getRequestURI() + source + (gzip ? " gzip" : "")
+                    + " after " + delay + " ms from " + exchange.getRemoteAddress() + ", " + requests.incrementAndGet()
+                    + " requests on " + connections.size() + " connections, at most " + maxActive + " at once");
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Sends a response, gzipped if the request accepts it, and keeps the connection
+     * open for the next request.
+     *
+     * @param exchange       the request
+     * @param status         the status code
+     * @param body           the body of the response
+     * @param bytesPerSecond the most bytes of the body to send per second, 0 for no limit
+     * @return true if the body was gzipped
+     * @throws IOException if the response could not be sent
+     */
+    public static boolean send(HttpExchange exchange, int status, byte[] body, long bytesPerSecond) throws IOException {
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = accept != null && accept.contains(GZIP);
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream output = new GZIPOutputStream(compressed);
+            output.write(body);
+            output.close();
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", GZIP);
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        OutputStream output = exchange.getResponseBody();
+        if (bytesPerSecond <= 0) {
+            output.write(body);
+        } else {
+            // The body goes out in chunks, each one when the bandwidth allows it
+            long start = System.nanoTime();
+            for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+                int length = Math.min(CHUNK_SIZE, body.length - offset);
+                output.write(body, offset, length);
+                output.flush();
+                long due = start + (offset + length) * 1000000000L / bytesPerSecond;
+                sleep((due - System.nanoTime()) / 1000000);
+            }
+        }
+        output.close();
+        return gzip;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the decoded value of a parameter of the query string
+     */
+    static String getParameter(HttpExchange exchange, String name, String defaultValue)
+            throws UnsupportedEncodingException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int separator = parameter.indexOf('=');
+                if (separator > 0 && parameter.substring(0, separator).equals(name)) {
+                    return URLDecoder.decode(parameter.substring(separator + 1), "UTF-8");
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Makes up a page of results in the format of the API
+     *
+     * @return the json of the response or null if the type is unknown
+     */
+    private byte[] createResponse(String type, String query, int page) throws UnsupportedEncodingException {
+        int offset = (page - 1) * PAGE_SIZE;
+        int count = Math.max(0, Math.min(PAGE_SIZE, results - offset));
+        String id = Integer.toHexString(query.toLowerCase().hashCode());
+        StringBuilder json = new StringBuilder();
+        json.append("{\"info\": {\"num_results\": ").append(results).append(", \"limit\": ").append(PAGE_SIZE)
+                .append(", \"offset\": ").append(offset).append(", \"query\": ").append(quote(query))
+                .append(", \"type\": ").append(quote(type)).append(", \"page\": ").append(page).append("}, ");
+        if (type.equals("track")) {
+            json.append("\"tracks\": [");
+            for (int i = offset; i < offset + count; i++) {
+                json.append(i == offset ? "" : ", ").append("{\"href\": ").append(quote("spotify:track:" + id + i))
+                        .append(", \"name\": ").append(quote(query + " " + (i + 1)))
+                        .append(", \"external-ids\": [], \"popularity\": 0.5, \"length\": \"").append(120 + i % 180)
+                        .append(".5\", \"artists\": [").append(artist(query, id, i % 7)).append("], \"album\": ")
+                        .append(album(query, id, i / 10)).append(", \"track-number\": ").append(i % 10 + 1)
+                        .append(", \"explicit\": false}");
+            }
+            json.append("]}");
+        } else if (type.equals("album")) {
+            json.append("\"albums\": [");
+            for (int i = offset; i < offset + count; i++) {
+                json.append(i == offset ? "" : ", ").append(album(query, id, i));
+            }
+            json.append("]}");
+        } else if (type.equals("artist")) {
+            json.append("\"artists\": [");
+            for (int i = offset; i < offset + count; i++) {
+                json.append(i == offset ? "" : ", ").append(artist(query, id, i));
+            }
+            json.append("]}");
+        } else {
+            return null;
+        }
+        return json.toString().getBytes("UTF-8");
+    }
+
+    private static String artist(String query, String id, int i) {
+        return "{\"href\": " + quote("spotify:artist:" + id + i) + ", \"name\": " + quote(query + " artist " + (i + 1))
+                + ", \"popularity\": 0.5}";
+    }
+
+    private static String album(String query, String id, int i) {
+        return "{\"name\": " + quote(query + " album " + (i + 1)) + ", \"popularity\": 0.5, \"href\": "
+                + quote("spotify:album:" + id + i) + ", \"artists\": [" + artist(query, id, i % 7)
+                + "], \"external-ids\": [], \"availability\": {\"territories\": \"SE\"}, \"released\": 2013}";
+    }
+
+    /**
+     * @return the string as a json string
+     */
+    static String quote(String string) {
+        StringBuilder quoted = new StringBuilder(string.length() + 2).append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
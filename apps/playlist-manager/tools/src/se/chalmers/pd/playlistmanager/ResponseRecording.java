@@ -0,0 +1,130 @@
+package se.chalmers.pd.playlistmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Locale;
+
+/**
+ * A directory of recorded responses of the Spotify Metadata API, one file per search. The MetadataStubServer records
+ * the responses of the real API here and replays them, so that the same searches can be measured again and again
+ * without the network.
+ * <p/>
+ * The files are the uncompressed json as the API sent it, named by the type, the page and the url encoded query, for
+ * example track-1-daft+punk.json. Searches are not case sensitive, like in the SearchCache, so the query is trimmed
+ * and lower cased in the name.
+ */
+public class ResponseRecording {
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 15000;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File directory;
+
+    /**
+     * @param directory the directory of the recording, created when the first response is recorded
+     */
+    public ResponseRecording(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param type  the type of the search
+     * @param query the string that was searched for
+     * @param page  the page of the result set
+     * @return the recorded response or null if the search has not been recorded
+     * @throws IOException if the recorded response cannot be read
+     */
+    public byte[] get(String type, String query, int page) throws IOException {
+        File file = getFile(type, query, page);
+        if (!file.isFile()) {
+            return null;
+        }
+        InputStream input = new FileInputStream(file);
+        try {
+            return read(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Records a response, replacing the one that was recorded before
+     *
+     * @param type     the type of the search
+     * @param query    the string that was searched for
+     * @param page     the page of the result set
+     * @param response the uncompressed response
+     * @throws IOException if the response cannot be written
+     */
+    public void put(String type, String query, int page, byte[] response) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File file = getFile(type, query, page);
+        File temporary = new File(file.getPath() + ".tmp");
+        OutputStream output = new FileOutputStream(temporary);
+        try {
+            output.write(response);
+        } finally {
+            output.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Cannot write " + file);
+        }
+    }
+
+    /**
+     * Downloads a search from a server and records the response if the server found it
+     *
+     * @param server the scheme, host and port of the server, like http://ws.spotify.com
+     * @param type   the type of the search
+     * @param query  the string to search for
+     * @param page   the page of the result set
+     * @return the response or null if the server did not answer with 200 OK
+     * @throws IOException if the server cannot be reached or the response cannot be written
+     */
+    public byte[] record(String server, String type, String query, int page) throws IOException {
+        URL url = new URL(server + "/search/1/" + type + ".json?q=" + URLEncoder.encode(query, "UTF-8") + "&page=" + page);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            return null;
+        }
+        InputStream input = connection.getInputStream();
+        byte[] response;
+        try {
+            response = read(input);
+        } finally {
+            input.close();
+        }
+        put(type, query, page, response);
+        return response;
+    }
+
+    private File getFile(String type, String query, int page) throws IOException {
+        String name = type + "-" + page + "-" + URLEncoder.encode(query.trim().toLowerCase(Locale.US), "UTF-8") + ".json";
+        return new File(directory, name);
+    }
+
+    private static byte[] read(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,78 @@
+package se.chalmers.pd.playlistmanager;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Checks that the TrackRegistry of the playlist manager and of the device keep a
+ * replaced canonical track after the track it replaced has been collected. The
+ * registries are weak maps keyed by the uri of the track, so a replacement that
+ * kept the key of the old track would lose its entry with the old track.
+ * <p/>
+ * The check runs on a desktop JVM with the sources of the device and android.jar
+ * on the classpath, like the ConvergenceHarness, and exits with 1 if a registry
+ * lost the track:
+ *
+ * <pre>
+ * javac -cp android.jar -d out ../src/se/chalmers/pd/playlistmanager/*.java \
+ *     ../../device/src/se/chalmers/pd/device/*.java src/se/chalmers/pd/playlistmanager/*.java
+ * java -cp out:android.jar se.chalmers.pd.playlistmanager.TrackRegistryCheck
+ * </pre>
+ */
+public class TrackRegistryCheck {
+
+    private static final int GC_ATTEMPTS = 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        int failed = 0;
+        if (!checkPlaylistManager()) {
+            System.out.println("The TrackRegistry of the playlist manager lost the replaced track");
+            failed++;
+        }
+        if (!checkDevice()) {
+            System.out.println("The TrackRegistry of the device lost the replaced track");
+            failed++;
+        }
+        System.out.println(failed == 0 ? "Both registries kept the replaced track" : failed + " registries failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Replaces a track with one with a corrected name, drops the old one and
+     * collects it
+     *
+     * @return true if the new track still is the canonical one
+     */
+    private static boolean checkPlaylistManager() throws InterruptedException {
+        TrackRegistry registry = TrackRegistry.getInstance();
+        // The uris are built so that each track has its own string, as if parsed from a message
+        WeakReference<Track> old = new WeakReference<Track>(registry.obtain("Nam", "Artist", uri(), 200));
+        Track replacement = registry.obtain("Name", "Artist", uri(), 200);
+        collect(old);
+        return old.get() == null && registry.get(uri()) == replacement
+                && registry.obtain("Name", "Artist", uri(), 200) == replacement;
+    }
+
+    private static boolean checkDevice() throws InterruptedException {
+        se.chalmers.pd.device.TrackRegistry registry = se.chalmers.pd.device.TrackRegistry.getInstance();
+        WeakReference<se.chalmers.pd.device.Track> old = new WeakReference<se.chalmers.pd.device.Track>(
+                registry.obtain("Nam", "Artist", uri(), 200));
+        se.chalmers.pd.device.Track replacement = registry.obtain("Name", "Artist", uri(), 200);
+        collect(old);
+        return old.get() == null && registry.get(uri()) == replacement
+                && registry.obtain("Name", "Artist", uri(), 200) == replacement;
+    }
+
+    private static String uri() {
+        return new StringBuilder("spotify:track:").append("replaced").toString();
+    }
+
+    /**
+     * Runs the garbage collector until the referent is collected, or gives up
+     */
+    private static void collect(WeakReference<?> reference) throws InterruptedException {
+        for (int i = 0; i < GC_ATTEMPTS && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+}
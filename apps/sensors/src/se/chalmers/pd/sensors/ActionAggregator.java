@@ -0,0 +1,151 @@
+package se.chalmers.pd.sensors;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many actions are passed on, no matter how fast the buttons are
+ * pressed. An action that comes when nothing has happened for a while is
+ * passed on at once and opens a window. The actions that come during the
+ * window are summed up and passed on when it closes:
+ *
+ * - next and prev cancel each other out, and what is left becomes one skip
+ * with a count, so next five times becomes next with a count of 5.
+ *
+ * - of play and pause only the last one is kept, and it is passed on after the
+ * skip since skipping starts playback.
+ *
+ * If anything was passed on when a window closes a new window is opened, so at
+ * most three actions are passed on per window, the first one and two summed
+ * up.
+ */
+public class ActionAggregator {
+
+	/**
+	 * Receives the actions that are passed on.
+	 */
+	public interface Callback {
+		/**
+		 * Called when an action is passed on, on the thread that performed it
+		 * or on the thread of the aggregator.
+		 *
+		 * @param action
+		 *            the action
+		 * @param count
+		 *            how many times to perform it, always 1 for play and
+		 *            pause
+		 */
+		public void onAggregatedAction(Action action, int count);
+	}
+
+	public static final int DEFAULT_WINDOW_MILLIS = 300;
+
+	private static final String THREAD_NAME = "ActionAggregator";
+
+	private final Callback callback;
+	private final long windowMillis;
+	private final ScheduledExecutorService executor;
+	private boolean windowOpen = false;
+	private int skip = 0;
+	private Action playback = null;
+
+	private final Runnable closeWindow = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * @param callback
+	 *            the receiver of the actions that are passed on
+	 * @param windowMillis
+	 *            the length of a window in milliseconds
+	 */
+	public ActionAggregator(Callback callback, long windowMillis) {
+		this.callback = callback;
+		this.windowMillis = Math.max(1, windowMillis);
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, THREAD_NAME);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Passes the action on at once if no window is open, or else adds it to the
+	 * sum of the window.
+	 *
+	 * @param action
+	 *            play, pause, next or prev, other actions are ignored
+	 */
+	public void perform(Action action) {
+		synchronized (this) {
+			switch (action) {
+			case next:
+			case prev:
+			case play:
+			case pause:
+				break;
+			default:
+				return;
+			}
+			if (windowOpen) {
+				add(action);
+				return;
+			}
+			openWindow();
+		}
+		callback.onAggregatedAction(action, 1);
+	}
+
+	private void add(Action action) {
+		switch (action) {
+		case next:
+			skip++;
+			break;
+		case prev:
+			skip--;
+			break;
+		default:
+			playback = action;
+			break;
+		}
+	}
+
+	private void openWindow() {
+		windowOpen = true;
+		executor.schedule(closeWindow, windowMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Passes on the sum of the window that closes and opens a new window if
+	 * anything was passed on
+	 */
+	private void flush() {
+		int skip;
+		Action playback;
+		synchronized (this) {
+			skip = this.skip;
+			playback = this.playback;
+			this.skip = 0;
+			this.playback = null;
+			if (skip == 0 && playback == null) {
+				windowOpen = false;
+				return;
+			}
+			openWindow();
+		}
+		if (skip != 0) {
+			callback.onAggregatedAction(skip > 0 ? Action.next : Action.prev, Math.abs(skip));
+		}
+		if (playback != null) {
+			callback.onAggregatedAction(playback, 1);
+		}
+	}
+}
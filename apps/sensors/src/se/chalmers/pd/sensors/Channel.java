@@ -0,0 +1,66 @@
+package se.chalmers.pd.sensors;
+
+/**
+ * The continuous signals that can be streamed. Every channel has a default
+ * sample rate and a resolution. A sample is sent as an integer number of
+ * resolution steps, i.e. the value times the scale rounded to the nearest
+ * integer, so that consecutive samples can be sent as small differences.
+ *
+ * <b>speed</b>
+ * The speed of the car in km/h, in steps of 0.1.
+ *
+ * <b>steering</b>
+ * The angle of the steering wheel in degrees, positive to the right, in steps
+ * of 0.1.
+ *
+ * <b>rpm</b>
+ * The engine speed in revolutions per minute.
+ *
+ * <b>throttle</b>
+ * How far the accelerator is pressed in percent, in steps of 0.1.
+ *
+ * <b>latitude</b>
+ * The latitude of the car in degrees, in steps of one millionth.
+ *
+ * <b>longitude</b>
+ * The longitude of the car in degrees, in steps of one millionth.
+ */
+public enum Channel {
+	speed(10, 50),
+	steering(10, 100),
+	rpm(1, 50),
+	throttle(10, 50),
+	latitude(1000000, 10),
+	longitude(1000000, 10);
+
+	private final int scale;
+	private final int defaultRate;
+
+	private Channel(int scale, int defaultRate) {
+		this.scale = scale;
+		this.defaultRate = defaultRate;
+	}
+
+	/**
+	 * @return the number of steps per unit of the channel
+	 */
+	public int getScale() {
+		return scale;
+	}
+
+	/**
+	 * @return the number of samples per second unless configured otherwise
+	 */
+	public int getDefaultRate() {
+		return defaultRate;
+	}
+
+	/**
+	 * @param value
+	 *            a value of the channel
+	 * @return the value in steps of the resolution of the channel
+	 */
+	public long quantize(double value) {
+		return Math.round(value * scale);
+	}
+}
@@ -8,12 +8,33 @@ import org.json.JSONObject;
  * them. The worker is instantiated when the object is created and the thread is
  * started. There is no guarantee however that the thread will start and connect
  * immediately.
+ * 
+ * The controller can also stream the continuous channels of the car in frames
+ * on a topic of their own. The rate of a channel is set with the system
+ * property sensors.rate.&lt;channel&gt;, e.g. -Dsensors.rate.steering=200, and
+ * the time between frames in milliseconds with sensors.batch. Frames are
+ * published at most once, a lost frame is soon followed by a new one. With
+ * sensors.summary=true a frame only holds the minimum, maximum and mean of
+ * every channel instead of every sample.
+ * 
+ * Button presses go through an ActionAggregator, so pressing next five times
+ * quickly publishes a next with a count of 5 instead of five messages. The
+ * window is set in milliseconds with sensors.window.
  */
-public class Controller {
+public class Controller implements SensorStream.Callback, ActionAggregator.Callback {
 
 	private static final String TOPIC = "/sensor/infotainment";
+	private static final String STREAM_TOPIC = "/sensor/stream";
+	private static final String RATE_PROPERTY = "sensors.rate.";
+	private static final String BATCH_PROPERTY = "sensors.batch";
+	private static final String SUMMARY_PROPERTY = "sensors.summary";
+	private static final String WINDOW_PROPERTY = "sensors.window";
+	private static final String COUNT = "count";
+	private static final int STREAM_QOS = 0;
 
 	private MqttWorker mqttWorker;
+	private SensorStream sensorStream;
+	private ActionAggregator actionAggregator;
 
 	/**
 	 * Creates a an mqtt client and tells it to connect
@@ -21,29 +42,73 @@ public class Controller {
 	public Controller() {
 		mqttWorker = new MqttWorker();
 		mqttWorker.start();
+		sensorStream = new SensorStream(this);
+		for (Channel channel : Channel.values()) {
+			sensorStream.setRate(channel, Integer.getInteger(RATE_PROPERTY + channel, channel.getDefaultRate()));
+		}
+		sensorStream.setBatchInterval(Integer.getInteger(BATCH_PROPERTY, SensorStream.DEFAULT_BATCH_MILLIS));
+		sensorStream.setSummary(Boolean.getBoolean(SUMMARY_PROPERTY));
+		actionAggregator = new ActionAggregator(this,
+				Integer.getInteger(WINDOW_PROPERTY, ActionAggregator.DEFAULT_WINDOW_MILLIS));
 	}
 
     /**
-     * Tells the mqtt client to publish a message on this specific sensor topic with
-     * the action message.
+     * Passes the action to the aggregator, which decides when it is published.
      */
     public void performAction(Action action) {
-        mqttWorker.publish(TOPIC, getJsonMessage(action));
+        actionAggregator.perform(action);
     }
 
+	/**
+	 * Tells the mqtt client to publish a message on this specific sensor topic
+	 * with the action message.
+	 */
+	@Override
+	public void onAggregatedAction(Action action, int count) {
+		mqttWorker.publish(TOPIC, getJsonMessage(action, count));
+	}
+
+	/**
+	 * Starts or stops streaming the continuous channels.
+	 * 
+	 * @param streaming
+	 *            true to start streaming
+	 */
+	public void setStreaming(boolean streaming) {
+		if (streaming) {
+			sensorStream.start();
+		} else {
+			sensorStream.stop();
+		}
+	}
+
+	/**
+	 * Publishes a frame of the stream on the stream topic.
+	 */
+	@Override
+	public void onFrame(String frame) {
+		mqttWorker.publish(STREAM_TOPIC, frame, STREAM_QOS);
+	}
+
 	/**
 	 * Helper method to create a json object that can be stringified and sent to
 	 * the receiver.
 	 * 
 	 * @param action
 	 *            the action that the message will contain
+	 * @param count
+	 *            how many times to perform the action, only sent if more than
+	 *            once
 	 * @return a stringified json object containing the action that is passed
 	 *         in.
 	 */
-	private String getJsonMessage(Action action) {
+	private String getJsonMessage(Action action, int count) {
 		JSONObject message = new JSONObject();
 		try {
 			message.put(Action.action.toString(), action.toString());
+			if (count > 1) {
+				message.put(COUNT, count);
+			}
 		} catch (JSONException e) {
 			e.printStackTrace();
 		}
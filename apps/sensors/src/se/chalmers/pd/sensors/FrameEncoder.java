@@ -0,0 +1,174 @@
+package se.chalmers.pd.sensors;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Collects the samples of the channels and packs them into frames. A frame
+ * looks like this:
+ *
+ * <pre>
+ * {"frame": 12, "time": 1380000000200,
+ *  "channels": {"speed": {"start": 1380000000000, "interval": 20000, "scale": 10,
+ *                         "values": [503, 1, 1, 0, -1, ...]}, ...}}
+ * </pre>
+ *
+ * The samples of a channel are taken at a fixed rate, so only the time of the
+ * first sample in milliseconds and the interval between the samples in
+ * microseconds are sent. The values are in steps of the resolution of the
+ * channel, the value is the number divided by the scale. The first value is
+ * the sample itself and the rest are the differences from the sample before,
+ * which mostly are small numbers for a signal sampled this often.
+ *
+ * Every frame starts over with a whole sample, so a frame can be decoded on
+ * its own even if the frame before was lost.
+ *
+ * A frame can also be a summary, where a channel only has the number of
+ * samples and their minimum, maximum and mean instead of the values, already
+ * divided by the scale. A summary is the same size however often the
+ * channels are sampled:
+ *
+ * <pre>
+ * "speed": {"start": 1380000000000, "interval": 20000, "count": 10,
+ *           "min": 50.1, "max": 50.6, "mean": 50.34}
+ * </pre>
+ *
+ * The encoder is not thread safe, all samples and frames should be made on the
+ * same thread.
+ */
+public class FrameEncoder {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final EnumMap<Channel, Buffer> buffers = new EnumMap<Channel, Buffer>(Channel.class);
+	private long frames = 0;
+	private boolean summary = false;
+
+	/**
+	 * @param summary
+	 *            true to make summaries instead of frames with every sample
+	 */
+	public void setSummary(boolean summary) {
+		this.summary = summary;
+	}
+
+	/**
+	 * Adds a sample to the next frame.
+	 *
+	 * @param channel
+	 *            the channel of the sample
+	 * @param millis
+	 *            the time of the sample in milliseconds since the epoch
+	 * @param intervalMicros
+	 *            the time between the samples of the channel in microseconds
+	 * @param value
+	 *            the value of the sample
+	 */
+	public void add(Channel channel, long millis, long intervalMicros, double value) {
+		Buffer buffer = buffers.get(channel);
+		if (buffer == null) {
+			buffer = new Buffer();
+			buffers.put(channel, buffer);
+		}
+		long quantized = channel.quantize(value);
+		if (buffer.size == 0) {
+			buffer.start = millis;
+			buffer.interval = intervalMicros;
+			buffer.add(quantized);
+		} else {
+			buffer.add(quantized - buffer.previous);
+		}
+		buffer.previous = quantized;
+	}
+
+	/**
+	 * Packs the samples since the last frame into a frame.
+	 *
+	 * @param millis
+	 *            the time of the frame in milliseconds since the epoch
+	 * @return the stringified frame or null if there are no samples
+	 */
+	public String takeFrame(long millis) {
+		JSONObject channels = new JSONObject();
+		try {
+			for (Map.Entry<Channel, Buffer> entry : buffers.entrySet()) {
+				Buffer buffer = entry.getValue();
+				if (buffer.size == 0) {
+					continue;
+				}
+				JSONObject channel = new JSONObject();
+				channel.put("start", buffer.start);
+				channel.put("interval", buffer.interval);
+				if (summary) {
+					putSummary(channel, buffer, entry.getKey().getScale());
+				} else {
+					JSONArray values = new JSONArray();
+					for (int i = 0; i < buffer.size; i++) {
+						values.put(buffer.values[i]);
+					}
+					channel.put("scale", entry.getKey().getScale());
+					channel.put("values", values);
+				}
+				channels.put(entry.getKey().toString(), channel);
+				buffer.size = 0;
+			}
+			if (channels.length() == 0) {
+				return null;
+			}
+			JSONObject frame = new JSONObject();
+			frame.put("frame", frames++);
+			frame.put("time", millis);
+			frame.put("channels", channels);
+			return frame.toString();
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Adds the number of samples and their minimum, maximum and mean to the
+	 * channel, the samples are summed up from the differences
+	 */
+	private static void putSummary(JSONObject channel, Buffer buffer, double scale) throws JSONException {
+		long value = 0;
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		long sum = 0;
+		for (int i = 0; i < buffer.size; i++) {
+			value += buffer.values[i];
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			sum += value;
+		}
+		channel.put("count", buffer.size);
+		channel.put("min", min / scale);
+		channel.put("max", max / scale);
+		channel.put("mean", sum / scale / buffer.size);
+	}
+
+	/**
+	 * The samples of one channel since the last frame, the first whole and the
+	 * rest as differences
+	 */
+	private static class Buffer {
+		long start;
+		long interval;
+		long previous;
+		long[] values = new long[INITIAL_CAPACITY];
+		int size = 0;
+
+		void add(long value) {
+			if (size == values.length) {
+				long[] newValues = new long[size * 2];
+				System.arraycopy(values, 0, newValues, 0, size);
+				values = newValues;
+			}
+			values[size++] = value;
+		}
+	}
+}
@@ -10,17 +10,20 @@ import java.awt.event.ActionListener;
  * trigger play, next and pause actions. This class contains the basic GUI
  * constructs such as the frame and buttons itself. It also has an action
  * listener that tells the application controller to perform an action when a
- * button is clicked.
+ * button is clicked. The stream button turns streaming of the continuous
+ * channels on and off.
  */
 public class Main implements ActionListener {
 
     private static final int PANEL_WIDTH = 800;
     private static final int PANEL_HEIGHT = 500;
+    private static final String STREAM = "stream";
 
     private SensorButton sensor1;
     private SensorButton sensor2;
     private SensorButton sensor3;
     private SensorButton sensor4;
+    private JToggleButton streamButton;
     private JFrame jframe;
     private Controller controller;
 
@@ -55,6 +58,9 @@ public class Main implements ActionListener {
         sensor4 = new SensorButton(Action.pause.toString());
         sensor4.setActionCommand(Action.pause.toString());
         sensor4.setLocation(500, 300);
+        streamButton = new JToggleButton(STREAM);
+        streamButton.setSize(sensor4.getSize());
+        streamButton.setLocation(500, 330);
     }
 
     /**
@@ -67,6 +73,7 @@ public class Main implements ActionListener {
         panel.add(sensor2);
         panel.add(sensor3);
         panel.add(sensor4);
+        panel.add(streamButton);
         jframe.getContentPane().add(panel);
         jframe.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
     }
@@ -79,6 +86,7 @@ public class Main implements ActionListener {
         sensor2.addActionListener(this);
         sensor3.addActionListener(this);
         sensor4.addActionListener(this);
+        streamButton.addActionListener(this);
     }
 
     /**
@@ -87,6 +95,10 @@ public class Main implements ActionListener {
      */
     @Override
     public void actionPerformed(ActionEvent e) {
+        if (e.getSource() == streamButton) {
+            controller.setStreaming(streamButton.isSelected());
+            return;
+        }
         Action action = Action.valueOf(e.getActionCommand());
         switch (action) {
             case play:
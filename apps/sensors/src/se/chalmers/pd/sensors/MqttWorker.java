@@ -23,7 +23,7 @@ public class MqttWorker extends Thread {
 	private static final String WORKER_NAME = "MqttWorker";
 	private static final String BROKER_URL = "tcp://192.168.43.147:1883";
 	private static final String CLIENT_NAME = "sensors";
-	private MqttClient mqttClient;
+	private volatile MqttClient mqttClient;
 	private MqttConnectOptions connectionOptions;
 
 	public MqttWorker() {
@@ -65,6 +65,34 @@ public class MqttWorker extends Thread {
 		}
 	}
 
+	/**
+	 * Publishes a message with the given quality of service. The message is
+	 * dropped if the client is not connected. Nothing is logged, since this is
+	 * meant for messages that are published often.
+	 * 
+	 * @param topic
+	 *            the topic to publish on
+	 * @param message
+	 *            should be stringified JSON
+	 * @param qos
+	 *            the quality of service, 0 to send the message at most once
+	 */
+	public void publish(String topic, String message, int qos) {
+		MqttClient client = mqttClient;
+		if (client == null || !client.isConnected()) {
+			return;
+		}
+		try {
+			MqttMessage payload = new MqttMessage(message.getBytes());
+			payload.setQos(qos);
+			client.getTopic(topic).publish(payload);
+		} catch (MqttPersistenceException e) {
+			e.printStackTrace();
+		} catch (MqttException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Helper method that logs to system out.
 	 * 
@@ -0,0 +1,160 @@
+package se.chalmers.pd.sensors;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the continuous channels of the SignalSimulator, each at its own
+ * rate, and hands over a frame with the samples at a fixed batching interval.
+ * That way a channel sampled at 100 Hz does not cost 100 messages a second, but
+ * one message per batching interval for all channels together.
+ *
+ * The sampling and the framing run on one thread of their own, so the
+ * FrameEncoder is only used by that thread.
+ */
+public class SensorStream {
+
+	/**
+	 * Receives the frames of the stream.
+	 */
+	public interface Callback {
+		/**
+		 * Called on the thread of the stream when a frame is ready.
+		 *
+		 * @param frame
+		 *            the stringified frame
+		 */
+		public void onFrame(String frame);
+	}
+
+	/** The highest rate a channel can be sampled at */
+	public static final int MAX_RATE = 1000;
+	public static final int DEFAULT_BATCH_MILLIS = 200;
+
+	private static final String THREAD_NAME = "SensorStream";
+
+	private final EnumMap<Channel, Integer> rates = new EnumMap<Channel, Integer>(Channel.class);
+	private final SignalSimulator simulator = new SignalSimulator();
+	private final FrameEncoder encoder = new FrameEncoder();
+	private final Callback callback;
+	private int batchMillis = DEFAULT_BATCH_MILLIS;
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Creates a stream where every channel has its default rate.
+	 *
+	 * @param callback
+	 *            the receiver of the frames
+	 */
+	public SensorStream(Callback callback) {
+		this.callback = callback;
+		for (Channel channel : Channel.values()) {
+			rates.put(channel, channel.getDefaultRate());
+		}
+	}
+
+	/**
+	 * Sets the rate of a channel, takes effect when the stream is started.
+	 *
+	 * @param channel
+	 *            the channel
+	 * @param rate
+	 *            samples per second, 0 to leave the channel out
+	 */
+	public void setRate(Channel channel, int rate) {
+		rates.put(channel, Math.max(0, Math.min(rate, MAX_RATE)));
+	}
+
+	/**
+	 * Sets how often frames are made, takes effect when the stream is started.
+	 *
+	 * @param batchMillis
+	 *            the time between frames in milliseconds
+	 */
+	public void setBatchInterval(int batchMillis) {
+		this.batchMillis = Math.max(1, batchMillis);
+	}
+
+	/**
+	 * Sets whether frames hold every sample or a summary of the samples of each
+	 * channel, see FrameEncoder.
+	 *
+	 * @param summary
+	 *            true to send the minimum, maximum and mean only
+	 */
+	public void setSummary(boolean summary) {
+		encoder.setSummary(summary);
+	}
+
+	/**
+	 * Starts sampling the channels and making frames, unless the stream
+	 * already is started.
+	 */
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, THREAD_NAME);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (Map.Entry<Channel, Integer> entry : rates.entrySet()) {
+			if (entry.getValue() > 0) {
+				long intervalMicros = 1000000 / entry.getValue();
+				executor.scheduleAtFixedRate(new Sampler(entry.getKey(), intervalMicros), 0, intervalMicros,
+						TimeUnit.MICROSECONDS);
+			}
+		}
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				String frame = encoder.takeFrame(System.currentTimeMillis());
+				if (frame != null) {
+					callback.onFrame(frame);
+				}
+			}
+		}, batchMillis, batchMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the stream, the samples since the last frame are dropped.
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	public synchronized boolean isStarted() {
+		return executor != null;
+	}
+
+	/**
+	 * Takes one sample of a channel each time it is run
+	 */
+	private class Sampler implements Runnable {
+
+		private final Channel channel;
+		private final long intervalMicros;
+
+		Sampler(Channel channel, long intervalMicros) {
+			this.channel = channel;
+			this.intervalMicros = intervalMicros;
+		}
+
+		@Override
+		public void run() {
+			double value = simulator.sample(channel, System.nanoTime());
+			encoder.add(channel, System.currentTimeMillis(), intervalMicros, value);
+		}
+	}
+}
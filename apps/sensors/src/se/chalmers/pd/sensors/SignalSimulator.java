@@ -0,0 +1,100 @@
+package se.chalmers.pd.sensors;
+
+import java.util.Random;
+
+/**
+ * Simulates the continuous signals of a car that drives around. The driver
+ * presses the accelerator and turns the wheel at random, the speed follows the
+ * accelerator, the engine speed follows the speed and the gear, and the
+ * position follows the speed and the heading. The car is simulated up to the
+ * time of the latest sample, so every channel can be sampled at its own rate.
+ */
+public class SignalSimulator {
+
+	private static final double START_LATITUDE = 57.6884;
+	private static final double START_LONGITUDE = 11.9779;
+	private static final double METERS_PER_DEGREE = 111320;
+	private static final double MAX_SPEED = 130;
+	private static final double MAX_STEERING = 120;
+	private static final double STEERING_RATIO = 15;
+	private static final double WHEELBASE = 2.7;
+	private static final double IDLE_RPM = 800;
+	private static final double GEAR_SPEED = 25;
+	private static final double GEAR_RPM = 3000;
+	private static final int GEARS = 6;
+
+	private final Random random = new Random();
+	private double throttle = 20;
+	private double speed = 0;
+	private double steering = 0;
+	private double heading = 0;
+	private double latitude = START_LATITUDE;
+	private double longitude = START_LONGITUDE;
+	private long time = -1;
+
+	/**
+	 * Simulates the car up to the given time and returns the value of a
+	 * channel.
+	 *
+	 * @param channel
+	 *            the channel to sample
+	 * @param nanos
+	 *            the time of the sample from System.nanoTime()
+	 * @return the value of the channel
+	 */
+	public synchronized double sample(Channel channel, long nanos) {
+		advance(nanos);
+		switch (channel) {
+		case speed:
+			return speed;
+		case steering:
+			return steering;
+		case rpm:
+			return getRpm();
+		case throttle:
+			return throttle;
+		case latitude:
+			return latitude;
+		case longitude:
+			return longitude;
+		}
+		return 0;
+	}
+
+	/**
+	 * The engine speed goes up with the speed within a gear and drops when the
+	 * next gear is engaged
+	 */
+	private double getRpm() {
+		int gear = Math.min(GEARS, 1 + (int) (speed / GEAR_SPEED));
+		double inGear = speed - (gear - 1) * GEAR_SPEED;
+		return IDLE_RPM + inGear / GEAR_SPEED * GEAR_RPM;
+	}
+
+	private void advance(long nanos) {
+		if (time < 0) {
+			time = nanos;
+			return;
+		}
+		double seconds = (nanos - time) / 1e9;
+		if (seconds <= 0) {
+			return;
+		}
+		time = nanos;
+		double noise = Math.sqrt(seconds);
+		throttle = clamp(throttle + random.nextGaussian() * 15 * noise, 0, 100);
+		speed = clamp(speed + (throttle / 100 * MAX_SPEED - speed) * 0.2 * seconds, 0, MAX_SPEED);
+		// The driver turns the wheel at random and lets it return towards straight ahead
+		steering = clamp(steering + random.nextGaussian() * 40 * noise - steering * seconds, -MAX_STEERING, MAX_STEERING);
+		double metersPerSecond = speed / 3.6;
+		double wheelAngle = Math.toRadians(steering / STEERING_RATIO);
+		heading += metersPerSecond * Math.tan(wheelAngle) / WHEELBASE * seconds;
+		double distance = metersPerSecond * seconds;
+		latitude += distance * Math.cos(heading) / METERS_PER_DEGREE;
+		longitude += distance * Math.sin(heading) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+	}
+
+	private static double clamp(double value, double min, double max) {
+		return Math.max(min, Math.min(max, value));
+	}
+}
@@ -0,0 +1,184 @@
+package se.chalmers.pd.sensors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A binary log of mqtt messages. The log starts with a magic number and a
+ * version, followed by one record per message:
+ *
+ * <pre>
+ * int   microseconds since the record before
+ * short the index of the topic
+ * utf   the topic, only the first time the index is used
+ * byte  the quality of service, plus 4 if the message was retained
+ * int   the length of the payload
+ * byte[] the payload
+ * </pre>
+ *
+ * Topics are numbered in the order they are first seen, so a topic is only
+ * written once. A record that was cut short, because the recorder was killed
+ * while writing it, ends the log.
+ */
+public class TrafficLog {
+
+	private static final int MAGIC = 0x4d51544c;
+	private static final int VERSION = 1;
+	private static final int RETAINED = 4;
+	private static final int QOS_MASK = 3;
+
+	/**
+	 * A message in the log.
+	 */
+	public static class Record {
+		/** The time of the message in microseconds from the start of the log */
+		public final long time;
+		public final String topic;
+		public final int qos;
+		public final boolean retained;
+		public final byte[] payload;
+
+		public Record(long time, String topic, int qos, boolean retained, byte[] payload) {
+			this.time = time;
+			this.topic = topic;
+			this.qos = qos;
+			this.retained = retained;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * Writes records to a log. The writer is thread safe, since messages
+	 * arrive on the thread of the mqtt client.
+	 */
+	public static class Writer {
+
+		private final DataOutputStream output;
+		private final HashMap<String, Integer> topics = new HashMap<String, Integer>();
+		private final long start = System.nanoTime();
+		private long previous = 0;
+		private long count = 0;
+
+		/**
+		 * Creates the log, an existing file is overwritten.
+		 *
+		 * @param file
+		 *            the file of the log
+		 * @throws IOException
+		 */
+		public Writer(File file) throws IOException {
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+		}
+
+		/**
+		 * Writes a message that arrives now.
+		 *
+		 * @param topic
+		 *            the topic of the message
+		 * @param qos
+		 *            the quality of service of the message
+		 * @param retained
+		 *            true if the message was retained
+		 * @param payload
+		 *            the payload of the message
+		 * @throws IOException
+		 */
+		public synchronized void write(String topic, int qos, boolean retained, byte[] payload) throws IOException {
+			long now = (System.nanoTime() - start) / 1000;
+			output.writeInt((int) Math.min(now - previous, Integer.MAX_VALUE));
+			previous = now;
+			Integer index = topics.get(topic);
+			if (index == null) {
+				index = topics.size();
+				topics.put(topic, index);
+				output.writeShort(index);
+				output.writeUTF(topic);
+			} else {
+				output.writeShort(index);
+			}
+			output.writeByte((qos & QOS_MASK) | (retained ? RETAINED : 0));
+			output.writeInt(payload.length);
+			output.write(payload);
+			count++;
+		}
+
+		/**
+		 * @return the number of records written
+		 */
+		public synchronized long getCount() {
+			return count;
+		}
+
+		public synchronized void flush() throws IOException {
+			output.flush();
+		}
+
+		public synchronized void close() throws IOException {
+			output.close();
+		}
+	}
+
+	/**
+	 * Reads a whole log.
+	 *
+	 * @param file
+	 *            the file of the log
+	 * @return the records in the order they were written
+	 * @throws IOException
+	 *             if the file is not a log or cannot be read
+	 */
+	public static List<Record> read(File file) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		ArrayList<Record> records = new ArrayList<Record>();
+		try {
+			if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+				throw new IOException(file + " is not a traffic log");
+			}
+			ArrayList<String> topics = new ArrayList<String>();
+			long time = 0;
+			while (true) {
+				int delta;
+				try {
+					delta = input.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				try {
+					time += delta;
+					int index = input.readShort();
+					if (index == topics.size()) {
+						topics.add(input.readUTF());
+					} else if (index < 0 || index > topics.size()) {
+						throw new IOException("Bad topic index " + index + " in " + file);
+					}
+					int flags = input.readByte();
+					int length = input.readInt();
+					if (length < 0) {
+						throw new IOException("Bad payload length " + length + " in " + file);
+					}
+					byte[] payload = new byte[length];
+					input.readFully(payload);
+					records.add(new Record(time, topics.get(index), flags & QOS_MASK, (flags & RETAINED) != 0, payload));
+				} catch (EOFException e) {
+					// The recorder stopped in the middle of a record
+					break;
+				}
+			}
+		} finally {
+			input.close();
+		}
+		return records;
+	}
+}
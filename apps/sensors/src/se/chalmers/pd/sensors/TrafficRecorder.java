@@ -0,0 +1,103 @@
+package se.chalmers.pd.sensors;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Subscribes to topics and writes every message that arrives to a TrafficLog,
+ * with the time it arrived. The topics are subscribed to with the highest
+ * quality of service, so the log keeps the quality of service the messages
+ * were published with.
+ */
+public class TrafficRecorder implements MqttCallback {
+
+	private static final String CLIENT_NAME = "recorder-";
+	private static final int SUBSCRIBE_QOS = 2;
+
+	private final String brokerUrl;
+	private final TrafficLog.Writer writer;
+	private MqttClient mqttClient;
+
+	/**
+	 * @param brokerUrl
+	 *            the url of the broker to record
+	 * @param file
+	 *            the file of the log, overwritten if it exists
+	 * @throws IOException
+	 *             if the log cannot be created
+	 */
+	public TrafficRecorder(String brokerUrl, File file) throws IOException {
+		this.brokerUrl = brokerUrl;
+		writer = new TrafficLog.Writer(file);
+	}
+
+	/**
+	 * Connects to the broker and starts recording.
+	 * 
+	 * @param topics
+	 *            the topics to record, may contain wildcards
+	 * @throws MqttException
+	 *             if the broker cannot be reached
+	 */
+	public void start(String[] topics) throws MqttException {
+		mqttClient = new MqttClient(brokerUrl, CLIENT_NAME + System.nanoTime() % 100000, new MemoryPersistence());
+		mqttClient.setCallback(this);
+		mqttClient.connect();
+		int[] qos = new int[topics.length];
+		for (int i = 0; i < qos.length; i++) {
+			qos[i] = SUBSCRIBE_QOS;
+		}
+		mqttClient.subscribe(topics, qos);
+	}
+
+	/**
+	 * Disconnects and closes the log.
+	 */
+	public void stop() {
+		try {
+			if (mqttClient != null && mqttClient.isConnected()) {
+				mqttClient.disconnect();
+			}
+		} catch (MqttException e) {
+			e.printStackTrace();
+		}
+		try {
+			writer.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the number of messages recorded
+	 */
+	public long getCount() {
+		return writer.getCount();
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+		writer.write(topic, message.getQos(), message.isRetained(), message.getPayload());
+	}
+
+	@Override
+	public void connectionLost(Throwable cause) {
+		System.out.println("TrafficRecorder, connection lost: " + cause);
+		try {
+			writer.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+	}
+}
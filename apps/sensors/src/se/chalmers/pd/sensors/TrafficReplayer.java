@@ -0,0 +1,288 @@
+package se.chalmers.pd.sensors;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Publishes the messages of a TrafficLog again with the same timing, or faster
+ * by a speed factor. The messages can be spread over several clients, each with
+ * a thread of its own, like several devices publishing at the same time. The
+ * n:th message is published by client n modulo the number of clients.
+ *
+ * A probe client subscribes to the replayed topics and measures the time from
+ * a message is published until the broker has delivered it. The payloads are
+ * not changed, so a message is recognized by its topic and payload; when the
+ * same message is published again before the first one arrives, the earliest
+ * one is taken to arrive first. Messages that have not arrived when the drain
+ * time is up are counted as lost. Messages the probe receives that were not
+ * replayed are ignored.
+ */
+public class TrafficReplayer implements MqttCallback {
+
+	private static final String CLIENT_NAME = "replay-";
+	private static final String PROBE_NAME = "replay-probe-";
+	private static final int SUBSCRIBE_QOS = 2;
+	private static final String CHARSET = "ISO-8859-1";
+
+	private final String brokerUrl;
+	private final List<TrafficLog.Record> records;
+	private final double speed;
+	private final int clients;
+	private final HashMap<String, LinkedList<Long>> inFlight = new HashMap<String, LinkedList<Long>>();
+	private final ArrayList<Long> latencies = new ArrayList<Long>();
+	private long sent = 0;
+	private long failed = 0;
+
+	/**
+	 * @param brokerUrl
+	 *            the url of the broker to replay to
+	 * @param records
+	 *            the records of the log
+	 * @param speed
+	 *            how many times faster than recorded to replay, 1 for the
+	 *            recorded timing
+	 * @param clients
+	 *            the number of clients to spread the messages over
+	 */
+	public TrafficReplayer(String brokerUrl, List<TrafficLog.Record> records, double speed, int clients) {
+		this.brokerUrl = brokerUrl;
+		this.records = records;
+		this.speed = speed;
+		this.clients = Math.max(1, clients);
+	}
+
+	/**
+	 * Replays the log and waits for the messages to arrive.
+	 *
+	 * @param drainMillis
+	 *            how long to wait for messages after the last one was
+	 *            published
+	 * @return the result of the replay
+	 * @throws MqttException
+	 *             if a client cannot connect
+	 * @throws InterruptedException
+	 */
+	public Result replay(long drainMillis) throws MqttException, InterruptedException {
+		String id = String.valueOf(System.nanoTime() % 100000);
+		MqttClient probe = new MqttClient(brokerUrl, PROBE_NAME + id, new MemoryPersistence());
+		probe.setCallback(this);
+		probe.connect();
+		LinkedHashSet<String> topics = new LinkedHashSet<String>();
+		for (TrafficLog.Record record : records) {
+			topics.add(record.topic);
+		}
+		int[] qos = new int[topics.size()];
+		Arrays.fill(qos, SUBSCRIBE_QOS);
+		probe.subscribe(topics.toArray(new String[topics.size()]), qos);
+
+		MqttClient[] publishers = new MqttClient[clients];
+		for (int i = 0; i < clients; i++) {
+			publishers[i] = new MqttClient(brokerUrl, CLIENT_NAME + id + "-" + i, new MemoryPersistence());
+			publishers[i].connect();
+		}
+		long start = System.nanoTime();
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Publisher(publishers[i], i, start);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long published = System.nanoTime() - start;
+
+		long deadline = System.currentTimeMillis() + drainMillis;
+		synchronized (this) {
+			while (latencies.size() < sent - failed && System.currentTimeMillis() < deadline) {
+				wait(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+		}
+		for (MqttClient publisher : publishers) {
+			publisher.disconnect();
+		}
+		probe.disconnect();
+		synchronized (this) {
+			return new Result(sent, failed, latencies, published / 1000000);
+		}
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+		long now = System.nanoTime();
+		synchronized (this) {
+			LinkedList<Long> times = inFlight.get(key(topic, message.getPayload()));
+			if (times != null && !times.isEmpty()) {
+				latencies.add((now - times.removeFirst()) / 1000);
+				notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void connectionLost(Throwable cause) {
+		System.out.println("TrafficReplayer, connection lost: " + cause);
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+	}
+
+	private static String key(String topic, byte[] payload) throws UnsupportedEncodingException {
+		return topic + '\n' + new String(payload, CHARSET);
+	}
+
+	/**
+	 * Publishes every clients:th record with one of the clients, starting with
+	 * the given record
+	 */
+	private class Publisher extends Thread {
+
+		private final MqttClient client;
+		private final int first;
+		private final long start;
+
+		Publisher(MqttClient client, int first, long start) {
+			super(CLIENT_NAME + first);
+			this.client = client;
+			this.first = first;
+			this.start = start;
+		}
+
+		@Override
+		public void run() {
+			for (int i = first; i < records.size(); i += clients) {
+				TrafficLog.Record record = records.get(i);
+				long due = start + (long) (record.time * 1000 / speed);
+				long delay = due - System.nanoTime();
+				String key = null;
+				Long sentTime = null;
+				try {
+					if (delay > 0) {
+						Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+					}
+					MqttMessage message = new MqttMessage(record.payload);
+					message.setQos(record.qos);
+					message.setRetained(record.retained);
+					key = key(record.topic, record.payload);
+					// The time is added before publishing, since the message may arrive before publish returns
+					sentTime = System.nanoTime();
+					synchronized (TrafficReplayer.this) {
+						LinkedList<Long> times = inFlight.get(key);
+						if (times == null) {
+							times = new LinkedList<Long>();
+							inFlight.put(key, times);
+						}
+						times.add(sentTime);
+						sent++;
+					}
+					client.getTopic(record.topic).publish(message);
+				} catch (MqttException e) {
+					e.printStackTrace();
+					synchronized (TrafficReplayer.this) {
+						failed++;
+						// A message that was never sent must not be matched with a later one with the same payload
+						LinkedList<Long> times = key == null ? null : inFlight.get(key);
+						if (times != null) {
+							times.remove(sentTime);
+						}
+					}
+				} catch (UnsupportedEncodingException e) {
+					e.printStackTrace();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The number of messages and the latencies of a replay
+	 */
+	public static class Result {
+
+		private final long sent;
+		private final long failed;
+		private final long[] latencies;
+		private final long durationMillis;
+
+		Result(long sent, long failed, List<Long> latencies, long durationMillis) {
+			this.sent = sent;
+			this.failed = failed;
+			this.durationMillis = durationMillis;
+			this.latencies = new long[latencies.size()];
+			for (int i = 0; i < this.latencies.length; i++) {
+				this.latencies[i] = latencies.get(i);
+			}
+			Arrays.sort(this.latencies);
+		}
+
+		/**
+		 * @return the number of messages that were published
+		 */
+		public long getSent() {
+			return sent;
+		}
+
+		/**
+		 * @return the number of messages that could not be published
+		 */
+		public long getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return the number of published messages that arrived in time
+		 */
+		public long getReceived() {
+			return latencies.length;
+		}
+
+		/**
+		 * @return the number of published messages that did not arrive in
+		 *         time
+		 */
+		public long getLost() {
+			return sent - failed - latencies.length;
+		}
+
+		/**
+		 * @return the time it took to publish all messages in milliseconds
+		 */
+		public long getDurationMillis() {
+			return durationMillis;
+		}
+
+		/**
+		 * @param percentile
+		 *            from 0 to 100
+		 * @return the latency in microseconds at the percentile, by the
+		 *         nearest rank method, or 0 if nothing arrived
+		 */
+		public long getLatency(double percentile) {
+			if (latencies.length == 0) {
+				return 0;
+			}
+			int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+			return latencies[Math.min(Math.max(rank, 1), latencies.length) - 1];
+		}
+
+		@Override
+		public String toString() {
+			return "sent " + sent + ", failed " + failed + ", received " + getReceived() + ", lost " + getLost()
+					+ " in " + durationMillis + " ms; latency p50 " + getLatency(50) + " us, p95 "
+					+ getLatency(95) + " us, p99 " + getLatency(99) + " us, max " + getLatency(100) + " us";
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package se.chalmers.pd.sensors;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+/**
+ * Command line tool that records the mqtt traffic of the system and replays it
+ * against a broker, to put realistic load on the broker and the devices in the
+ * lab.
+ *
+ * <pre>
+ * record &lt;broker url&gt; &lt;log file&gt; &lt;topic&gt;...
+ *     records until enter is pressed or the tool is stopped
+ * replay &lt;broker url&gt; &lt;log file&gt; [speed] [clients] [drain ms]
+ *     replays the log speed times faster than recorded, default 1, spread
+ *     over a number of clients, default 1, and prints the delivery latency
+ *     and loss
+ * </pre>
+ */
+public class TrafficTool {
+
+	private static final String RECORD = "record";
+	private static final String REPLAY = "replay";
+	private static final long DEFAULT_DRAIN_MILLIS = 5000;
+
+	public static void main(String[] args) {
+		try {
+			if (args.length >= 4 && RECORD.equals(args[0])) {
+				record(args[1], new File(args[2]), Arrays.copyOfRange(args, 3, args.length));
+			} else if (args.length >= 3 && REPLAY.equals(args[0])) {
+				double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+				int clients = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+				long drainMillis = args.length > 5 ? Long.parseLong(args[5]) : DEFAULT_DRAIN_MILLIS;
+				replay(args[1], new File(args[2]), speed, clients, drainMillis);
+			} else {
+				System.out.println("Usage: TrafficTool record <broker url> <log file> <topic>...");
+				System.out.println("       TrafficTool replay <broker url> <log file> [speed] [clients] [drain ms]");
+				System.exit(1);
+			}
+		} catch (MqttException e) {
+			e.printStackTrace();
+			System.exit(2);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(2);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * Records until enter is pressed. The log is also closed properly if the
+	 * tool is stopped with ctrl-c. Without a console, e.g. under nohup or with
+	 * stdin from /dev/null, it records until the tool is stopped.
+	 */
+	private static void record(String brokerUrl, File file, String[] topics) throws IOException, MqttException,
+			InterruptedException {
+		final TrafficRecorder recorder = new TrafficRecorder(brokerUrl, file);
+		recorder.start(topics);
+		Thread shutdown = new Thread() {
+			@Override
+			public void run() {
+				recorder.stop();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdown);
+		System.out.println("Recording " + Arrays.toString(topics) + " to " + file + ", press enter to stop");
+		int read;
+		do {
+			read = System.in.read();
+		} while (read != '\n' && read != -1);
+		if (read == -1) {
+			// Nobody can press enter, wait for the shutdown hook to close the log
+			Thread.currentThread().join();
+		}
+		Runtime.getRuntime().removeShutdownHook(shutdown);
+		recorder.stop();
+		System.out.println("Recorded " + recorder.getCount() + " messages");
+	}
+
+	private static void replay(String brokerUrl, File file, double speed, int clients, long drainMillis)
+			throws IOException, MqttException, InterruptedException {
+		List<TrafficLog.Record> records = TrafficLog.read(file);
+		System.out.println("Replaying " + records.size() + " messages at " + speed + "x over " + clients + " clients");
+		TrafficReplayer.Result result = new TrafficReplayer(brokerUrl, records, speed, clients).replay(drainMillis);
+		System.out.println(result);
+	}
+}
@@ -15,8 +15,13 @@ var COMMAND_PREV = "prev";
 var COMMAND_PLAY = "play";
 var COMMAND_PAUSE = "pause";
 var COMMAND_SEEK = "seek";
+var COMMAND_STATE = "state";
+var COMMAND_CLOCK = "clock";
 var PRIVATE_CHANNEL = "/playlist";
 var SENSOR_CHANNEL = "/sensor/infotainment"
+var STATE_CHANNEL = "/playlist/state";
+var CLIENT_ID = "headunit";
+var CLOCK_SAMPLES = 3;
 
 // Define som global variables
 var debug = true;
@@ -26,6 +31,9 @@ var currentTrack = 0;
 var currentTime = 0;
 var totalTime = 0;
 var meter;
+var playbackState = null;
+var clockOffset = 0;
+var bestRoundTrip = Number.MAX_VALUE;
 
 
 $(document).ready(function () {
@@ -45,10 +53,17 @@ $(document).ready(function () {
                     type : 'android'       
     });
     
-    // Set a timer on the scrubber to update each second
+    // Set a timer on the scrubber to update each second. The position is
+    // extrapolated from the last playback state of the device so the
+    // scrubber doesn't drift.
     meter.timer({
         callback: function() { 
-            setMeter(++currentTime / totalTime);
+            if (playbackState != null) {
+                currentTime = currentPosition() / 1000;
+            } else {
+                ++currentTime;
+            }
+            setMeter(currentTime / totalTime);
         },
         delay: 1000,
         repeat: true,
@@ -67,8 +82,42 @@ $(document).ready(function () {
     // Subscribe to the application and sensor topics
     subscribe(PRIVATE_CHANNEL);
     subscribe(SENSOR_CHANNEL);
+    subscribe(STATE_CHANNEL);
+    requestClockSync();
 });
 
+// Asks the device for its time a couple of times, the answer
+// with the shortest round trip is used for the clock offset.
+function requestClockSync() {
+    for (var i = 0; i < CLOCK_SAMPLES; i++) {
+        var message = {
+            action : COMMAND_CLOCK,
+            data : { id : CLIENT_ID, sent : Date.now() }
+        };
+        publish(PRIVATE_CHANNEL, JSON.stringify(message));
+    }
+}
+
+// Calculates the offset to the device clock assuming that the
+// device answered halfway through the round trip.
+function addClockSample(sent, deviceTime, received) {
+    var roundTrip = received - sent;
+    if (roundTrip >= 0 && roundTrip <= bestRoundTrip) {
+        bestRoundTrip = roundTrip;
+        clockOffset = deviceTime - (sent + roundTrip / 2);
+    }
+}
+
+// Extrapolates the position in milliseconds of the current track
+// from the last playback state.
+function currentPosition() {
+    var elapsed = Date.now() + clockOffset - playbackState.timestamp;
+    if (!playbackState.playing || elapsed < 0) {
+        return playbackState.position;
+    }
+    return playbackState.position + elapsed * playbackState.rate;
+}
+
 // Sets the meter to the specified fraction,
 // the fraction is multipled by 100 to give
 // percent value before setting the progress.
@@ -98,6 +147,27 @@ function onMessage(topic, payload) {
     log("onMessage: " + topic + " payload " + JSON.stringify(payload));
     if (topic == PRIVATE_CHANNEL || topic == SENSOR_CHANNEL) {
         handleMessagePayload(payload);
+    } else if (topic == STATE_CHANNEL) {
+        handleStatePayload(payload);
+    }
+}
+
+// Handles the clock answers and playback states from the device
+function handleStatePayload(payload) {
+    if (payload.action == COMMAND_CLOCK) {
+        if (payload.data.id == CLIENT_ID) {
+            addClockSample(payload.data.sent, payload.data.device, Date.now());
+        }
+    } else if (payload.action == COMMAND_STATE) {
+        playbackState = payload.data;
+        playing = playbackState.playing;
+        toggleButtons();
+        if (playlist.length > 0) {
+            totalTime = playlist[currentTrack].tracklength;
+        }
+        currentTime = currentPosition() / 1000;
+        setMeter(currentTime / totalTime);
+        meter.timer(playing ? 'start' : 'stop');
     }
 }
 